@@ -0,0 +1,30 @@
+/**
+ * Benchmarks.java
+ * Entry point of the benchmark jar
+ * Takes the usual JMH command line, and always adds the GC profiler so allocation rates are reported with every result
+ * When the SIMD decay kernel was compiled in (the simd profile, on JDK 17 and up), the forked JVMs get the Vector API module
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class Benchmarks{
+	
+	public static void main(String[] args) throws Exception{
+		
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(commandLine).addProfiler(GCProfiler.class);
+		
+		if( Benchmarks.class.getClassLoader().getResource("VectorDecayKernel.class") != null )
+			options.jvmArgsPrepend("--add-modules=jdk.incubator.vector");
+		
+		new Runner(options.build()).run();
+	}
+	
+}
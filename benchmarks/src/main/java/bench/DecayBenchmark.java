@@ -0,0 +1,69 @@
+/**
+ * DecayBenchmark.java
+ * Decay passes of the phermone and signal arrays over a whole size x size grid, with the scalar and the SIMD kernel
+ * Every operation first restores the levels from a copy, so the passes never run on a grid already decayed to 0;
+ * the copy on its own is measured too, to be subtracted
+ * The simd kernel is only there when the benchmarks were built with the simd profile
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class DecayBenchmark{
+	
+	static final byte PHERMONE_MAX = 4;
+	
+	@Param({ "256", "1024", "4096" })
+	int size;
+	
+	@Param({ "scalar", "simd" })
+	String kernel;
+	
+	Object decay;
+	byte[] levels;
+	byte[] cells;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Throwable{
+		
+		decay = Simulation.type(kernel.equals("simd") ? "VectorDecayKernel" : "ScalarDecayKernel").getDeclaredConstructor().newInstance();
+		
+		// Levels as a running grid holds them: mostly 0, some up to PHERMONE_MAX plus a few deposits
+		SplittableRandom random = new SplittableRandom(Simulation.SEED);
+		levels = new byte[size * size];
+		for( int k = 0; k < levels.length; k++ )
+			levels[k] = (byte)(random.nextInt(4) == 0 ? random.nextInt(PHERMONE_MAX + 7) : 0);
+		cells = levels.clone();
+	}
+	
+	@Benchmark
+	public void copy(){
+		
+		System.arraycopy(levels, 0, cells, 0, levels.length);
+	}
+	
+	@Benchmark
+	public void decayPhermones() throws Throwable{
+		
+		System.arraycopy(levels, 0, cells, 0, levels.length);
+		Simulation.DECAY_PHERMONES.invokeExact(decay, (Object)cells, 0, cells.length, PHERMONE_MAX);
+	}
+	
+	@Benchmark
+	public void decaySignals() throws Throwable{
+		
+		System.arraycopy(levels, 0, cells, 0, levels.length);
+		Simulation.DECAY_SIGNALS.invokeExact(decay, (Object)cells, 0, cells.length);
+	}
+	
+}
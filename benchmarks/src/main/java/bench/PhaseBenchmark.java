@@ -0,0 +1,63 @@
+/**
+ * PhaseBenchmark.java
+ * Time of each update phase of a step, on its own, over a matrix of grid sizes and mold densities
+ * Each trial starts from a model run for WARMUP_STEPS steps and calls the phase repeatedly on it
+ * The model is created once per trial, so its allocation does not show in the per-operation allocation rates
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class PhaseBenchmark{
+	
+	// Steps run before measuring, so signals and phermones have spread from the initial molds:
+	static final int WARMUP_STEPS = 10;
+	
+	@Param({ "50", "256", "1024", "4096", "8192" })
+	int size;
+	
+	@Param({ "0.001", "0.01", "0.1", "0.5" })
+	double density;
+	
+	Object model;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Throwable{
+		
+		model = Simulation.newModel(size, density, WARMUP_STEPS);
+	}
+	
+	@Benchmark
+	public void updateDirections() throws Throwable{
+		
+		Simulation.UPDATE_DIRECTIONS.invokeExact(model);
+	}
+	
+	@Benchmark
+	public void updatePhermones() throws Throwable{
+		
+		Simulation.UPDATE_PHERMONES.invokeExact(model);
+	}
+	
+	@Benchmark
+	public void updatePositions() throws Throwable{
+		
+		Simulation.UPDATE_POSITIONS.invokeExact(model);
+	}
+	
+	@Benchmark
+	public void updateSignals() throws Throwable{
+		
+		Simulation.UPDATE_SIGNALS.invokeExact(model);
+	}
+	
+}
@@ -0,0 +1,70 @@
+/**
+ * RenderBenchmark.java
+ * Cost of a frame without a visible window (java.awt.headless), as View.updateGrid pays it:
+ * capturing a snapshot of the model, and rendering a snapshot into the grid image
+ * The grid panel is PANEL_SIZE pixels square, and renders alternate between snapshots of two consecutive steps,
+ * so every render redraws the cells one step changes
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import java.awt.Component;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g", "-Djava.awt.headless=true" })
+public class RenderBenchmark{
+	
+	static final int PANEL_SIZE = 1000;
+	
+	@Param({ "50", "256", "1024", "4096", "8192" })
+	int size;
+	
+	@Param({ "0.001", "0.01", "0.1", "0.5" })
+	double density;
+	
+	Object model;
+	Object snapshot;
+	Object before;
+	Object after;
+	Object grid;
+	boolean flip;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Throwable{
+		
+		model = Simulation.newModel(size, density, PhaseBenchmark.WARMUP_STEPS);
+		snapshot = Simulation.NEW_SNAPSHOT.invokeExact();
+		
+		before = Simulation.NEW_SNAPSHOT.invokeExact();
+		Simulation.CAPTURE.invokeExact(before, model);
+		Simulation.STEP.invokeExact(model);
+		after = Simulation.NEW_SNAPSHOT.invokeExact();
+		Simulation.CAPTURE.invokeExact(after, model);
+		
+		grid = Simulation.NEW_GRID.invokeExact(size, size);
+		((Component)grid).setSize(PANEL_SIZE, PANEL_SIZE);
+		Simulation.LAYOUT_CELLS.invokeExact(grid);
+		Simulation.RENDER.invokeExact(grid, before);
+	}
+	
+	@Benchmark
+	public void capture() throws Throwable{
+		
+		Simulation.CAPTURE.invokeExact(snapshot, model);
+	}
+	
+	@Benchmark
+	public void render() throws Throwable{
+		
+		Simulation.RENDER.invokeExact(grid, flip ? before : after);
+		flip = !flip;
+	}
+	
+}
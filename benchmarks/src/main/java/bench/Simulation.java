@@ -0,0 +1,138 @@
+/**
+ * Simulation.java
+ * Handles to the simulation classes for the benchmarks
+ * The simulation is compiled in the default package, which a named package cannot import, so it is reached through
+ * method handles held in static finals; the JIT treats those as constants and inlines through them like direct calls
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+final class Simulation{
+	
+	// Model:
+	static final MethodHandle NEW_MODEL = constructor("Model", int.class, int.class);
+	static final MethodHandle SET_POPULATION = method("Model", "setPopulation", int.class);
+	static final MethodHandle SET_SEED = method("Model", "setSeed", long.class);
+	static final MethodHandle INITIALIZE_POSITIONS = method("Model", "initializePositions");
+	static final MethodHandle INITIALIZE_STATE = method("Model", "initializeDirectionsSignalsPhermones");
+	static final MethodHandle STEP = method("Model", "step");
+	static final MethodHandle UPDATE_DIRECTIONS = method("Model", "updateDirections");
+	static final MethodHandle UPDATE_PHERMONES = method("Model", "updatePhermones");
+	static final MethodHandle UPDATE_POSITIONS = method("Model", "updatePositions");
+	static final MethodHandle UPDATE_SIGNALS = method("Model", "updateSignals");
+	static final MethodHandle SET_ENGINE = method("Model", "setEngine", type("StepEngine"));
+	
+	// Step engines:
+	static final MethodHandle NEW_PARALLEL_ENGINE = constructor("ParallelStepEngine");
+	static final MethodHandle NEW_FUSED_ENGINE = constructor("FusedStepEngine");
+	static final MethodHandle SHUTDOWN = method("ParallelStepEngine", "shutdown");
+	
+	// Rendering:
+	static final MethodHandle NEW_SNAPSHOT = constructor("Snapshot");
+	static final MethodHandle CAPTURE = method("Snapshot", "capture", type("Model"));
+	static final MethodHandle NEW_GRID = constructor("GridJPanel", int.class, int.class);
+	static final MethodHandle LAYOUT_CELLS = method("GridJPanel", "layoutCells");
+	static final MethodHandle RENDER = method("GridJPanel", "render", type("Snapshot"));
+	
+	// Decay kernels:
+	static final MethodHandle DECAY_PHERMONES = method("DecayKernel", "decayPhermones", byte[].class, int.class, int.class, byte.class);
+	static final MethodHandle DECAY_SIGNALS = method("DecayKernel", "decaySignals", byte[].class, int.class, int.class);
+	
+	// Seed shared by every benchmark, so each parameter combination starts from the same state:
+	static final long SEED = 1;
+	
+	private Simulation(){}
+	
+	/**
+	 * Creates a size x size model with the given fraction of cells holding a mold, and runs it for a number of steps
+	 */
+	static Object newModel(int size, double density, int steps) throws Throwable{
+		
+		Object model = NEW_MODEL.invokeExact(size, size);
+		SET_POPULATION.invokeExact(model, Math.max(1, (int)(density * size * size)));
+		SET_SEED.invokeExact(model, SEED);
+		INITIALIZE_POSITIONS.invokeExact(model);
+		INITIALIZE_STATE.invokeExact(model);
+		
+		for( int s = 0; s < steps; s++ )
+			STEP.invokeExact(model);
+		return model;
+	}
+	
+	/**
+	 * Sets the step engine of a model by name: sequential (no engine), parallel or fused
+	 * @return the engine, or null for sequential
+	 */
+	static Object setEngine(Object model, String engine) throws Throwable{
+		
+		Object stepEngine;
+		if( engine.equals("sequential") )
+			stepEngine = null;
+		else if( engine.equals("parallel") )
+			stepEngine = NEW_PARALLEL_ENGINE.invokeExact();
+		else if( engine.equals("fused") )
+			stepEngine = NEW_FUSED_ENGINE.invokeExact();
+		else
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		
+		SET_ENGINE.invokeExact(model, stepEngine);
+		return stepEngine;
+	}
+	
+	/**
+	 * Stops the worker threads of an engine set by setEngine, if it has any
+	 */
+	static void shutdown(String engine, Object stepEngine) throws Throwable{
+		
+		if( engine.equals("parallel") )
+			SHUTDOWN.invokeExact(stepEngine);
+	}
+	
+	static Class<?> type(String name){
+		
+		try{
+			return Class.forName(name);
+		}
+		catch(ClassNotFoundException cnfe){
+			throw new IllegalStateException("Simulation class " + name + " is not on the class path", cnfe);
+		}
+	}
+	
+	/**
+	 * Handle to a constructor, typed to return Object
+	 */
+	static MethodHandle constructor(String className, Class<?>... parameters){
+		
+		try{
+			MethodHandle handle = MethodHandles.publicLookup().findConstructor(type(className), MethodType.methodType(void.class, parameters));
+			return handle.asType(handle.type().erase());
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException("No constructor for " + className, roe);
+		}
+	}
+	
+	/**
+	 * Handle to an instance method (package-private ones included), typed to take its receiver and any other
+	 * simulation objects as Object
+	 */
+	static MethodHandle method(String className, String name, Class<?>... parameters){
+		
+		try{
+			Method method = type(className).getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			return handle.asType(handle.type().erase());
+		}
+		catch(ReflectiveOperationException roe){
+			throw new IllegalStateException("No method " + className + "." + name, roe);
+		}
+	}
+	
+}
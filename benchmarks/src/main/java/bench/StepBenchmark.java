@@ -0,0 +1,53 @@
+/**
+ * StepBenchmark.java
+ * Time of a full step (all four update phases) over a matrix of grid sizes, mold densities and step engines
+ * The fused engine makes one pass over the grid per step where the others make one per phase; on Linux with perf,
+ * -prof perfnorm adds the cache misses and memory loads per step, to compare the traffic of the engines
+ *
+ * @author Philip Lin
+ */
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class StepBenchmark{
+	
+	@Param({ "50", "256", "1024", "4096", "8192" })
+	int size;
+	
+	@Param({ "0.001", "0.01", "0.1", "0.5" })
+	double density;
+	
+	@Param({ "sequential", "parallel", "fused" })
+	String engine;
+	
+	Object model;
+	Object stepEngine;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Throwable{
+		
+		model = Simulation.newModel(size, density, PhaseBenchmark.WARMUP_STEPS);
+		stepEngine = Simulation.setEngine(model, engine);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable{
+		
+		Simulation.shutdown(engine, stepEngine);
+	}
+	
+	@Benchmark
+	public void step() throws Throwable{
+		
+		Simulation.STEP.invokeExact(model);
+	}
+	
+}
@@ -0,0 +1,491 @@
+/**
+ * SegmentGrid.java
+ * Grid store on the JDK Foreign Memory API: the signal, phermone, position and direction planes are memory segments indexed by long,
+ * so a grid is limited neither by the heap nor by the Java array index limit
+ * The segments live on the heap, in native memory allocated in a resource scope (freed as a whole when the store is closed),
+ * or in a file mapped in that scope, where the file is the state itself and a checkpoint only flushes the mapped pages
+ * The kernels are written once against MemorySegment, through static accessors, so the same loops run on every kind of segment
+ * Kept apart from src since it needs JDK 17 and the incubator module:
+ *   javac --release 17 --add-modules jdk.incubator.foreign -cp bin -d bin foreign/SegmentGrid.java
+ *   java --add-modules jdk.incubator.foreign -cp bin HeadlessRunner --storage=mapped:grid.map --rows=32768 --cols=32768
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.SplittableRandom;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+public class SegmentGrid implements GridStore{
+	
+	// File header: identification, grid size and settings, step count, which position and direction planes are current,
+	// and whether the file was checkpointed after the last step that changed it
+	final static int MAGIC = 0x53475244;
+	final static int VERSION = 1;
+	final static long HEADER = 64;
+	final static long MAGIC_AT = 0;
+	final static long VERSION_AT = 4;
+	final static long ROWS_AT = 8;
+	final static long COLS_AT = 12;
+	final static long POPULATION_AT = 16;
+	final static long PHERMONE_MAX_AT = 20;
+	final static long PHERMONE_1_STEP_AT = 24;
+	final static long SIGNAL_LIFETIME_AT = 28;
+	final static long SEED_AT = 32;
+	final static long STEP_AT = 40;
+	final static long FRONT_AT = 48;
+	final static long CLEAN_AT = 49;
+	
+	// Planes after the header: signals, phermones, then two each of positions and directions (the current ones and the back buffers)
+	final static int PLANES = 6;
+	
+	// Storage:
+	private final ResourceScope scope;
+	private final MemorySegment file;
+	private final MemorySegment header;
+	private final MemorySegment signals;
+	private final MemorySegment phermones;
+	private final MemorySegment[] positions = new MemorySegment[2];
+	private final MemorySegment[] directions = new MemorySegment[2];
+	private final boolean mapped;
+	private int front;
+	private boolean clean;
+	
+	// Grid, with wrap-around tables as in the model (wrapRows holds the index of the first cell of each row):
+	private final int rows;
+	private final int cols;
+	private final long cells;
+	private final long[] wrapRows;
+	private final int[] wrapCols;
+	
+	// Settings:
+	private final int population;
+	private final int phermoneMax;
+	private final int phermone1Step;
+	private final int signalLifetime;
+	private final long seed;
+	private long stepCount;
+	
+	/**
+	 * Constructor
+	 * Allocates or maps the planes, and initializes them from the settings unless a mapped file already holds the grid
+	 * @param storage "heap", "native", or "mapped:" followed by the file to map
+	 * @param rows number of rows (grid height)
+	 * @param cols number of columns (grid width)
+	 * @param settings model whose population, seed and phermone and signal settings the grid starts from
+	 */
+	public SegmentGrid(String storage, int rows, int cols, Model settings) throws IOException{
+		
+		if( rows < 1 || cols < 1 )
+			throw new IllegalArgumentException("Unsupported grid size " + rows + "x" + cols);
+		
+		this.rows = rows;
+		this.cols = cols;
+		cells = (long)rows * cols;
+		population = settings.getPopulation();
+		phermoneMax = settings.getPhermoneMax();
+		phermone1Step = settings.getPhermone1Step();
+		signalLifetime = settings.getSignalLifetime();
+		seed = settings.getSeed();
+		
+		if( population < 1 || population > cells )
+			throw new IllegalArgumentException("Population must be between 1 and " + cells);
+		
+		wrapRows = new long[rows + 2];
+		wrapCols = new int[cols + 2];
+		for( int i = -1; i <= rows; i++ )
+			wrapRows[i + 1] = (long)((i + rows) % rows) * cols;
+		for( int j = -1; j <= cols; j++ )
+			wrapCols[j + 1] = (j + cols) % cols;
+		
+		scope = ResourceScope.newSharedScope();
+		long size = HEADER + PLANES * cells;
+		boolean resume = false;
+		
+		try{
+			if( storage.equals("heap") ){
+				
+				// Heap segments are backed by arrays, so each plane is limited to the array index limit
+				if( cells > Integer.MAX_VALUE - 8 )
+					throw new IllegalArgumentException("Heap storage holds at most " + (Integer.MAX_VALUE - 8) + " cells");
+				file = null;
+				mapped = false;
+				header = MemorySegment.ofArray(new byte[(int)HEADER]);
+				signals = MemorySegment.ofArray(new byte[(int)cells]);
+				phermones = MemorySegment.ofArray(new byte[(int)cells]);
+				for( int p = 0; p < 2; p++ ){
+					positions[p] = MemorySegment.ofArray(new byte[(int)cells]);
+					directions[p] = MemorySegment.ofArray(new byte[(int)cells]);
+				}
+			}
+			else{
+				mapped = storage.startsWith("mapped:");
+				if( storage.equals("native") )
+					file = MemorySegment.allocateNative(size, scope);
+				else if( storage.startsWith("mapped:") ){
+					Path path = Paths.get(storage.substring(7));
+					
+					if( Files.exists(path) && Files.size(path) > 0 ){
+						if( Files.size(path) != size )
+							throw new IOException(path + " does not hold a " + rows + "x" + cols + " grid");
+						resume = true;
+					}
+					else if( Files.exists(path) == false )
+						Files.createFile(path);
+					file = MemorySegment.mapFile(path, 0, size, FileChannel.MapMode.READ_WRITE, scope);
+				}
+				else
+					throw new IllegalArgumentException("Unknown storage: " + storage);
+				
+				header = file.asSlice(0, HEADER);
+				signals = plane(0);
+				phermones = plane(1);
+				for( int p = 0; p < 2; p++ ){
+					positions[p] = plane(2 + p);
+					directions[p] = plane(4 + p);
+				}
+			}
+			
+			if( resume )
+				readHeader(storage.substring(7));
+			else
+				initialize();
+		}
+		catch(IOException | RuntimeException e){
+			scope.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Slice of the file segment holding a plane
+	 */
+	private MemorySegment plane(int p){
+		
+		return file.asSlice(HEADER + p * cells, cells);
+	}
+	
+	/**
+	 * Checks that a mapped file holds this grid, checkpointed, and continues from its step
+	 */
+	private void readHeader(String path) throws IOException{
+		
+		if( MemoryAccess.getIntAtOffset(header, MAGIC_AT) != MAGIC || MemoryAccess.getIntAtOffset(header, VERSION_AT) != VERSION )
+			throw new IOException(path + " is not a grid file");
+		if( MemoryAccess.getIntAtOffset(header, ROWS_AT) != rows || MemoryAccess.getIntAtOffset(header, COLS_AT) != cols
+				|| MemoryAccess.getIntAtOffset(header, POPULATION_AT) != population
+				|| MemoryAccess.getIntAtOffset(header, PHERMONE_MAX_AT) != phermoneMax
+				|| MemoryAccess.getIntAtOffset(header, PHERMONE_1_STEP_AT) != phermone1Step
+				|| MemoryAccess.getIntAtOffset(header, SIGNAL_LIFETIME_AT) != signalLifetime
+				|| MemoryAccess.getLongAtOffset(header, SEED_AT) != seed )
+			throw new IOException(path + " holds a grid of other settings");
+		if( MemoryAccess.getByteAtOffset(header, CLEAN_AT) == 0 )
+			throw new IOException(path + " was not checkpointed after its last step");
+		
+		stepCount = MemoryAccess.getLongAtOffset(header, STEP_AT);
+		front = MemoryAccess.getByteAtOffset(header, FRONT_AT);
+		clean = true;
+	}
+	
+	/**
+	 * Writes the header fields
+	 */
+	private void writeHeader(){
+		
+		MemoryAccess.setIntAtOffset(header, MAGIC_AT, MAGIC);
+		MemoryAccess.setIntAtOffset(header, VERSION_AT, VERSION);
+		MemoryAccess.setIntAtOffset(header, ROWS_AT, rows);
+		MemoryAccess.setIntAtOffset(header, COLS_AT, cols);
+		MemoryAccess.setIntAtOffset(header, POPULATION_AT, population);
+		MemoryAccess.setIntAtOffset(header, PHERMONE_MAX_AT, phermoneMax);
+		MemoryAccess.setIntAtOffset(header, PHERMONE_1_STEP_AT, phermone1Step);
+		MemoryAccess.setIntAtOffset(header, SIGNAL_LIFETIME_AT, signalLifetime);
+		MemoryAccess.setLongAtOffset(header, SEED_AT, seed);
+		MemoryAccess.setLongAtOffset(header, STEP_AT, stepCount);
+		MemoryAccess.setByteAtOffset(header, FRONT_AT, (byte)front);
+	}
+	
+	/**
+	 * Places the molds and sets their directions, signals and phermones exactly as the model's initialization does for the same seed
+	 */
+	private void initialize() throws IOException{
+		
+		SplittableRandom generator = new SplittableRandom(seed);
+		long directionSeed = CellRandom.split(seed, Model.DIRECTION_STREAM);
+		
+		signals.fill((byte)0);
+		phermones.fill((byte)0);
+		for( int p = 0; p < 2; p++ ){
+			positions[p].fill((byte)0);
+			directions[p].fill((byte)0);
+		}
+		front = 0;
+		stepCount = 0;
+		
+		for( int m = 0; m < population; m++ ){
+			
+			long k = (long)generator.nextInt(rows) * cols + generator.nextInt(cols);
+			if( get(positions[0], k) == 0 )
+				set(positions[0], k, 1);
+			else
+				--m;
+		}
+		
+		for( long k = 0; k < cells; k++ ){
+			
+			if( get(positions[0], k) != 0 ){
+				set(directions[0], k, CellRandom.next(directionSeed, k, 8));
+				set(signals, k, signalLifetime + 1);
+				set(phermones, k, phermoneMax);
+			}
+		}
+		checkpoint();
+	}
+	
+	public void step(){
+		
+		// A mapped file is marked as changing, on disk, before its planes are
+		if( mapped && clean ){
+			MemoryAccess.setByteAtOffset(header, CLEAN_AT, (byte)0);
+			header.force();
+			clean = false;
+		}
+		
+		updateDirections();
+		updatePhermones();
+		updatePositions();
+		updateSignals();
+		stepCount++;
+	}
+	
+	/**
+	 * Sets a new direction for every mold, towards the highest phermone level ahead of it
+	 */
+	void updateDirections(){
+		
+		MemorySegment positions = this.positions[front], directions = this.directions[front];
+		
+		for( int i = 0; i < rows; i++ ){
+			
+			long row = wrapRows[i + 1];
+			for( int j = 0; j < cols; j++ ){
+				
+				long k = row + j;
+				if( get(positions, k) == 0 )
+					continue;
+				
+				int direction = get(directions, k), sensors = 3 * direction;
+				int choice = findDirection(get(phermones, neighbour(i, j, Model.SENSORS[sensors])),
+						get(phermones, neighbour(i, j, Model.SENSORS[sensors + 1])),
+						get(phermones, neighbour(i, j, Model.SENSORS[sensors + 2])), k);
+				set(directions, k, (direction + choice - 1) & 7);
+			}
+		}
+	}
+	
+	/**
+	 * Decays the phermone levels, then adds phermone from the neighbouring signals of level 1
+	 */
+	void updatePhermones(){
+		
+		int max = phermoneMax, step = phermone1Step, lifetime = signalLifetime;
+		
+		for( int i = 0; i < rows; i++ ){
+			
+			long up = wrapRows[i], row = wrapRows[i + 1], down = wrapRows[i + 2];
+			for( int j = 0; j < cols; j++ ){
+				
+				long k = row + j;
+				int level = get(phermones, k);
+				if( level > max )
+					level = max;
+				if( level > 0 )
+					level--;
+				
+				// A cell holding a mold is set to the max, and only takes deposits from the cells after it, as in the model
+				int left = wrapCols[j], right = wrapCols[j + 2];
+				long after = get(signals, k) == lifetime ? k : -1;
+				int deposits = deposit(up + left, after) + deposit(up + j, after) + deposit(up + right, after)
+						+ deposit(row + left, after) + deposit(row + right, after)
+						+ deposit(down + left, after) + deposit(down + j, after) + deposit(down + right, after);
+				set(phermones, k, after >= 0 ? max + deposits * step : level + deposits * step);
+			}
+		}
+	}
+	
+	/**
+	 * 1 if the signal of cell n deposits phermone (its level is 1 and it comes after cell after), 0 otherwise
+	 */
+	int deposit(long n, long after){
+		
+		return get(signals, n) == 1 && n > after ? 1 : 0;
+	}
+	
+	/**
+	 * Moves every mold one cell in its direction, in row-major order: a mold only moves if no earlier mold has taken the cell
+	 */
+	void updatePositions(){
+		
+		MemorySegment positions = this.positions[front], directions = this.directions[front];
+		MemorySegment nextPositions = this.positions[1 - front], nextDirections = this.directions[1 - front];
+		
+		for( int i = 0; i < rows; i++ ){
+			
+			long row = wrapRows[i + 1];
+			for( int j = 0; j < cols; j++ ){
+				
+				long k = row + j;
+				if( get(positions, k) == 0 )
+					continue;
+				
+				int direction = get(directions, k);
+				long target = neighbour(i, j, direction);
+				if( get(nextPositions, target) == 0 )
+					set(nextPositions, target, 1);
+				else
+					set(nextPositions, k, 1);
+				set(nextDirections, target, direction);
+				
+				// Leaves the old planes clear for the next step
+				set(positions, k, 0);
+				set(directions, k, 0);
+			}
+		}
+		front = 1 - front;
+	}
+	
+	/**
+	 * Reduces every signal by 1, and sets the signal of every cell holding a mold to the signal lifetime
+	 */
+	void updateSignals(){
+		
+		MemorySegment positions = this.positions[front];
+		
+		for( long k = 0; k < cells; k++ ){
+			
+			int level = get(signals, k);
+			if( get(positions, k) != 0 )
+				level = signalLifetime;
+			else if( level > 0 )
+				level--;
+			set(signals, k, level);
+		}
+	}
+	
+	/**
+	 * Index of the cell next to (i, j) in the direction of a direction code, wrapping around the grid edges
+	 */
+	long neighbour(int i, int j, int direction){
+		
+		return wrapRows[i + 1 + Model.DIRECTION_ROWS[direction]] + wrapCols[j + 1 + Model.DIRECTION_COLS[direction]];
+	}
+	
+	/**
+	 * Chooses between turning left (0), going straight (1) and turning right (2) towards the highest phermone level,
+	 * breaking ties with the same draws as the model
+	 */
+	int findDirection(int a, int b, int c, long cell){
+		
+		if( a == b && a == c )
+			return random(cell, 3);
+		else if( a == b && a > c )
+			return random(cell, 2);
+		else if( a == c && a > b )
+			return 2 * random(cell, 2);
+		else if( b == c && b > a )
+			return 1 + random(cell, 2);
+		else{
+			if( Math.max(a, Math.max(b, c)) == a )
+				return 0;
+			else if( Math.max(a, Math.max(b, c)) == b )
+				return 1;
+			else
+				return 2;
+		}
+	}
+	
+	/**
+	 * Random number in [0, bound) for a cell in the current step, keyed like the model's
+	 */
+	int random(long cell, int bound){
+		
+		return CellRandom.next(seed, stepCount * cells + cell, bound);
+	}
+	
+	public long getStepCount(){
+		
+		return stepCount;
+	}
+	
+	public long[] census(){
+		
+		MemorySegment positions = this.positions[front];
+		long molds = 0, signalled = 0, phermoneTotal = 0;
+		
+		for( long k = 0; k < cells; k++ ){
+			
+			if( get(positions, k) != 0 )
+				molds++;
+			if( get(signals, k) > 0 )
+				signalled++;
+			phermoneTotal += get(phermones, k);
+		}
+		return new long[]{ molds, signalled, phermoneTotal };
+	}
+	
+	public void copyTo(Model model){
+		
+		if( model.getRows() != rows || model.getCols() != cols )
+			throw new IllegalArgumentException("Model is not " + rows + "x" + cols);
+		
+		byte[] occupied = positions[front].toByteArray();
+		boolean[] modelPositions = new boolean[occupied.length];
+		for( int k = 0; k < occupied.length; k++ )
+			modelPositions[k] = occupied[k] != 0;
+		
+		model.setPositions(modelPositions);
+		model.setDirections(directions[front].toByteArray());
+		model.setSignals(signals.toByteArray());
+		model.setPhermones(phermones.toByteArray());
+		model.setStepCount(stepCount);
+	}
+	
+	public void checkpoint() throws IOException{
+		
+		if( mapped == false )
+			return;
+		
+		writeHeader();
+		MemoryAccess.setByteAtOffset(header, CLEAN_AT, (byte)1);
+		try{
+			file.force();
+		}
+		catch(UncheckedIOException uioe){
+			throw uioe.getCause();
+		}
+		clean = true;
+	}
+	
+	/**
+	 * Checkpoints a mapped store, then frees or unmaps the segments
+	 */
+	public void close() throws IOException{
+		
+		try{
+			checkpoint();
+		}
+		finally{
+			scope.close();
+		}
+	}
+	
+	/*
+	 * Accessors, static so the kernels bind to them directly whichever kind of segment they run on
+	 */
+	static int get(MemorySegment plane, long k){ return MemoryAccess.getByteAtOffset(plane, k); }
+	static void set(MemorySegment plane, long k, int value){ MemoryAccess.setByteAtOffset(plane, k, (byte)value); }
+	
+}
@@ -0,0 +1,58 @@
+/**
+ * CellRandom.java
+ * Counter-based random numbers: each draw hashes a seed with a counter, so there is no generator state to share
+ * Any thread asking for the same (seed, counter) pair gets the same number, whatever order the draws are made in
+ * Streams for different purposes are split from a master seed by hashing it with a stream number
+ *
+ * @author Philip Lin
+ */
+
+final class CellRandom{
+	
+	// Weyl sequence increment of SplitMix64:
+	final static long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	
+	private CellRandom(){}
+	
+	/**
+	 * Random number in [0, bound) for a counter in the stream of a seed
+	 * @param seed seed of the stream
+	 * @param counter position in the stream, e.g. a cell index combined with a step count
+	 * @param bound upper bound (exclusive), must be positive
+	 */
+	static int next(long seed, long counter, int bound){
+		
+		return (int)((hash(seed, counter) >>> 1) % bound);
+	}
+	
+	/**
+	 * Random 64-bit value for a counter in the stream of a seed
+	 * @param seed seed of the stream
+	 * @param counter position in the stream
+	 */
+	static long hash(long seed, long counter){
+		
+		return mix(seed + counter * GOLDEN_GAMMA);
+	}
+	
+	/**
+	 * Seed of an independent stream derived from a master seed
+	 * @param seed master seed
+	 * @param stream number of the stream
+	 */
+	static long split(long seed, long stream){
+		
+		return mix(seed ^ mix(stream + GOLDEN_GAMMA));
+	}
+	
+	/**
+	 * SplitMix64 finalizer
+	 */
+	static long mix(long z){
+		
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+}
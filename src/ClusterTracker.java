@@ -0,0 +1,544 @@
+/**
+ * ClusterTracker.java
+ * Aggregation statistics of the molds of a model: the number of clusters, the size of the largest and the mean size
+ * A cluster is a group of molds in adjacent cells, counting all 8 neighbours of a cell and wrapping around the grid edges
+ * The clusters are kept up to date from the moves of each step rather than found again from the whole grid:
+ * a cell that gains a mold joins the clusters around it through a union-find over cluster labels, and a cell that loses one
+ * only costs a relabeling of its cluster when the neighbours it leaves behind might no longer be connected
+ * The whole grid is only scanned again when the position array was replaced since the last step
+ *
+ * @author Philip Lin
+ */
+import java.util.Arrays;
+
+public class ClusterTracker{
+	
+	// Offsets (rows, cols) of the 8 neighbours, in order around the cell:
+	final static int[] RING_ROWS = { -1, -1, -1, 0, 1, 1, 1, 0 };
+	final static int[] RING_COLS = { -1, 0, 1, 1, 1, 0, -1, -1 };
+	
+	// Number of separate groups formed by each set of occupied neighbours (bit n set for neighbour n):
+	final static byte[] RING_GROUPS = ringGroups();
+	
+	// Marks of the cells a step changed, and of the cells reached while labeling:
+	final static byte LEFT = 1;
+	final static byte ENTERED = 2;
+	final static byte VISITED = 4;
+	
+	// Labels in use beyond twice the clusters (plus this) before the labels are compacted:
+	final static int SPARE_LABELS = 64;
+	
+	// Fraction of the molds (as a divisor) that may change cells in a step before all clusters are relabeled instead:
+	final static int MAX_CHANGED_FRACTION = 8;
+	
+	// Communicates with:
+	private final Model model;
+	
+	// Position array the clusters were last brought up to date with:
+	private boolean[] tracked;
+	private int rows;
+	private int cols;
+	
+	// Per cell (label only meaningful for cells holding a mold):
+	private int[] label;
+	private byte[] marks;
+	
+	// Per label, a union-find of the labels of each cluster (size, count of labels and dirty flag only meaningful for roots):
+	private int[] parent;
+	private int[] size;
+	private int[] labelCount;
+	private boolean[] dirty;
+	private int labels;
+	private int[] freeLabels;
+	private int freeCount;
+	
+	// Number of clusters of each size, and the statistics:
+	private int[] bySize;
+	private int largest;
+	private int clusters;
+	private int molds;
+	
+	// Moves logged during the current step, neighbours to relabel from, and the labeling queue:
+	private int[] moveFrom;
+	private int[] moveTo;
+	private int moves;
+	private int[] seeds;
+	private int seedCount;
+	private int[] queue;
+	private int queued;
+	
+	/**
+	 * Constructor
+	 * The clusters are found from the whole grid when first asked for
+	 * @param model model whose molds are tracked
+	 */
+	public ClusterTracker(Model model){
+		
+		this.model = model;
+		
+		parent = new int[16];
+		size = new int[16];
+		labelCount = new int[16];
+		dirty = new boolean[16];
+		freeLabels = new int[16];
+		moveFrom = new int[16];
+		moveTo = new int[16];
+		seeds = new int[16];
+		queue = new int[16];
+		bySize = new int[1];
+	}
+	
+	public int getClusterCount(){ return clusters; }
+	public int getLargestCluster(){ return largest; }
+	public int getMolds(){ return molds; }
+	public double getMeanClusterSize(){ return clusters > 0 ? (double)molds / clusters : 0; }
+	
+	/**
+	 * Logs the move of one mold during the position update
+	 * @param from cell the mold was in
+	 * @param to cell the mold ended up in, or -1 if it merged with another mold
+	 */
+	void moved(int from, int to){
+		
+		if( moves == moveFrom.length ){
+			moveFrom = Arrays.copyOf(moveFrom, moves * 2);
+			moveTo = Arrays.copyOf(moveTo, moves * 2);
+		}
+		moveFrom[moves] = from;
+		moveTo[moves] = to;
+		moves++;
+	}
+	
+	/**
+	 * Brings the clusters up to date with the moves logged since the last step, once the position arrays are swapped
+	 * Cells both left and entered still hold a mold, so only the cells that changed are applied:
+	 * first the cells left, then the cells entered, and last the relabeling of clusters that may have split
+	 * If too many cells changed, the clusters are labeled again from the cells the molds moved to, without scanning the grid
+	 * @param before position array before the step
+	 */
+	void stepped(boolean[] before){
+		
+		boolean[] after = model.getPositions();
+		
+		if( tracked != before || tracked == null ){
+			relabel(after, null, 0);
+			return;
+		}
+		
+		for( int m = 0; m < moves; m++ ){
+			marks[moveFrom[m]] |= LEFT;
+			if( moveTo[m] >= 0 )
+				marks[moveTo[m]] |= ENTERED;
+		}
+		int changed = 0;
+		for( int m = 0; m < moves; m++ ){
+			if( marks[moveFrom[m]] == (LEFT | ENTERED) )
+				marks[moveFrom[m]] = 0;
+			else
+				changed++;
+		}
+		
+		// When many of the molds changed cells, labeling the cells now held is cheaper than applying the changes one by one
+		if( changed > molds / MAX_CHANGED_FRACTION ){
+			for( int m = 0; m < moves; m++ ){
+				marks[moveFrom[m]] = 0;
+				if( moveTo[m] >= 0 )
+					marks[moveTo[m]] = 0;
+			}
+			relabel(after, moveTo, moves);
+			return;
+		}
+		
+		for( int m = 0; m < moves; m++ ){
+			if( marks[moveFrom[m]] == LEFT ){
+				remove(after, moveFrom[m]);
+				marks[moveFrom[m]] = 0;
+			}
+		}
+		for( int m = 0; m < moves; m++ ){
+			if( moveTo[m] >= 0 && marks[moveTo[m]] == ENTERED ){
+				add(after, moveTo[m]);
+				marks[moveTo[m]] = 0;
+			}
+		}
+		
+		relabelDirty(after);
+		
+		// Labels of clusters that merged and then emptied are not freed, so they are compacted from the cells now held
+		if( labels - freeCount > 2 * clusters + SPARE_LABELS )
+			relabel(after, moveTo, moves);
+		
+		tracked = after;
+		moves = 0;
+	}
+	
+	/**
+	 * Finds the clusters from the whole grid, if the position array was replaced since they were last brought up to date
+	 */
+	void track(){
+		
+		if( tracked != model.getPositions() || tracked == null )
+			relabel(model.getPositions(), null, 0);
+	}
+	
+	/**
+	 * Marks the clusters out of date, for positions written other than by a step, so they are found from the whole grid
+	 * when next used
+	 */
+	void forget(){
+		
+		tracked = null;
+		moves = 0;
+	}
+	
+	/**
+	 * Removes the mold of a cell from its cluster
+	 * The cluster is marked dirty, and the neighbours left behind are kept to relabel it from, if they form more than one group
+	 * around the cell (or the cluster is already dirty); otherwise they stay connected through each other
+	 */
+	private void remove(boolean[] after, int cell){
+		
+		int root = find(label[cell]);
+		int i = cell / cols, j = cell - i * cols;
+		
+		int ring = 0;
+		for( int n = 0; n < 8; n++ ){
+			if( isOccupied(after, neighbour(i, j, n)) )
+				ring |= 1 << n;
+		}
+		
+		countSize(size[root], -1);
+		size[root]--;
+		molds--;
+		
+		if( size[root] == 0 ){
+			clusters--;
+			dirty[root] = false;
+			if( labelCount[root] == 1 )
+				freeLabels[freeCount++] = root;
+			return;
+		}
+		countSize(size[root], 1);
+		
+		// With fewer than 3 rows or columns a neighbour can be the same cell twice, so the groups cannot be counted
+		if( dirty[root] == false && RING_GROUPS[ring] <= 1 && rows >= 3 && cols >= 3 )
+			return;
+		
+		dirty[root] = true;
+		for( int n = 0; n < 8; n++ ){
+			if( (ring & 1 << n) != 0 ){
+				if( seedCount == seeds.length )
+					seeds = Arrays.copyOf(seeds, seedCount * 2);
+				seeds[seedCount++] = neighbour(i, j, n);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the mold of a cell, merging the clusters of its neighbours with it, or starting a new cluster if it has none
+	 */
+	private void add(boolean[] after, int cell){
+		
+		int root = -1;
+		int i = cell / cols, j = cell - i * cols;
+		
+		for( int n = 0; n < 8; n++ ){
+			
+			int next = neighbour(i, j, n);
+			if( isOccupied(after, next) == false )
+				continue;
+			
+			int other = find(label[next]);
+			if( root < 0 )
+				root = other;
+			else if( other != root )
+				root = union(root, other);
+		}
+		
+		if( root < 0 ){
+			root = newLabel();
+			clusters++;
+		}
+		else
+			countSize(size[root], -1);
+		
+		size[root]++;
+		countSize(size[root], 1);
+		label[cell] = root;
+		molds++;
+	}
+	
+	/**
+	 * Relabels the dirty clusters from the neighbours kept when they lost molds
+	 * Every part a cluster split into holds one of them, so each part is found by labeling from them
+	 */
+	private void relabelDirty(boolean[] after){
+		
+		queued = 0;
+		for( int s = 0; s < seedCount; s++ ){
+			
+			int seed = seeds[s];
+			if( after[seed] == false || marks[seed] == VISITED )
+				continue;
+			
+			// The old label is retired, and its cells all get new ones
+			int root = find(label[seed]);
+			if( size[root] > 0 ){
+				countSize(size[root], -1);
+				size[root] = 0;
+				dirty[root] = false;
+				clusters--;
+			}
+			labelCluster(after, seed);
+		}
+		
+		for( int q = 0; q < queued; q++ )
+			marks[queue[q]] = 0;
+		seedCount = 0;
+	}
+	
+	/**
+	 * Labels every cluster from scratch
+	 * @param after position array
+	 * @param cells cells holding molds (some may be -1), or null to scan the whole grid for them
+	 * @param count number of cells
+	 */
+	private void relabel(boolean[] after, int[] cells, int count){
+		
+		rows = model.getRows();
+		cols = model.getCols();
+		tracked = after;
+		moves = 0;
+		seedCount = 0;
+		
+		labels = 0;
+		freeCount = 0;
+		clusters = 0;
+		largest = 0;
+		molds = 0;
+		queued = 0;
+		
+		if( after == null )
+			return;
+		
+		if( label == null || label.length != after.length ){
+			label = new int[after.length];
+			marks = new byte[after.length];
+		}
+		
+		int total = 0;
+		if( cells == null ){
+			for( boolean position : after ){
+				if( position )
+					total++;
+			}
+		}
+		else
+			total = count;
+		
+		if( bySize.length < total + 1 )
+			bySize = new int[total + 1];
+		else
+			Arrays.fill(bySize, 0);
+		if( queue.length < total )
+			queue = new int[total];
+		
+		if( cells == null ){
+			for( int k = 0; k < after.length; k++ ){
+				if( after[k] && marks[k] != VISITED )
+					labelCluster(after, k);
+			}
+		}
+		else{
+			for( int c = 0; c < count; c++ ){
+				if( cells[c] >= 0 && after[cells[c]] && marks[cells[c]] != VISITED )
+					labelCluster(after, cells[c]);
+			}
+		}
+		
+		for( int q = 0; q < queued; q++ )
+			marks[queue[q]] = 0;
+		molds = queued;
+	}
+	
+	/**
+	 * Gives a new label to the cluster holding a cell, found breadth first
+	 */
+	private void labelCluster(boolean[] after, int start){
+		
+		int root = newLabel();
+		int first = queued, head = queued;
+		
+		marks[start] = VISITED;
+		enqueue(start);
+		
+		while( head < queued ){
+			
+			int cell = queue[head++];
+			int i = cell / cols, j = cell - i * cols;
+			label[cell] = root;
+			
+			for( int n = 0; n < 8; n++ ){
+				
+				int next = neighbour(i, j, n);
+				if( after[next] && marks[next] != VISITED ){
+					marks[next] = VISITED;
+					enqueue(next);
+				}
+			}
+		}
+		
+		size[root] = queued - first;
+		countSize(size[root], 1);
+		clusters++;
+	}
+	
+	private void enqueue(int cell){
+		
+		if( queued == queue.length )
+			queue = Arrays.copyOf(queue, queued * 2);
+		queue[queued++] = cell;
+	}
+	
+	/**
+	 * Whether a cell holds a mold part way through applying a step: cells left are held until they are removed,
+	 * and cells entered are only held once they are added
+	 */
+	private boolean isOccupied(boolean[] after, int cell){
+		
+		return marks[cell] == LEFT || (after[cell] && marks[cell] != ENTERED);
+	}
+	
+	/**
+	 * Index of neighbour n of cell (i, j), wrapping around the grid edges
+	 */
+	private int neighbour(int i, int j, int n){
+		
+		int row = i + RING_ROWS[n], col = j + RING_COLS[n];
+		
+		if( row < 0 )
+			row += rows;
+		else if( row >= rows )
+			row -= rows;
+		if( col < 0 )
+			col += cols;
+		else if( col >= cols )
+			col -= cols;
+		return row * cols + col;
+	}
+	
+	/**
+	 * Root label of a label, halving the path to it
+	 */
+	private int find(int l){
+		
+		while( parent[l] != l ){
+			parent[l] = parent[parent[l]];
+			l = parent[l];
+		}
+		return l;
+	}
+	
+	/**
+	 * Merges two clusters, under the root of the larger
+	 * @return root of the merged cluster
+	 */
+	private int union(int a, int b){
+		
+		if( size[a] < size[b] ){
+			int swap = a;
+			a = b;
+			b = swap;
+		}
+		
+		countSize(size[a], -1);
+		countSize(size[b], -1);
+		parent[b] = a;
+		size[a] += size[b];
+		labelCount[a] += labelCount[b];
+		dirty[a] |= dirty[b];
+		countSize(size[a], 1);
+		clusters--;
+		
+		return a;
+	}
+	
+	/**
+	 * Takes a free label, or a new one
+	 */
+	private int newLabel(){
+		
+		int l;
+		if( freeCount > 0 )
+			l = freeLabels[--freeCount];
+		else{
+			if( labels == parent.length ){
+				parent = Arrays.copyOf(parent, labels * 2);
+				size = Arrays.copyOf(size, labels * 2);
+				labelCount = Arrays.copyOf(labelCount, labels * 2);
+				dirty = Arrays.copyOf(dirty, labels * 2);
+				freeLabels = Arrays.copyOf(freeLabels, labels * 2);
+			}
+			l = labels++;
+		}
+		
+		parent[l] = l;
+		size[l] = 0;
+		labelCount[l] = 1;
+		dirty[l] = false;
+		return l;
+	}
+	
+	/**
+	 * Adds to the number of clusters of a size, keeping track of the largest
+	 */
+	private void countSize(int clusterSize, int change){
+		
+		if( clusterSize == 0 )
+			return;
+		if( clusterSize >= bySize.length )
+			bySize = Arrays.copyOf(bySize, Math.max(clusterSize + 1, bySize.length * 2));
+		
+		bySize[clusterSize] += change;
+		if( change > 0 && clusterSize > largest )
+			largest = clusterSize;
+		while( largest > 0 && bySize[largest] == 0 )
+			largest--;
+	}
+	
+	/**
+	 * Counts the groups of occupied neighbours for every set of neighbours, two neighbours being adjacent if they touch
+	 */
+	static byte[] ringGroups(){
+		
+		byte[] groups = new byte[256];
+		
+		for( int ring = 0; ring < 256; ring++ ){
+			
+			int unseen = ring, count = 0;
+			while( unseen != 0 ){
+				
+				// Flood one group from its lowest neighbour
+				int group = 0, grown = Integer.lowestOneBit(unseen);
+				while( grown != group ){
+					group = grown;
+					for( int n = 0; n < 8; n++ ){
+						if( (group & 1 << n) == 0 )
+							continue;
+						for( int m = 0; m < 8; m++ ){
+							if( (unseen & 1 << m) != 0 && Math.abs(RING_ROWS[n] - RING_ROWS[m]) <= 1
+									&& Math.abs(RING_COLS[n] - RING_COLS[m]) <= 1 )
+								grown |= 1 << m;
+						}
+					}
+				}
+				
+				unseen &= ~group;
+				count++;
+			}
+			groups[ring] = (byte)count;
+		}
+		return groups;
+	}
+	
+}
@@ -0,0 +1,49 @@
+/**
+ * DecayKernel.java
+ * Element-wise passes of a step over runs of cells of the flat model arrays
+ * The scalar kernel always works; a SIMD kernel built on the JDK Vector API (in the vector source folder) is used instead
+ * when it was compiled, the jdk.incubator.vector module is added at startup, and -Dslimemold.simd is not false
+ *
+ * @author Philip Lin
+ */
+
+public interface DecayKernel{
+	
+	/**
+	 * Clamps the phermone levels of a run of cells to the max, then reduces every level above 0 by 1
+	 * @param phermones phermone array
+	 * @param from first cell of the run
+	 * @param to cell after the last cell of the run
+	 * @param max phermone max
+	 */
+	void decayPhermones(byte[] phermones, int from, int to, byte max);
+	
+	/**
+	 * Reduces every signal above 0 of a run of cells by 1
+	 * @param signals signal array
+	 * @param from first cell of the run
+	 * @param to cell after the last cell of the run
+	 */
+	void decaySignals(byte[] signals, int from, int to);
+	
+	/**
+	 * Chooses the kernel once, at startup
+	 * The SIMD kernel is only chosen if it gives the same results as the scalar kernel for every byte value
+	 */
+	static DecayKernel select(){
+		
+		DecayKernel scalar = new ScalarDecayKernel();
+		if( "false".equals(System.getProperty("slimemold.simd")) )
+			return scalar;
+		
+		try{
+			DecayKernel simd = (DecayKernel)Class.forName("VectorDecayKernel").getDeclaredConstructor().newInstance();
+			return ScalarDecayKernel.sameResults(simd, scalar) ? simd : scalar;
+		}
+		catch(ReflectiveOperationException | LinkageError e){
+			// Not compiled, or the module was not added
+			return scalar;
+		}
+	}
+	
+}
@@ -0,0 +1,607 @@
+/**
+ * FrameServer.java
+ * Embedded HTTP/WebSocket server that streams the state of a running model to any number of remote viewers
+ * GET / serves a page that draws the stream on a canvas; GET /frames upgrades to a WebSocket carrying one binary message per frame
+ *
+ * The stepping thread only copies the model arrays into one of three pooled frames in publish, and never waits on the server:
+ * if the server has not taken the last frame published yet, that frame is dropped for the newer one
+ * The server thread encodes each frame it takes once, as a delta of the cells that changed since the frame before it
+ * (molds that moved or turned, and cells whose signal or phermone level changed), plus a keyframe of every cell whenever a viewer
+ * needs one, and shares the encoded messages between the viewers
+ * Every viewer has its own bounded queue: a viewer that falls MAX_QUEUED frames behind has its queued deltas dropped, and is
+ * sent a keyframe with the next frame to catch up from
+ *
+ * Message (big-endian): type (KEYFRAME or DELTA), model step, rows, cols, then
+ *   keyframe: the state of every cell, 16 bits each (see StepJournal.cellState)
+ *   delta: number of changed cells, then for each its index (as a varint gap from the one before) and state
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FrameServer implements Closeable{
+	
+	// Message types:
+	final static byte KEYFRAME = 1;
+	final static byte DELTA = 2;
+	final static int MESSAGE_HEADER_BYTES = 1 + 8 + 4 + 4;
+	
+	// Limits:
+	final static int MAX_QUEUED = 4;
+	final static int MAX_REQUEST_BYTES = 4096;
+	
+	// WebSocket handshake key suffix (RFC 6455):
+	final static String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+	
+	// Frames: the last one published and not yet taken by the server, and the ones free to be published into
+	private final AtomicReference<Frame> latest = new AtomicReference<Frame>();
+	private final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(3);
+	
+	// Server thread state: cell states as of the last frame encoded
+	private short[] previous;
+	
+	// Statistics:
+	private volatile int viewers;
+	private volatile long published;
+	private volatile long dropped;
+	private volatile long resyncs;
+	
+	/**
+	 * Constructor
+	 * Starts listening, and the server thread
+	 * @param address address to listen on
+	 */
+	public FrameServer(InetSocketAddress address) throws IOException{
+		
+		server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+		selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		
+		for( int i = 0; i < 3; i++ )
+			free.add(new Frame());
+		
+		thread = new Thread(new Runnable(){
+			public void run(){
+				FrameServer.this.serve();
+			}
+		}, "FrameServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Address the server listens on
+	 */
+	public InetSocketAddress getAddress() throws IOException{ return (InetSocketAddress)server.getLocalAddress(); }
+	
+	/**
+	 * Publishes the current state of the model as the next frame
+	 * Must be called while no step is running on the model; never waits on the server or the viewers, and copies nothing
+	 * while no viewer is connected
+	 * @param model model to be streamed
+	 */
+	public void publish(Model model){
+		
+		if( viewers == 0 )
+			return;
+		
+		Frame frame = free.poll();
+		if( frame == null )
+			return;
+		frame.capture(model);
+		
+		Frame replaced = latest.getAndSet(frame);
+		if( replaced != null ){
+			free.offer(replaced);
+			dropped++;
+		}
+		published++;
+		selector.wakeup();
+	}
+	
+	public int getViewers(){ return viewers; }
+	public long getPublished(){ return published; }
+	public long getDropped(){ return dropped; }
+	public long getResyncs(){ return resyncs; }
+	
+	/**
+	 * Server thread: accepts viewers, answers their requests, and sends them the frames published
+	 */
+	private void serve(){
+		
+		while( running ){
+			
+			try{
+				selector.select();
+			}
+			catch(IOException ioe){
+				break;
+			}
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while( keys.hasNext() ){
+				
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				try{
+					if( key.isValid() && key.isAcceptable() ){
+						SocketChannel channel = server.accept();
+						if( channel != null ){
+							channel.configureBlocking(false);
+							channel.socket().setTcpNoDelay(true);
+							channel.register(selector, SelectionKey.OP_READ, new Viewer(channel));
+						}
+						continue;
+					}
+					
+					Viewer viewer = (Viewer)key.attachment();
+					if( key.isValid() && key.isReadable() )
+						viewer.read();
+					if( key.isValid() && key.isWritable() )
+						viewer.flush();
+				}
+				catch(IOException ioe){
+					if( key.attachment() instanceof Viewer )
+						((Viewer)key.attachment()).close();
+				}
+			}
+			
+			Frame frame = latest.getAndSet(null);
+			if( frame != null ){
+				broadcast(frame);
+				free.offer(frame);
+			}
+		}
+		
+		for( SelectionKey key : selector.keys() ){
+			if( key.attachment() instanceof Viewer )
+				((Viewer)key.attachment()).close();
+		}
+	}
+	
+	/**
+	 * Encodes a frame and queues it for every viewer: the delta, or the keyframe for viewers that need one
+	 */
+	private void broadcast(Frame frame){
+		
+		boolean resync = previous == null || previous.length != frame.cells();
+		if( resync )
+			previous = new short[frame.cells()];
+		
+		ByteBuffer delta = encodeDelta(frame), keyframe = null;
+		
+		for( SelectionKey key : selector.keys() ){
+			
+			if( !(key.attachment() instanceof Viewer) || !key.isValid() )
+				continue;
+			
+			Viewer viewer = (Viewer)key.attachment();
+			if( viewer.upgraded == false || viewer.closing )
+				continue;
+			
+			if( resync || viewer.resync ){
+				if( keyframe == null )
+					keyframe = encodeKeyframe(frame);
+				viewer.dropQueued();
+				viewer.queue.add(keyframe.duplicate());
+				viewer.resync = false;
+			}
+			else if( viewer.queued() >= MAX_QUEUED ){
+				// Too far behind: drop the queued deltas and catch up from a keyframe with the next frame
+				viewer.dropQueued();
+				viewer.resync = true;
+				resyncs++;
+			}
+			else
+				viewer.queue.add(delta.duplicate());
+			
+			try{
+				viewer.flush();
+			}
+			catch(IOException ioe){
+				viewer.close();
+			}
+		}
+	}
+	
+	/**
+	 * Encodes the cells that changed since the last frame encoded, and takes the frame's states as the ones to compare against
+	 */
+	private ByteBuffer encodeDelta(Frame frame){
+		
+		ByteBuffer payload = ByteBuffer.allocate(MESSAGE_HEADER_BYTES + 4 + 1024 * 7);
+		payload.position(MESSAGE_HEADER_BYTES + 4);
+		int changed = 0, last = 0;
+		
+		for( int k = 0; k < previous.length; k++ ){
+			
+			short state = StepJournal.cellState(frame.positions[k], frame.directions[k], frame.signals[k], frame.phermones[k]);
+			if( state == previous[k] )
+				continue;
+			
+			previous[k] = state;
+			if( payload.remaining() < 7 ){
+				ByteBuffer larger = ByteBuffer.allocate(payload.capacity() * 2);
+				payload.flip();
+				payload = larger.put(payload);
+			}
+			
+			// Gap from the last changed cell, as a varint of 7 bits per byte
+			int gap = k - last;
+			while( gap >= 0x80 ){
+				payload.put((byte)(gap | 0x80));
+				gap >>>= 7;
+			}
+			payload.put((byte)gap);
+			payload.putShort(state);
+			last = k;
+			changed++;
+		}
+		
+		putHeader(payload, DELTA, frame);
+		payload.putInt(MESSAGE_HEADER_BYTES, changed);
+		payload.flip();
+		
+		return message(payload);
+	}
+	
+	/**
+	 * Encodes the states of every cell, as of the last frame encoded
+	 */
+	private ByteBuffer encodeKeyframe(Frame frame){
+		
+		ByteBuffer payload = ByteBuffer.allocate(MESSAGE_HEADER_BYTES + 2 * previous.length);
+		
+		putHeader(payload, KEYFRAME, frame);
+		payload.position(MESSAGE_HEADER_BYTES);
+		payload.asShortBuffer().put(previous);
+		payload.position(payload.capacity());
+		payload.flip();
+		
+		return message(payload);
+	}
+	
+	/**
+	 * Writes the message header at the start of a payload
+	 */
+	private static void putHeader(ByteBuffer payload, byte type, Frame frame){
+		
+		payload.put(0, type);
+		payload.putLong(1, frame.step);
+		payload.putInt(9, frame.rows);
+		payload.putInt(13, frame.cols);
+	}
+	
+	/**
+	 * Wraps a payload in an unmasked binary WebSocket frame
+	 */
+	static ByteBuffer message(ByteBuffer payload){
+		
+		return frame((byte)0x82, payload);
+	}
+	
+	/**
+	 * WebSocket frame of one fragment: the first byte (FIN and the opcode) and the length, then the payload
+	 */
+	static ByteBuffer frame(byte first, ByteBuffer payload){
+		
+		int length = payload.remaining();
+		ByteBuffer frame = ByteBuffer.allocate(length + (length < 126 ? 2 : length < 0x10000 ? 4 : 10));
+		
+		frame.put(first);
+		if( length < 126 )
+			frame.put((byte)length);
+		else if( length < 0x10000 ){
+			frame.put((byte)126);
+			frame.putShort((short)length);
+		}
+		else{
+			frame.put((byte)127);
+			frame.putLong(length);
+		}
+		frame.put(payload);
+		frame.flip();
+		
+		return frame;
+	}
+	
+	/**
+	 * Stops the server thread and disconnects the viewers
+	 */
+	@Override
+	public void close() throws IOException{
+		
+		running = false;
+		selector.wakeup();
+		try{
+			thread.join();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+		server.close();
+	}
+	
+	/**
+	 * Copy of the model arrays at one step
+	 */
+	static class Frame{
+		
+		int rows;
+		int cols;
+		long step;
+		boolean[] positions = new boolean[0];
+		byte[] directions = new byte[0];
+		byte[] signals = new byte[0];
+		byte[] phermones = new byte[0];
+		
+		void capture(Model model){
+			
+			rows = model.getRows();
+			cols = model.getCols();
+			step = model.getStepCount();
+			if( positions.length != rows * cols ){
+				positions = new boolean[rows * cols];
+				directions = new byte[rows * cols];
+				signals = new byte[rows * cols];
+				phermones = new byte[rows * cols];
+			}
+			System.arraycopy(model.getPositions(), 0, positions, 0, positions.length);
+			System.arraycopy(model.getDirections(), 0, directions, 0, directions.length);
+			System.arraycopy(model.getSignals(), 0, signals, 0, signals.length);
+			System.arraycopy(model.getPhermones(), 0, phermones, 0, phermones.length);
+		}
+		
+		int cells(){ return rows * cols; }
+	}
+	
+	/**
+	 * Connection of one viewer: its HTTP request, then once upgraded the WebSocket messages queued for it
+	 */
+	class Viewer{
+		
+		final SocketChannel channel;
+		final ByteBuffer input = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+		final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+		boolean upgraded;
+		boolean resync = true;
+		boolean closing;
+		
+		Viewer(SocketChannel channel){
+			
+			this.channel = channel;
+		}
+		
+		/**
+		 * Reads the request, or the frames the viewer sends once upgraded (only close and ping are answered)
+		 */
+		void read() throws IOException{
+			
+			if( channel.read(input) < 0 ){
+				close();
+				return;
+			}
+			
+			if( upgraded == false ){
+				String request = new String(input.array(), 0, input.position(), StandardCharsets.ISO_8859_1);
+				int end = request.indexOf("\r\n\r\n");
+				if( end < 0 ){
+					if( input.hasRemaining() == false )
+						respond("400 Bad Request", "text/plain", "Request too large\n");
+					return;
+				}
+				input.clear();
+				answer(request.substring(0, end));
+				return;
+			}
+			
+			input.flip();
+			while( input.remaining() >= 2 ){
+				
+				int opcode = input.get(input.position()) & 0xF, length = input.get(input.position() + 1) & 0x7F;
+				int header = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + 4;
+				if( input.remaining() < header )
+					break;
+				if( length == 126 )
+					length = input.getShort(input.position() + 2) & 0xFFFF;
+				else if( length == 127 )
+					length = (int)Math.min(Integer.MAX_VALUE, input.getLong(input.position() + 2));
+				
+				// Viewers only send short control frames
+				if( header + length > input.capacity() ){
+					close();
+					return;
+				}
+				if( input.remaining() < header + length )
+					break;
+				
+				byte[] payload = new byte[length];
+				for( int b = 0; b < length; b++ )
+					payload[b] = (byte)(input.get(input.position() + header + b) ^ input.get(input.position() + header - 4 + b % 4));
+				input.position(input.position() + header + length);
+				
+				if( opcode == 0x8 ){
+					dropQueued();
+					queue.add(frame((byte)0x88, ByteBuffer.wrap(payload, 0, Math.min(length, 2))));
+					closing = true;
+				}
+				else if( opcode == 0x9 )
+					queue.add(frame((byte)0x8A, ByteBuffer.wrap(payload)));
+			}
+			input.compact();
+			flush();
+		}
+		
+		/**
+		 * Answers an HTTP request: the viewer page, or the upgrade to the frame stream
+		 */
+		void answer(String request) throws IOException{
+			
+			String[] lines = request.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			String key = null;
+			
+			for( String line : lines ){
+				int colon = line.indexOf(':');
+				if( colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key") )
+					key = line.substring(colon + 1).trim();
+			}
+			
+			if( requestLine.length < 2 || !requestLine[0].equals("GET") )
+				respond("405 Method Not Allowed", "text/plain", "Only GET is supported\n");
+			else if( requestLine[1].equals("/") )
+				respond("200 OK", "text/html; charset=utf-8", VIEWER_PAGE);
+			else if( requestLine[1].equals("/frames") && key != null ){
+				queue.add(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+						+ "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+				upgraded = true;
+				viewers++;
+				flush();
+			}
+			else
+				respond("404 Not Found", "text/plain", "Not found\n");
+		}
+		
+		/**
+		 * Sends a complete HTTP response, and closes the connection once it is written
+		 */
+		void respond(String status, String type, String body) throws IOException{
+			
+			byte[] content = body.getBytes(StandardCharsets.UTF_8);
+			queue.add(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Type: " + type + "\r\nContent-Length: " + content.length
+					+ "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+			queue.add(ByteBuffer.wrap(content));
+			closing = true;
+			flush();
+		}
+		
+		/**
+		 * Writes as much of the queue as the channel takes without waiting, and waits for it to be writable for the rest
+		 */
+		void flush() throws IOException{
+			
+			SelectionKey key = channel.keyFor(selector);
+			
+			while( queue.isEmpty() == false ){
+				
+				ByteBuffer head = queue.peek();
+				channel.write(head);
+				if( head.hasRemaining() ){
+					if( key.isValid() )
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				queue.poll();
+			}
+			
+			if( closing )
+				close();
+			else if( key.isValid() )
+				key.interestOps(SelectionKey.OP_READ);
+		}
+		
+		/**
+		 * Number of messages queued that have not started to be written
+		 */
+		int queued(){
+			
+			return queue.isEmpty() || queue.peek().position() == 0 ? queue.size() : queue.size() - 1;
+		}
+		
+		/**
+		 * Drops the queued messages, other than one partly written
+		 */
+		void dropQueued(){
+			
+			ByteBuffer head = queue.peek();
+			queue.clear();
+			if( head != null && head.position() > 0 )
+				queue.add(head);
+		}
+		
+		void close(){
+			
+			if( channel.isOpen() && upgraded )
+				viewers--;
+			try{
+				channel.close();
+			}
+			catch(IOException ioe){
+				// Already gone
+			}
+		}
+	}
+	
+	/**
+	 * Value of the Sec-WebSocket-Accept header for a Sec-WebSocket-Key
+	 */
+	static String accept(String key){
+		
+		try{
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+		}
+		catch(NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		}
+	}
+	
+	// Viewer page: draws molds white and phermone levels in green, applying keyframes and deltas to a copy of the cell states
+	final static String VIEWER_PAGE = String.join("\n",
+			"<!DOCTYPE html>",
+			"<html><head><title>Slime molds</title>",
+			"<style>body{background:#111;color:#ccc;font:14px sans-serif}canvas{image-rendering:pixelated;width:90vmin}</style></head>",
+			"<body><div id=\"status\">Connecting</div><canvas id=\"grid\"></canvas><script>",
+			"var canvas = document.getElementById('grid'), context = canvas.getContext('2d'), states = null, image = null;",
+			"var socket = new WebSocket('ws://' + location.host + '/frames');",
+			"socket.binaryType = 'arraybuffer';",
+			"socket.onmessage = function(event){",
+			"  var data = new DataView(event.data), type = data.getUint8(0), rows = data.getInt32(9), cols = data.getInt32(13);",
+			"  var step = data.getUint32(1) * 4294967296 + data.getUint32(5), offset = 17;",
+			"  if( type == 1 ){",
+			"    canvas.width = cols; canvas.height = rows;",
+			"    states = new Uint16Array(rows * cols); image = context.createImageData(cols, rows);",
+			"    for( var k = 0; k < states.length; k++, offset += 2 ) states[k] = data.getUint16(offset);",
+			"  }",
+			"  else if( states != null ){",
+			"    var changed = data.getInt32(offset), k = 0; offset += 4;",
+			"    for( var c = 0; c < changed; c++ ){",
+			"      var gap = 0, shift = 0, b;",
+			"      do{ b = data.getUint8(offset++); gap += (b & 0x7F) * Math.pow(2, shift); shift += 7; } while( b & 0x80 );",
+			"      k += gap; states[k] = data.getUint16(offset); offset += 2;",
+			"    }",
+			"  }",
+			"  else return;",
+			"  for( var k = 0; k < states.length; k++ ){",
+			"    var s = states[k], mold = s & 0x8000, level = Math.min(255, (s & 0xFF) * 40), p = 4 * k;",
+			"    image.data[p] = mold ? 255 : 0; image.data[p + 1] = mold ? 255 : level; image.data[p + 2] = mold ? 255 : 0; image.data[p + 3] = 255;",
+			"  }",
+			"  context.putImageData(image, 0, 0);",
+			"  document.getElementById('status').textContent = 'Step ' + step + ', ' + cols + 'x' + rows;",
+			"};",
+			"socket.onclose = function(){ document.getElementById('status').textContent += ' (ended)'; };",
+			"</script></body></html>",
+			"");
+	
+}
@@ -0,0 +1,101 @@
+/**
+ * FusedStepEngine.java
+ * Step engine that runs the four update phases in a single pass down the grid, rather than one pass each
+ * Each phase of a row only reads its own row and the rows either side, so the phases can follow each other down the grid a few
+ * rows apart: at row i the directions of row i are updated, then the phermones of row i - 1 (once the directions of rows up to i
+ * have read its old levels), then the molds of row i are moved, then the signals of row i - 2 are set (once the phermones of
+ * rows up to i - 1 have read its old signals, and every mold that can reach it has moved)
+ * A row's data is then touched by every phase within a window of four rows, while it is still in cache, instead of the whole
+ * grid streaming through the cache once per phase
+ * The grid wraps, so the last rows read the old phermones and signals of the first: the phermones of row 0 and the signals of
+ * the first tile row are left until the end of the pass
+ * With metrics on, the time of each phase is summed over its rows and recorded once per step, at the cost of a clock read
+ * between phases on every row
+ * The sequential phases are run instead where the rows cannot follow each other: in field mode (the blur down the columns
+ * reads rows either side that the blur along the rows must have finished), in sparse mode (the molds are steered and moved
+ * from the agent list, not row by row), with claim moves (every mold claims its cell before any mold moves) and on grids
+ * of fewer than 3 rows (the window needs three distinct rows)
+ * The result is identical to the sequential phases for the same seed
+ *
+ * @author Philip Lin
+ */
+
+public class FusedStepEngine implements StepEngine{
+	
+	// Time of each phase so far this step, when metrics are on
+	private final long[] phaseTimes = new long[StepMetrics.SIGNALS + 1];
+	
+	public void step(Model model){
+		
+		int rows = model.getRows();
+		long lap = StepMetrics.start();
+		
+		// The window needs three distinct rows
+		if( model.isFieldMode() || model.isSparse() || model.isClaimMoves() || rows < 3 ){
+			model.updateDirections();
+			lap = StepMetrics.lap(StepMetrics.DIRECTIONS, lap);
+			model.updatePhermones();
+			lap = StepMetrics.lap(StepMetrics.PHERMONES, lap);
+			model.updatePositions();
+			lap = StepMetrics.lap(StepMetrics.POSITIONS, lap);
+			model.updateSignals();
+			StepMetrics.lap(StepMetrics.SIGNALS, lap);
+			return;
+		}
+		
+		model.ensureTiles();
+		model.beginPositions();
+		boolean[] moved = model.getNextPositions();
+		lap = time(StepMetrics.POSITIONS, lap);
+		
+		// The first tile row has its signals set last, all together, so its tiles are put to sleep from all of its rows
+		int firstSignals = Math.min(rows, Model.TILE_SIZE);
+		
+		for( int i = 0; i < rows; i++ ){
+			
+			model.updateDirections(i, i + 1);
+			lap = time(StepMetrics.DIRECTIONS, lap);
+			if( i >= 2 ){
+				model.updatePhermones(i - 1, i);
+				lap = time(StepMetrics.PHERMONES, lap);
+			}
+			model.moveMolds(i, i + 1);
+			lap = time(StepMetrics.POSITIONS, lap);
+			if( i - 2 >= firstSignals ){
+				model.updateSignals(i - 2, i - 1, moved);
+				lap = time(StepMetrics.SIGNALS, lap);
+			}
+		}
+		
+		model.updatePhermones(rows - 1, rows);
+		model.updatePhermones(0, 1);
+		lap = time(StepMetrics.PHERMONES, lap);
+		model.updateSignals(Math.max(firstSignals, rows - 2), rows, moved);
+		model.updateSignals(0, firstSignals, moved);
+		model.endPositions();
+		model.applyTileWakes();
+		time(StepMetrics.SIGNALS, lap);
+		
+		if( StepMetrics.ENABLED ){
+			for( int phase = 0; phase < phaseTimes.length; phase++ ){
+				StepMetrics.record(phase, phaseTimes[phase]);
+				phaseTimes[phase] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Adds the time since lap to a phase
+	 * @return current time, to be used as the start of the next phase (0 when metrics are off)
+	 */
+	private long time(int phase, long lap){
+		
+		if( !StepMetrics.ENABLED )
+			return 0;
+		
+		long now = System.nanoTime();
+		phaseTimes[phase] += now - lap;
+		return now;
+	}
+	
+}
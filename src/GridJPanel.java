@@ -1,24 +1,624 @@
 /**
  * GridJPanel.java
  * Creates the environment JPanel of the program added to the content pane
- * A NxN grid to be filled in with individual JPanels
- * 
+ * Paints a viewport onto a ROWSxCOLS grid of cells from an image the size of the panel, whose pixels are written directly from
+ * snapshots of the model. Only the cells in view are drawn, so the grid may be far larger than the screen
+ * Zoomed in, cells are one or more pixels wide: cells without a slime mold are colored by phermone level, cells with a slime mold
+ * show a mold glyph for its direction. Zoomed out, each pixel is a block of cells drawn from a GridPyramid, colored by the mean
+ * phermone of the block and shaded green by its mold density
+ * Dragging pans the view (around the edges of the grid, which wrap), the mouse wheel zooms about the pointer, and a double click
+ * fits the whole grid in the panel again. Until the view is panned or zoomed, it follows the panel size
+ * Only cells that changed since the last render are taken in, redrawn and repainted. Renders may be given a time budget, so a
+ * grid too large to take in within a frame is taken in over several while the view keeps panning and zooming
+ *
  * @author Philip Lin
  */
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 
 @SuppressWarnings("serial")
 public class GridJPanel extends JPanel{
 	
+	// Colors of the phermone levels, from none to Model.DEFAULT_PHERMONE_MAX (higher levels keep the default panel color)
+	final static int[] PHERMONE_COLORS = {
+		Color.BLACK.getRGB(), Color.WHITE.getRGB(), Color.YELLOW.getRGB(), Color.ORANGE.getRGB(), Color.RED.getRGB() };
+	final static int OVERFLOW_COLOR = UIManager.getColor("Panel.background") != null
+			? UIManager.getColor("Panel.background").getRGB() : Color.LIGHT_GRAY.getRGB();
+	final static int MOLD_COLOR = Color.GREEN.getRGB();
+	final static int[] MEAN_COLORS = meanColors();
+	final static int[] CELL_COLORS = cellColors();
+	
+	// Largest cell size in pixels when zoomed in
+	final static int MAX_CELL_SIZE = 64;
+	
+	// Words of 8 cells swept between checks of the time budget
+	final static int SWEEP_WORDS = 1 << 13;
+	
+	private int rows;
+	private int cols;
+	private GridPyramid pyramid;
+	
+	// Viewport: at level 0 cells are cellSize pixels wide, at level L > 0 each pixel is a block of 2^L x 2^L cells
+	private int level;
+	private int cellSize = 1;
+	private boolean fitted = true;
+	
+	// Position of the panel's top left corner in the zoomed grid, in pixels (negative while the grid is centered)
+	private int panX, panY;
+	private int dragX, dragY;
+	
+	// Rendered view:
+	private BufferedImage image;
+	private int[] pixels;
+	private int[][] moldGlyphs;
+	private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+	
+	// Snapshot being taken in, the word the sweep goes on from, words left to sweep, and the rows changed during a render:
+	private Snapshot sweeping;
+	private long sweepTime;
+	private int sweep;
+	private int unswept;
+	private int changedMin, changedMax;
+	
 	/**
 	 * Constructor
+	 * @param rows number of rows in the grid
+	 * @param cols number of columns in the grid
 	 */
-	public GridJPanel(){
+	public GridJPanel(int rows, int cols){
 		
 		setSize(new Dimension(600, 600));
-		setLayout(new GridLayout(Model.ROWS, Model.COLS));
 		setBackground(Color.WHITE);
+		setDimensions(rows, cols);
+		
+		// The view is resized to fit the panel
+		addComponentListener(new ComponentAdapter(){
+			public void componentResized(ComponentEvent e){
+				layoutCells();
+			}
+		});
+		
+		// Drag to pan, wheel to zoom, double click to fit
+		MouseAdapter viewport = new MouseAdapter(){
+			public void mousePressed(MouseEvent e){
+				dragX = e.getX();
+				dragY = e.getY();
+			}
+			public void mouseDragged(MouseEvent e){
+				pan(dragX - e.getX(), dragY - e.getY());
+				dragX = e.getX();
+				dragY = e.getY();
+			}
+			public void mouseWheelMoved(MouseWheelEvent e){
+				zoom(-e.getWheelRotation(), e.getX(), e.getY());
+			}
+			public void mouseClicked(MouseEvent e){
+				if( e.getClickCount() == 2 ){
+					fitted = true;
+					layoutCells();
+				}
+			}
+		};
+		addMouseListener(viewport);
+		addMouseMotionListener(viewport);
+		addMouseWheelListener(viewport);
+	}
+	
+	/**
+	 * Sets up the grid for a model of the given dimensions, if it is not already
+	 * @param rows number of rows in the grid
+	 * @param cols number of columns in the grid
+	 */
+	public void setDimensions(int rows, int cols){
+		
+		if( rows == this.rows && cols == this.cols )
+			return;
+		
+		this.rows = rows;
+		this.cols = cols;
+		pyramid = new GridPyramid(rows, cols);
+		sweeping = null;
+		fitted = true;
+		layoutCells();
+	}
+	
+	/**
+	 * Takes in every cell of the snapshot that changed since the last render, and redraws and repaints those in view
+	 * @param snapshot snapshot of the model to be rendered
+	 */
+	public void render(Snapshot snapshot){
+		
+		render(snapshot, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Takes in the cells of the snapshot that changed since the last render for up to a time budget, and redraws and repaints
+	 * those in view. Cells are swept 8 at a time in row-major order, going on from where the last render stopped and wrapping
+	 * around, so a snapshot not taken in fully is carried on by rendering it again, or replaced by rendering a newer one
+	 * Each changed cell is added to the pyramid as it is found. Zoomed in, it is redrawn then; zoomed out, the rows of blocks
+	 * holding changed cells are redrawn once the budget is spent
+	 * @param snapshot snapshot of the model to be rendered
+	 * @param budget nanoseconds to spend, after which the render stops at the end of a chunk of SWEEP_WORDS
+	 * @return whether every cell of the snapshot has been taken in
+	 */
+	public boolean render(Snapshot snapshot, long budget){
+		
+		long start = System.nanoTime();
+		setDimensions(snapshot.getRows(), snapshot.getCols());
+		
+		byte[] cells = snapshot.getCells();
+		byte[] shown = pyramid.getCells();
+		LongBuffer next = ByteBuffer.wrap(cells).asLongBuffer();
+		LongBuffer last = ByteBuffer.wrap(shown).asLongBuffer();
+		int words = next.limit();
+		int units = (cells.length + 7) / 8;
+		
+		if( snapshot != sweeping || snapshot.getTime() != sweepTime ){
+			
+			sweeping = snapshot;
+			sweepTime = snapshot.getTime();
+			unswept = units;
+		}
+		
+		clearDirty();
+		changedMin = Integer.MAX_VALUE;
+		changedMax = -1;
+		
+		while( unswept > 0 ){
+			
+			int end = Math.min(units, sweep + Math.min(unswept, SWEEP_WORDS));
+			for( int w = sweep; w < end; w++ ){
+				
+				// The last unit may be a partial word
+				if( w < words && next.get(w) == last.get(w) )
+					continue;
+				
+				int k = w * 8;
+				int i = k / cols, j = k - i * cols;
+				for( int stop = Math.min(cells.length, k + 8); k < stop; k++ ){
+					
+					if( cells[k] != shown[k] )
+						changeCell(i, j, cells[k]);
+					if( ++j == cols ){
+						j = 0;
+						i++;
+					}
+				}
+			}
+			
+			unswept -= end - sweep;
+			sweep = end == units ? 0 : end;
+			if( System.nanoTime() - start >= budget )
+				break;
+		}
+		
+		if( level > 0 && changedMax >= 0 && image != null )
+			redraw(0, 0, image.getWidth(), image.getHeight(), changedMin >> level, changedMax >> level);
+		
+		if( dirtyMaxX >= 0 )
+			repaint(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+		
+		return unswept == 0;
+	}
+	
+	/**
+	 * Sets one cell in the pyramid, and redraws it if it is in view when zoomed in, or notes its row when zoomed out
+	 */
+	void changeCell(int i, int j, byte code){
+		
+		pyramid.set(i, j, code);
+		
+		if( level > 0 ){
+			changedMin = Math.min(changedMin, i);
+			changedMax = Math.max(changedMax, i);
+		}
+		else if( image != null )
+			drawCell(i, j);
+	}
+	
+	/**
+	 * Paints the rendered view
+	 */
+	@Override
+	public void paintComponent(Graphics g){
+		
+		super.paintComponent(g);
+		
+		if( image != null )
+			g.drawImage(image, 0, 0, null);
+	}
+	
+	/**
+	 * Sizes the view to the panel, zooming so the whole grid fits unless the view was panned or zoomed, and redraws it
+	 */
+	void layoutCells(){
+		
+		if( getWidth() == 0 || getHeight() == 0 ){
+			image = null;
+			return;
+		}
+		
+		if( image == null || image.getWidth() != getWidth() || image.getHeight() != getHeight() ){
+			
+			image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		}
+		
+		if( fitted ){
+			
+			int size = Math.min(getWidth() / cols, getHeight() / rows);
+			int fit = 1;
+			while( fit < pyramid.getTopLevel() && (pyramid.getBlockCols(fit) > getWidth() || pyramid.getBlockRows(fit) > getHeight()) )
+				fit++;
+			setZoom(size > 0 ? 0 : fit, Math.max(1, Math.min(MAX_CELL_SIZE, size)));
+			panX = panY = 0;
+		}
+		redraw();
+	}
+	
+	/**
+	 * Moves the view by the given number of pixels
+	 * The image is shifted, and only the strips uncovered at its edges are drawn
+	 */
+	void pan(int dx, int dy){
+		
+		fitted = false;
+		if( image == null )
+			return;
+		
+		int width = image.getWidth(), height = image.getHeight();
+		int oldX = panX, oldY = panY;
+		panX = fixPan(panX + dx, gridWidth(), width);
+		panY = fixPan(panY + dy, gridHeight(), height);
+		
+		// A centered side does not move
+		int shiftX = gridWidth() > width ? dx : panX - oldX;
+		int shiftY = gridHeight() > height ? dy : panY - oldY;
+		if( Math.abs(shiftX) >= width || Math.abs(shiftY) >= height ){
+			redraw();
+			return;
+		}
+		
+		int length = width - Math.abs(shiftX);
+		int from = Math.max(0, shiftX), to = Math.max(0, -shiftX);
+		if( shiftY >= 0 ){
+			for( int y = 0; y < height - shiftY; y++ )
+				System.arraycopy(pixels, (y + shiftY) * width + from, pixels, y * width + to, length);
+		}
+		else{
+			for( int y = height - 1; y >= -shiftY; y-- )
+				System.arraycopy(pixels, (y + shiftY) * width + from, pixels, y * width + to, length);
+		}
+		
+		clearDirty();
+		if( shiftX != 0 )
+			redrawArea(shiftX > 0 ? width - shiftX : 0, 0, shiftX > 0 ? width : -shiftX, height);
+		if( shiftY != 0 )
+			redrawArea(0, shiftY > 0 ? height - shiftY : 0, width, shiftY > 0 ? height : -shiftY);
+		repaint();
+	}
+	
+	/**
+	 * Zooms the view in (steps > 0) or out (steps < 0), keeping the cell under the given point of the panel in place
+	 * Zooming in doubles the cell size, and zooming out halves it until cells are one pixel wide, then moves up a pyramid level
+	 */
+	void zoom(int steps, int x, int y){
+		
+		double scale = scale();
+		double cellX = (panX + x) / scale;
+		double cellY = (panY + y) / scale;
+		int newLevel = level, newSize = cellSize;
+		
+		for( ; steps > 0; steps-- ){
+			if( newLevel > 0 )
+				newLevel--;
+			else if( (long)newSize * 2 * Math.max(rows, cols) <= Integer.MAX_VALUE )
+				newSize = Math.min(MAX_CELL_SIZE, newSize * 2);
+		}
+		for( ; steps < 0; steps++ ){
+			if( newSize > 1 )
+				newSize /= 2;
+			else
+				newLevel = Math.min(pyramid.getTopLevel(), newLevel + 1);
+		}
+		
+		setZoom(newLevel, newSize);
+		panX = (int)Math.floor(cellX * scale()) - x;
+		panY = (int)Math.floor(cellY * scale()) - y;
+		fitted = false;
+		redraw();
+	}
+	
+	/**
+	 * Sets the level and cell size, rendering the mold glyphs for a new cell size
+	 */
+	void setZoom(int level, int size){
+		
+		this.level = level;
+		if( moldGlyphs == null || size != cellSize )
+			moldGlyphs = renderMoldGlyphs(size);
+		cellSize = size;
+	}
+	
+	/**
+	 * Pixels per cell at the current zoom
+	 */
+	double scale(){ return level == 0 ? cellSize : 1.0 / (1 << level); }
+	
+	/**
+	 * Width of one cell or block of the current zoom in pixels
+	 */
+	int extent(){ return level == 0 ? cellSize : 1; }
+	
+	/**
+	 * Zoomed grid width in pixels
+	 */
+	int gridWidth(){ return level == 0 ? cols * cellSize : pyramid.getBlockCols(level); }
+	
+	/**
+	 * Zoomed grid height in pixels
+	 */
+	int gridHeight(){ return level == 0 ? rows * cellSize : pyramid.getBlockRows(level); }
+	
+	/**
+	 * Centers a grid side smaller than the panel, and otherwise wraps the pan into the grid
+	 */
+	static int fixPan(int pan, int grid, int panel){ return grid <= panel ? -(panel - grid) / 2 : Math.floorMod(pan, grid); }
+	
+	/**
+	 * Panel position of the first copy of a cell or block in view along one side: the grid repeats every grid pixels when it wraps,
+	 * so a cell may show again further on; a position past the panel means it is not in view
+	 */
+	static int position(int offset, int extent, int pan, int grid, int panel){
+		
+		if( grid <= panel )
+			return offset - pan;
+		
+		int p = Math.floorMod(offset - pan, grid);
+		return p > grid - extent ? p - grid : p;
+	}
+	
+	/**
+	 * Redraws the whole view, and repaints the panel
+	 */
+	void redraw(){
+		
+		if( image == null )
+			return;
+		
+		panX = fixPan(panX, gridWidth(), image.getWidth());
+		panY = fixPan(panY, gridHeight(), image.getHeight());
+		clearDirty();
+		redrawArea(0, 0, image.getWidth(), image.getHeight());
+		repaint();
+	}
+	
+	/**
+	 * Clears an area of the view to the panel background and redraws the cells or blocks over it
+	 */
+	void redrawArea(int left, int top, int right, int bottom){
+		
+		int width = image.getWidth();
+		int color = getBackground().getRGB();
+		for( int y = top; y < bottom; y++ )
+			Arrays.fill(pixels, y * width + left, y * width + right, color);
+		
+		redraw(left, top, right, bottom, 0, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Redraws the cells or blocks of the given rows that cover an area of the view, and adds the rows drawn to the area to repaint
+	 * @param left left edge of the area
+	 * @param top top edge of the area
+	 * @param right right edge of the area (exclusive)
+	 * @param bottom bottom edge of the area (exclusive)
+	 * @param fromRow first row of cells or blocks to redraw
+	 * @param toRow last row of cells or blocks to redraw
+	 */
+	void redraw(int left, int top, int right, int bottom, int fromRow, int toRow){
+		
+		int width = image.getWidth(), height = image.getHeight();
+		int extent = extent();
+		int gridWidth = gridWidth(), gridHeight = gridHeight();
+		int across = gridWidth / extent, down = gridHeight / extent;
+		boolean wrapX = gridWidth > width, wrapY = gridHeight > height;
+		
+		// First cell or block over the area on each side, and its panel position
+		int offsetX = wrapX ? Math.floorMod(panX + left, gridWidth) : Math.max(0, panX + left);
+		int offsetY = wrapY ? Math.floorMod(panY + top, gridHeight) : Math.max(0, panY + top);
+		int firstJ = offsetX / extent, firstI = offsetY / extent;
+		int startX = wrapX ? left - offsetX % extent : firstJ * extent - panX;
+		int startY = wrapY ? top - offsetY % extent : firstI * extent - panY;
+		
+		for( int y = startY, bi = firstI; y < bottom && (wrapY || bi < down); y += extent, bi++ ){
+			
+			if( bi == down )
+				bi = 0;
+			if( bi < fromRow || bi > toRow )
+				continue;
+			
+			for( int x = startX, bj = firstJ; x < right && (wrapX || bj < across); x += extent, bj++ ){
+				
+				if( bj == across )
+					bj = 0;
+				
+				if( level > 0 )
+					pixels[y * width + x] = blockColor(bi, bj);
+				else if( cellSize == 1 )
+					pixels[y * width + x] = CELL_COLORS[pyramid.getCells()[bi * cols + bj] & 255];
+				else
+					drawCellAt(x, y, pyramid.getCells()[bi * cols + bj]);
+			}
+			
+			dirtyMinX = Math.min(dirtyMinX, left);
+			dirtyMinY = Math.min(dirtyMinY, Math.max(0, y));
+			dirtyMaxX = Math.max(dirtyMaxX, right);
+			dirtyMaxY = Math.max(dirtyMaxY, Math.min(height, y + extent));
+		}
+	}
+	
+	/**
+	 * Redraws one cell wherever it is in view when zoomed in, and adds it to the area to repaint
+	 */
+	void drawCell(int i, int j){
+		
+		int width = image.getWidth(), height = image.getHeight();
+		int gridWidth = gridWidth(), gridHeight = gridHeight();
+		
+		int firstX = position(j * cellSize, cellSize, panX, gridWidth, width);
+		int firstY = position(i * cellSize, cellSize, panY, gridHeight, height);
+		if( firstX >= width || firstY >= height )
+			return;
+		
+		// A side that does not wrap shows the cell once
+		int stepX = gridWidth > width ? gridWidth : width + cellSize;
+		int stepY = gridHeight > height ? gridHeight : height + cellSize;
+		
+		for( int y = firstY; y < height; y += stepY ){
+			for( int x = firstX; x < width; x += stepX ){
+				
+				drawCellAt(x, y, pyramid.getCells()[i * cols + j]);
+				
+				dirtyMinX = Math.min(dirtyMinX, Math.max(0, x));
+				dirtyMinY = Math.min(dirtyMinY, Math.max(0, y));
+				dirtyMaxX = Math.max(dirtyMaxX, Math.min(width, x + cellSize));
+				dirtyMaxY = Math.max(dirtyMaxY, Math.min(height, y + cellSize));
+			}
+		}
+	}
+	
+	/**
+	 * Empties the area to repaint
+	 */
+	void clearDirty(){
+		
+		dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+		dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+	}
+	
+	/**
+	 * Writes the pixels of one cell at a panel position, clipped to the panel
+	 */
+	void drawCellAt(int x, int y, byte code){
+		
+		int width = image.getWidth();
+		int left = Math.max(0, -x), right = Math.min(cellSize, width - x);
+		int top = Math.max(0, -y), bottom = Math.min(cellSize, image.getHeight() - y);
+		
+		if( (code & Snapshot.MOLD) != 0 ){
+			
+			int[] glyph = moldGlyphs[code & 7];
+			for( int r = top; r < bottom; r++ )
+				System.arraycopy(glyph, r * cellSize + left, pixels, (y + r) * width + x + left, right - left);
+		}
+		else{
+			
+			int color = code >= 0 && code < PHERMONE_COLORS.length ? PHERMONE_COLORS[code] : OVERFLOW_COLOR;
+			for( int r = top; r < bottom; r++ )
+				Arrays.fill(pixels, (y + r) * width + x + left, (y + r) * width + x + right, color);
+		}
+	}
+	
+	/**
+	 * Color of a block of the current level: its mean phermone color, shaded towards green by its mold density
+	 * (fully green at half the cells)
+	 */
+	int blockColor(int bi, int bj){
+		
+		int area = pyramid.getArea(level, bi, bj);
+		long block = pyramid.getBlock(level, bi, bj);
+		int molds = (int)(block >> 32);
+		int color = molds < area ? phermoneColor((int)block, area - molds) : Color.BLACK.getRGB();
+		
+		return molds == 0 ? color : blend(color, MOLD_COLOR, Math.min(256, molds * 512 / area));
+	}
+	
+	/**
+	 * Color of a mean phermone level, between the colors of the levels either side of it
+	 * @param total phermone total of the cells
+	 * @param cells number of cells
+	 */
+	static int phermoneColor(int total, int cells){
+		
+		long mean = ((long)total << 8) / cells;
+		return mean < MEAN_COLORS.length ? MEAN_COLORS[(int)mean] : OVERFLOW_COLOR;
+	}
+	
+	/**
+	 * Colors of the mean phermone levels from none to the highest colored one, in steps of 1/256 of a level
+	 */
+	static int[] meanColors(){
+		
+		int[] colors = new int[(PHERMONE_COLORS.length - 1) * 256 + 1];
+		for( int mean = 0; mean < colors.length - 1; mean++ )
+			colors[mean] = blend(PHERMONE_COLORS[mean >> 8], PHERMONE_COLORS[(mean >> 8) + 1], mean & 255);
+		colors[colors.length - 1] = PHERMONE_COLORS[PHERMONE_COLORS.length - 1];
+		return colors;
+	}
+	
+	/**
+	 * Colors of the cell codes when cells are one pixel wide
+	 */
+	static int[] cellColors(){
+		
+		int[] colors = new int[256];
+		for( int code = 0; code < 256; code++ )
+			colors[code] = (code & Snapshot.MOLD) != 0 ? MOLD_COLOR : code < PHERMONE_COLORS.length ? PHERMONE_COLORS[code] : OVERFLOW_COLOR;
+		return colors;
+	}
+	
+	/**
+	 * Mixes two colors, weighting the second by fraction / 256
+	 */
+	static int blend(int first, int second, int fraction){
+		
+		int red = (first >> 16) & 255, green = (first >> 8) & 255, blue = first & 255;
+		red += (((second >> 16) & 255) - red) * fraction >> 8;
+		green += (((second >> 8) & 255) - green) * fraction >> 8;
+		blue += ((second & 255) - blue) * fraction >> 8;
+		return 0xFF000000 | red << 16 | green << 8 | blue;
+	}
+	
+	/**
+	 * Pre-renders the slime mold graphic for each of the 8 directions
+	 * A green triangle on black, pointing in the direction of the mold
+	 * @param size cell size in pixels
+	 * @return pixels of each glyph, indexed by direction code
+	 */
+	static int[][] renderMoldGlyphs(int size){
+		
+		int[][] glyphs = new int[8][];
+		BufferedImage glyph = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		
+		for( int d = 0; d < 8; d++ ){
+			
+			Graphics2D slimeG2D = glyph.createGraphics();
+			slimeG2D.setColor(Color.BLACK);
+			slimeG2D.fillRect(0, 0, size, size);
+			
+			slimeG2D.setTransform(new AffineTransform());
+			slimeG2D.translate(size/2, size/2);
+			slimeG2D.rotate(Math.toRadians(d * 45));
+			int[] xcoords = {0, 0, size/3};
+			int[] ycoords = {-size/6, size/6, 0};
+			slimeG2D.setColor(Color.GREEN);
+			slimeG2D.fillPolygon(xcoords, ycoords, 3);
+			slimeG2D.dispose();
+			
+			// Too small for the triangle to show
+			if( size < 3 )
+				glyph.setRGB(0, 0, Color.GREEN.getRGB());
+			
+			glyphs[d] = glyph.getRGB(0, 0, size, size, null, 0, size);
+		}
+		return glyphs;
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+/**
+ * GridPyramid.java
+ * Multi-resolution summary of a grid of cells, for drawing the grid zoomed out
+ * Holds the code of every cell (cell codes are those of Snapshot), and at each level L the number of molds and the phermone total
+ * of every block of 2^L x 2^L cells (blocks at the bottom and right edges of the grid may be smaller)
+ * Snapshots do not keep the phermone of cells with a mold, so a block's mean phermone is over its cells without one
+ * Levels are never rebuilt: setting a cell adds its change to the block holding it on every level
+ * Level 1 blocks are summed from their 4 cells when read rather than kept, which would cost half as much memory again as the cells
+ *
+ * @author Philip Lin
+ */
+public class GridPyramid{
+	
+	// Lowest level kept in arrays
+	final static int BASE_LEVEL = 2;
+	
+	// Levels are kept until the grid is at most TOP_BLOCKS blocks across, up to MAX_LEVEL (so phermone totals fit an int)
+	final static int TOP_BLOCKS = 256;
+	final static int MAX_LEVEL = 11;
+	
+	private final int rows;
+	private final int cols;
+	private final byte[] cells;
+	private final int topLevel;
+	private final int[] blockCols;
+	private final int[][] molds;
+	private final int[][] phermones;
+	
+	/**
+	 * Constructor
+	 * Every cell starts without a mold or phermone
+	 * @param rows number of rows in the grid
+	 * @param cols number of columns in the grid
+	 */
+	public GridPyramid(int rows, int cols){
+		
+		if( rows < 1 || cols < 1 )
+			throw new IllegalArgumentException("Grid must have at least 1 row and 1 column");
+		
+		this.rows = rows;
+		this.cols = cols;
+		cells = new byte[rows * cols];
+		
+		int level = 1;
+		while( level < MAX_LEVEL && Math.max(blocks(rows, level), blocks(cols, level)) > TOP_BLOCKS )
+			level++;
+		topLevel = level;
+		
+		int levels = Math.max(0, topLevel - BASE_LEVEL + 1);
+		blockCols = new int[levels];
+		molds = new int[levels][];
+		phermones = new int[levels][];
+		for( int l = 0; l < levels; l++ ){
+			
+			blockCols[l] = blocks(cols, l + BASE_LEVEL);
+			molds[l] = new int[blocks(rows, l + BASE_LEVEL) * blockCols[l]];
+			phermones[l] = new int[molds[l].length];
+		}
+	}
+	
+	/**
+	 * Number of blocks of a level along a side of the grid
+	 */
+	static int blocks(int cells, int level){ return ((cells - 1) >> level) + 1; }
+	
+	/**
+	 * Highest level of the pyramid
+	 */
+	public int getTopLevel(){ return topLevel; }
+	
+	/**
+	 * Number of block rows of a level
+	 */
+	public int getBlockRows(int level){ return blocks(rows, level); }
+	
+	/**
+	 * Number of block columns of a level
+	 */
+	public int getBlockCols(int level){ return blocks(cols, level); }
+	
+	/**
+	 * Codes of the cells, indexed like the model's arrays (not to be written to directly)
+	 */
+	public byte[] getCells(){ return cells; }
+	
+	/**
+	 * Sets the code of a cell, and adds its change to every level
+	 * @param i row of the cell
+	 * @param j column of the cell
+	 * @param code new code of the cell
+	 */
+	public void set(int i, int j, byte code){
+		
+		int k = i * cols + j;
+		byte old = cells[k];
+		if( code == old )
+			return;
+		cells[k] = code;
+		
+		int moldChange = mold(code) - mold(old);
+		int phermoneChange = phermone(code) - phermone(old);
+		
+		for( int l = 0; l < molds.length; l++ ){
+			
+			int level = l + BASE_LEVEL;
+			int block = (i >> level) * blockCols[l] + (j >> level);
+			molds[l][block] += moldChange;
+			phermones[l][block] += phermoneChange;
+		}
+	}
+	
+	/**
+	 * Number of cells in a block
+	 * @param level level of the block, from 1 to the top level
+	 * @param bi block row
+	 * @param bj block column
+	 */
+	public int getArea(int level, int bi, int bj){
+		
+		int height = Math.min(rows - (bi << level), 1 << level);
+		int width = Math.min(cols - (bj << level), 1 << level);
+		return height * width;
+	}
+	
+	/**
+	 * Number of molds in a block
+	 * @param level level of the block, from 1 to the top level
+	 * @param bi block row
+	 * @param bj block column
+	 */
+	public int getMolds(int level, int bi, int bj){ return (int)(getBlock(level, bi, bj) >> 32); }
+	
+	/**
+	 * Phermone total of the cells of a block without a mold
+	 * @param level level of the block, from 1 to the top level
+	 * @param bi block row
+	 * @param bj block column
+	 */
+	public int getPhermones(int level, int bi, int bj){ return (int)getBlock(level, bi, bj); }
+	
+	/**
+	 * Number of molds in a block in the high 32 bits, and the phermone total of its cells without a mold in the low 32 bits
+	 * @param level level of the block, from 1 to the top level
+	 * @param bi block row
+	 * @param bj block column
+	 */
+	public long getBlock(int level, int bi, int bj){
+		
+		if( level >= BASE_LEVEL ){
+			
+			int block = bi * blockCols[level - BASE_LEVEL] + bj;
+			return (long)molds[level - BASE_LEVEL][block] << 32 | phermones[level - BASE_LEVEL][block];
+		}
+		
+		int count = 0, total = 0;
+		for( int i = bi << 1; i < Math.min(rows, (bi << 1) + 2); i++ ){
+			for( int j = bj << 1; j < Math.min(cols, (bj << 1) + 2); j++ ){
+				
+				byte code = cells[i * cols + j];
+				count += mold(code);
+				total += phermone(code);
+			}
+		}
+		return (long)count << 32 | total;
+	}
+	
+	/**
+	 * 1 if the code is that of a cell with a mold, 0 otherwise
+	 */
+	static int mold(byte code){ return (code & Snapshot.MOLD) != 0 ? 1 : 0; }
+	
+	/**
+	 * Phermone level of a cell code, 0 for a cell with a mold
+	 */
+	static int phermone(byte code){ return (code & Snapshot.MOLD) != 0 ? 0 : code; }
+	
+}
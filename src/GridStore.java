@@ -0,0 +1,72 @@
+/**
+ * GridStore.java
+ * Model state held in storage of its own instead of the model's arrays, and stepped by the same rules as the model
+ * The segment store (SegmentGrid, in the foreign source folder) is built on the JDK Foreign Memory API: its planes are memory
+ * segments indexed by long, on the heap, in native memory or mapped from a file, so grids are not limited by the heap or by the
+ * Java array index limit. It is only available when it was compiled and the jdk.incubator.foreign module is added at startup
+ * Stores run the sequential rules with phermones deposited from signals and molds moved in row-major order
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+
+public interface GridStore extends Closeable{
+	
+	/**
+	 * Performs one step: updates directions, phermones, positions and signals in that order
+	 */
+	void step();
+	
+	/**
+	 * Number of steps taken since the state was initialized
+	 */
+	long getStepCount();
+	
+	/**
+	 * Number of molds, cells with a signal, and the phermone total, in that order
+	 */
+	long[] census();
+	
+	/**
+	 * Copies the state into the arrays of a model of the same grid size, along with the step count
+	 */
+	void copyTo(Model model);
+	
+	/**
+	 * Makes the current state durable: for a mapped store, flushes the mapped pages to the file; other stores keep nothing
+	 * @throws IOException if the state cannot be written
+	 */
+	void checkpoint() throws IOException;
+	
+	/**
+	 * Opens a segment store, initialized like a model from the population, seed and phermone and signal settings of another model
+	 * A mapped store reopens a file that already holds a checkpointed grid of the same size and settings, and continues from it
+	 * @param storage "heap", "native", or "mapped:" followed by the file to map
+	 * @param rows number of rows (grid height)
+	 * @param cols number of columns (grid width)
+	 * @param settings model whose settings the grid starts from (its own grid size is ignored)
+	 * @throws IOException if the file cannot be mapped, or holds a different grid
+	 * @throws IllegalArgumentException if the storage is unknown, or the segment store is not available
+	 */
+	static GridStore open(String storage, int rows, int cols, Model settings) throws IOException{
+		
+		try{
+			return (GridStore)Class.forName("SegmentGrid").getDeclaredConstructor(String.class, int.class, int.class, Model.class)
+					.newInstance(storage, rows, cols, settings);
+		}
+		catch(java.lang.reflect.InvocationTargetException ite){
+			if( ite.getCause() instanceof IOException )
+				throw (IOException)ite.getCause();
+			if( ite.getCause() instanceof RuntimeException )
+				throw (RuntimeException)ite.getCause();
+			if( ite.getCause() instanceof Error )
+				throw (Error)ite.getCause();
+			throw new IllegalStateException(ite.getCause());
+		}
+		catch(ReflectiveOperationException | LinkageError e){
+			// Not compiled, or the module was not added
+			throw new IllegalArgumentException("The segment store needs foreign/SegmentGrid.java compiled and --add-modules jdk.incubator.foreign");
+		}
+	}
+	
+}
@@ -0,0 +1,599 @@
+/**
+ * HeadlessRunner.java
+ * Headless entry point
+ * Runs the Model without a View for a fixed number of steps as fast as possible
+ * Reports throughput (steps/sec, cell-updates/sec), heap allocated per step and the final state of the model
+ *
+ * Usage: java HeadlessRunner [--rows=N] [--cols=N] [--population=N] [--seed=N] [--steps=N]
+ *                             [--engine=sequential|parallel|fused] [--threads=N] [--sparse] [--verify]
+ *                             [--journal=FILE] [--keyframes=N] [--clusters] [--field] [--diffusion=F] [--evaporation=F] [--claims]
+ *                             [--storage=heap|native|mapped:FILE] [--checkpoint=N] [--workers=N] [--listen=PORT] [--stream=[HOST:]PORT]
+ * --engine=fused runs the four update phases in one pass down the grid (FusedStepEngine)
+ * --sparse keeps the molds in an agent list rather than scanning the grid for them
+ * --verify steps a sequential, grid-scanning reference model alongside and checks the state is identical after every step
+ * --field steers the molds on the continuous phermone field, with the given diffusion and evaporation per step
+ * --claims moves the molds by claiming the cells they move to, rather than in row-major order
+ * --clusters tracks the mold clusters every step and prints their statistics (with --verify, checked against a full rescan)
+ * --storage runs a GridStore of that storage instead of the model arrays (the foreign folder compiled, and run with
+ * --add-modules jdk.incubator.foreign), with the sequential rules; a mapped store is checkpointed every --checkpoint steps
+ * and when the run ends, and a later run with the same file continues from it
+ * --workers splits the grid into stripes stepped by that many StripeWorker processes, started on loopback, with the
+ * sequential rules; with --listen the coordinator waits on that port for workers started with java StripeWorker HOST:PORT
+ * (up to StripeCoordinator.LISTEN_TIMEOUT_MS for all of them to connect)
+ * --stream serves every step to remote viewers through a FrameServer on that port (of the loopback interface unless a host
+ * is given), without ever holding up the steps; open http://HOST:PORT/ in a browser to watch
+ * --journal records the initial state and every step to a StepJournal, with a keyframe every --keyframes frames
+ * Run with -Dslimemold.metrics=true to also print the per-phase latencies, and with --add-modules jdk.incubator.vector
+ * (the vector folder compiled) for the SIMD decay kernel
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.lang.management.ManagementFactory;
+
+public class HeadlessRunner{
+	
+	// Defaults:
+	final static int DEFAULT_STEPS = 1000;
+	final static int MAX_PRINTED_COLS = 100;
+	
+	// Run configuration:
+	private int rows;
+	private int cols;
+	private int population;
+	private long seed;
+	private int steps;
+	private String engine;
+	private int threads;
+	private boolean sparse;
+	private boolean verify;
+	private File journal;
+	private int keyframes;
+	private boolean clusters;
+	private boolean field;
+	private float diffusion;
+	private float evaporation;
+	private boolean claims;
+	private String storage;
+	private int checkpoint;
+	private int workers;
+	private int listen;
+	private InetSocketAddress stream;
+	
+	/**
+	 * Constructor
+	 * Starts from the defaults of a freshly constructed model
+	 */
+	public HeadlessRunner(){
+		
+		Model defaults = new Model();
+		
+		rows = defaults.getRows();
+		cols = defaults.getCols();
+		population = defaults.getPopulation();
+		seed = System.nanoTime();
+		steps = DEFAULT_STEPS;
+		engine = "sequential";
+		threads = Runtime.getRuntime().availableProcessors();
+		keyframes = StepJournal.DEFAULT_KEYFRAME_INTERVAL;
+		diffusion = defaults.getDiffusion();
+		evaporation = defaults.getEvaporation();
+	}
+	
+	public static void main(String[] args){
+		
+		HeadlessRunner runner = new HeadlessRunner();
+		
+		try{
+			runner.parseArguments(args);
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.err.println("Usage: java HeadlessRunner [--rows=N] [--cols=N] [--population=N] [--seed=N] [--steps=N]"
+					+ " [--engine=sequential|parallel|fused] [--threads=N] [--sparse] [--verify] [--journal=FILE] [--keyframes=N] [--clusters]"
+					+ " [--field] [--diffusion=F] [--evaporation=F] [--claims] [--storage=heap|native|mapped:FILE] [--checkpoint=N]"
+					+ " [--workers=N] [--listen=PORT] [--stream=[HOST:]PORT]");
+			System.exit(1);
+		}
+		
+		runner.run();
+	}
+	
+	/**
+	 * Reads --name=value pairs from the command line into the run configuration
+	 * @param args command line arguments
+	 */
+	void parseArguments(String[] args){
+		
+		for( String arg : args ){
+			
+			if( arg.equals("--verify") ){
+				verify = true;
+				continue;
+			}
+			if( arg.equals("--sparse") ){
+				sparse = true;
+				continue;
+			}
+			if( arg.equals("--clusters") ){
+				clusters = true;
+				continue;
+			}
+			if( arg.equals("--field") ){
+				field = true;
+				continue;
+			}
+			if( arg.equals("--claims") ){
+				claims = true;
+				continue;
+			}
+			
+			int split = arg.indexOf('=');
+			if( !arg.startsWith("--") || split < 0 )
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			
+			String name = arg.substring(2, split);
+			String value = arg.substring(split + 1);
+			
+			try{
+				switch( name ){
+					case "rows":		rows = Integer.parseInt(value);
+										break;
+					case "cols":		cols = Integer.parseInt(value);
+										break;
+					case "population":	population = Integer.parseInt(value);
+										break;
+					case "seed":		seed = Long.parseLong(value);
+										break;
+					case "steps":		steps = Integer.parseInt(value);
+										break;
+					case "engine":		engine = value;
+										break;
+					case "threads":		threads = Integer.parseInt(value);
+										break;
+					case "journal":		journal = new File(value);
+										break;
+					case "keyframes":	keyframes = Integer.parseInt(value);
+										break;
+					case "diffusion":	diffusion = Float.parseFloat(value);
+										break;
+					case "evaporation":	evaporation = Float.parseFloat(value);
+										break;
+					case "storage":		storage = value;
+										break;
+					case "checkpoint":	checkpoint = Integer.parseInt(value);
+										break;
+					case "workers":		workers = Integer.parseInt(value);
+										break;
+					case "listen":		listen = Integer.parseInt(value);
+										break;
+					case "stream":		int colon = value.lastIndexOf(':');
+										stream = colon < 0 ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(value))
+												: new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+										break;
+					default:			throw new IllegalArgumentException("Unrecognized argument: " + arg);
+				}
+			}
+			catch(NumberFormatException nfe){
+				throw new IllegalArgumentException("Not a number: " + arg);
+			}
+		}
+		
+		// Grid stores index by long, so only the model is limited to the array index limit
+		if( rows < 1 || cols < 1 || (storage == null && (long)rows * cols > Integer.MAX_VALUE - 8) )
+			throw new IllegalArgumentException("Unsupported grid size " + rows + "x" + cols);
+		if( population < 1 || population > (long)rows * cols )
+			throw new IllegalArgumentException("Population must be between 1 and " + (long)rows * cols);
+		if( steps < 0 )
+			throw new IllegalArgumentException("Steps must not be negative");
+		if( !engine.equals("sequential") && !engine.equals("parallel") && !engine.equals("fused") )
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		if( threads < 1 )
+			throw new IllegalArgumentException("Threads must be at least 1");
+		if( keyframes < 1 )
+			throw new IllegalArgumentException("Keyframe interval must be at least 1");
+		if( !(diffusion >= 0 && diffusion <= 1) || !(evaporation >= 0 && evaporation <= 1) )
+			throw new IllegalArgumentException("Diffusion and evaporation must be between 0 and 1");
+		if( checkpoint < 0 )
+			throw new IllegalArgumentException("Checkpoint interval must not be negative");
+		if( storage != null && (!engine.equals("sequential") || sparse || clusters || field || claims || journal != null) )
+			throw new IllegalArgumentException("Grid stores only run the sequential rules, without --sparse, --clusters, --field, --claims or --journal");
+		if( workers != 0 && (workers < 2 || rows < StripeCoordinator.MIN_STRIPE_ROWS * workers) )
+			throw new IllegalArgumentException("Workers must be at least 2, with at least " + StripeCoordinator.MIN_STRIPE_ROWS + " rows each");
+		if( workers != 0 && (!engine.equals("sequential") || sparse || clusters || field || claims || journal != null || storage != null) )
+			throw new IllegalArgumentException("Workers only run the sequential rules, without --sparse, --clusters, --field, --claims, --journal or --storage");
+		if( listen < 0 || listen > 65535 || (listen != 0 && workers == 0) )
+			throw new IllegalArgumentException("Listen port must be between 1 and 65535, with --workers");
+		if( stream != null && (storage != null || workers != 0) )
+			throw new IllegalArgumentException("Streaming needs the model arrays, without --storage or --workers");
+	}
+	
+	/**
+	 * Initializes the model, steps it the requested number of times and prints the results
+	 */
+	void run(){
+		
+		if( storage != null ){
+			runStore();
+			return;
+		}
+		if( workers != 0 ){
+			runStripes();
+			return;
+		}
+		
+		Model model = createModel();
+		Model reference = verify ? createModel() : null;
+		
+		if( engine.equals("parallel") )
+			model.setEngine(new ParallelStepEngine(threads));
+		else if( engine.equals("fused") )
+			model.setEngine(new FusedStepEngine());
+		model.setSparse(sparse);
+		model.setClusterTracking(clusters);
+		
+		FrameServer server = null;
+		if( stream != null ){
+			try{
+				server = new FrameServer(stream);
+				server.publish(model);
+				System.out.printf("Streaming frames on http://%s:%d/%n", stream.getHostString(), server.getAddress().getPort());
+			}
+			catch(IOException ioe){
+				System.err.println("Cannot stream on " + stream + ": " + ioe.getMessage());
+				System.exit(1);
+			}
+		}
+		
+		StepJournal recorder = null;
+		if( journal != null ){
+			try{
+				recorder = new StepJournal(journal, keyframes);
+				recorder.record(model);
+			}
+			catch(IOException ioe){
+				System.err.println("Cannot record to " + journal + ": " + ioe.getMessage());
+				System.exit(1);
+			}
+		}
+		
+		// The first step allocates the back buffers, so allocation is measured from the second step on
+		long start = System.nanoTime();
+		long allocatedAtStart = 0;
+		
+		for( int step = 0; step < steps; step++ ){
+			if( step == 1 )
+				allocatedAtStart = allocatedBytes();
+			model.step();
+			if( recorder != null )
+				recorder.record(model);
+			if( server != null )
+				server.publish(model);
+			
+			if( reference != null ){
+				reference.step();
+				if( !sameState(model, reference) ){
+					System.out.printf("Verification FAILED: state differs from the sequential reference after step %d%n", step + 1);
+					verify = false;
+					reference = null;
+				}
+				else if( clusters && !sameClusters(model.getClusters(), reference) ){
+					System.out.printf("Verification FAILED: clusters differ from a full rescan after step %d%n", step + 1);
+					verify = false;
+					reference = null;
+				}
+			}
+		}
+		
+		long allocated = allocatedBytes() - allocatedAtStart;
+		long elapsed = System.nanoTime() - start;
+		
+		if( recorder != null ){
+			try{
+				recorder.close();
+			}
+			catch(IOException ioe){
+				System.err.println("Recording to " + journal + " failed: " + ioe.getMessage());
+			}
+		}
+		if( server != null ){
+			System.out.printf("Streamed %d frames to %d viewers (%d dropped as the server fell behind, %d viewer resyncs)%n",
+					server.getPublished(), server.getViewers(), server.getDropped(), server.getResyncs());
+			try{
+				server.close();
+			}
+			catch(IOException ioe){
+				System.err.println("Streaming failed: " + ioe.getMessage());
+			}
+		}
+		double seconds = elapsed / 1e9;
+		double stepsPerSecond = seconds > 0 ? steps / seconds : 0;
+		
+		if( model.getEngine() instanceof ParallelStepEngine )
+			((ParallelStepEngine)model.getEngine()).shutdown();
+		
+		System.out.printf("Grid %dx%d, population %d, seed %d, %s engine%s%s%n", rows, cols, population, seed, engine,
+				(sparse ? ", sparse" : "") + (claims ? ", claim moves" : "") + (field ? String.format(", field (diffusion %.2f, evaporation %.2f)", diffusion, evaporation) : ""),
+				Model.DECAY instanceof ScalarDecayKernel ? "" : ", SIMD decay");
+		System.out.printf("%d steps in %.3f s: %.1f steps/sec, %.3e cell-updates/sec%n",
+				steps, seconds, stepsPerSecond, stepsPerSecond * rows * cols);
+		if( allocatedAtStart >= 0 && steps > 1 )
+			System.out.printf("Allocated %.1f bytes/step in steady state%n", (double)allocated / (steps - 1));
+		if( verify )
+			System.out.printf("Verified: state identical to the sequential reference after every step%s%n",
+					clusters ? ", clusters identical to a full rescan" : "");
+		if( clusters ){
+			ClusterTracker tracker = model.getClusters();
+			System.out.printf("Clusters: %d, largest %d molds, mean %.2f molds%n",
+					tracker.getClusterCount(), tracker.getLargestCluster(), tracker.getMeanClusterSize());
+		}
+		if( StepMetrics.ENABLED ){
+			int molds = 0;
+			for( boolean position : model.getPositions() )
+				if( position )
+					molds++;
+			StepMetrics.agents(molds);
+			StepMetrics.rates(stepsPerSecond, 0);
+			System.out.println(StepMetrics.INSTANCE.getSummary());
+		}
+		if( recorder != null )
+			System.out.printf("Recorded %d frames to %s (%d bytes, keyframe every %d frames)%n",
+					recorder.getFrames(), journal, journal.length(), keyframes);
+		printState(model);
+	}
+	
+	/**
+	 * Opens a grid store, steps it the requested number of times and prints the results
+	 * With --verify a model is stepped alongside, and the store's state is copied into another model to compare after every step
+	 */
+	void runStore(){
+		
+		Model settings = new Model();
+		settings.setPopulation(population);
+		settings.setSeed(seed);
+		
+		GridStore store = null;
+		try{
+			store = GridStore.open(storage, rows, cols, settings);
+		}
+		catch(IOException ioe){
+			System.err.println("Cannot open " + storage + " storage: " + ioe.getMessage());
+			System.exit(1);
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+		
+		long resumed = store.getStepCount();
+		Model reference = null, copy = null;
+		if( verify ){
+			reference = createModel();
+			copy = new Model(rows, cols);
+			while( reference.getStepCount() < resumed )
+				reference.step();
+		}
+		
+		long start = System.nanoTime();
+		try{
+			for( int step = 0; step < steps; step++ ){
+				
+				store.step();
+				if( checkpoint > 0 && (step + 1) % checkpoint == 0 )
+					store.checkpoint();
+				
+				if( reference != null ){
+					reference.step();
+					store.copyTo(copy);
+					if( !sameState(copy, reference) ){
+						System.out.printf("Verification FAILED: state differs from the model after step %d%n", store.getStepCount());
+						verify = false;
+						reference = null;
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			
+			double seconds = elapsed / 1e9;
+			double stepsPerSecond = seconds > 0 ? steps / seconds : 0;
+			
+			System.out.printf("Grid %dx%d, population %d, seed %d, %s storage%s%n", rows, cols, population, seed, storage,
+					resumed > 0 ? ", resumed at step " + resumed : "");
+			System.out.printf("%d steps in %.3f s: %.1f steps/sec, %.3e cell-updates/sec%n",
+					steps, seconds, stepsPerSecond, stepsPerSecond * rows * cols);
+			if( verify )
+				System.out.println("Verified: state identical to the model after every step");
+			
+			long[] census = store.census();
+			System.out.printf("Final state: %d molds, %d signalled cells, total phermone %d%n", census[0], census[1], census[2]);
+			if( cols <= MAX_PRINTED_COLS ){
+				Model model = new Model(rows, cols);
+				store.copyTo(model);
+				printGrid(model);
+			}
+			
+			store.close();
+		}
+		catch(IOException ioe){
+			System.err.println("Checkpoint of " + storage + " storage failed: " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Starts the stripe workers, steps them the requested number of times and prints the results gathered from them
+	 * With --verify a model is stepped alongside, and the stripes are gathered into another model to compare after every step
+	 */
+	void runStripes(){
+		
+		Model settings = new Model();
+		settings.setPopulation(population);
+		settings.setSeed(seed);
+		
+		Model reference = verify ? createModel() : null;
+		Model model = new Model(rows, cols);
+		
+		try{
+			StripeCoordinator coordinator = new StripeCoordinator(workers, rows, cols, settings, listen);
+			
+			long start = System.nanoTime();
+			for( int step = 0; step < steps; step++ ){
+				
+				coordinator.step();
+				
+				if( reference != null ){
+					reference.step();
+					coordinator.gather(model);
+					if( !sameState(model, reference) ){
+						System.out.printf("Verification FAILED: state differs from the model after step %d%n", step + 1);
+						verify = false;
+						reference = null;
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			
+			coordinator.gather(model);
+			coordinator.close();
+			
+			double seconds = elapsed / 1e9;
+			double stepsPerSecond = seconds > 0 ? steps / seconds : 0;
+			
+			System.out.printf("Grid %dx%d, population %d, seed %d, %d stripe workers%n", rows, cols, population, seed, workers);
+			System.out.printf("%d steps in %.3f s: %.1f steps/sec, %.3e cell-updates/sec%n",
+					steps, seconds, stepsPerSecond, stepsPerSecond * rows * cols);
+			if( verify )
+				System.out.println("Verified: state identical to the model after every step");
+			
+			long[] census = census(model);
+			System.out.printf("Final state: %d molds, %d signalled cells, total phermone %d%n", census[0], census[1], census[2]);
+			if( cols <= MAX_PRINTED_COLS )
+				printGrid(model);
+		}
+		catch(IOException ioe){
+			System.err.println("Distributed run failed: " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Creates and initializes a model from the run configuration
+	 * Models created with the same configuration start in the same state
+	 */
+	Model createModel(){
+		
+		Model model = new Model(rows, cols);
+		model.setPopulation(population);
+		model.setSeed(seed);
+		model.setFieldMode(field);
+		model.setDiffusion(diffusion);
+		model.setEvaporation(evaporation);
+		model.setClaimMoves(claims);
+		
+		model.initializePositions();
+		model.initializeDirectionsSignalsPhermones();
+		
+		return model;
+	}
+	
+	/**
+	 * Checks whether two models hold the same positions, directions, signals and phermones, and phermone field in field mode
+	 */
+	static boolean sameState(Model a, Model b){
+		
+		return java.util.Arrays.equals(a.getPositions(), b.getPositions())
+				&& java.util.Arrays.equals(a.getDirections(), b.getDirections())
+				&& java.util.Arrays.equals(a.getSignals(), b.getSignals())
+				&& java.util.Arrays.equals(a.getPhermones(), b.getPhermones())
+				&& a.isFieldMode() == b.isFieldMode()
+				&& (a.isFieldMode() == false || java.util.Arrays.equals(a.getField(), b.getField()));
+	}
+	
+	/**
+	 * Checks whether tracked cluster statistics match those found by a full rescan of another model's positions
+	 */
+	static boolean sameClusters(ClusterTracker tracker, Model model){
+		
+		ClusterTracker rescan = new ClusterTracker(model);
+		rescan.track();
+		
+		return tracker.getClusterCount() == rescan.getClusterCount()
+				&& tracker.getLargestCluster() == rescan.getLargestCluster()
+				&& tracker.getMolds() == rescan.getMolds();
+	}
+	
+	/**
+	 * Bytes allocated on the heap by the current thread so far, or -1 if the JVM cannot report it
+	 */
+	static long allocatedBytes(){
+		
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		if( threads instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+	
+	/**
+	 * Prints a summary of the model state, followed by the grid itself when it is narrow enough to read
+	 * Molds are drawn as '@', other cells as their phermone level
+	 * @param model model to be printed
+	 */
+	void printState(Model model){
+		
+		long[] census = census(model);
+		
+		System.out.printf("Final state: %d molds, %d signalled cells, total phermone %d, %d active tiles%n",
+				census[0], census[1], census[2], model.getActiveTiles());
+		
+		if( model.getCols() <= MAX_PRINTED_COLS )
+			printGrid(model);
+	}
+	
+	/**
+	 * Number of molds, cells with a signal, and the phermone total of a model, in that order
+	 */
+	static long[] census(Model model){
+		
+		long molds = 0, signalled = 0, phermoneTotal = 0;
+		
+		for( int i = 0; i < model.getRows(); i++ ){
+			for( int j = 0; j < model.getCols(); j++ ){
+				
+				int k = model.index(i, j);
+				if( model.getPositions()[k] == true )
+					molds++;
+				if( model.getSignals()[k] > 0 )
+					signalled++;
+				phermoneTotal += model.getPhermones()[k];
+			}
+		}
+		return new long[]{ molds, signalled, phermoneTotal };
+	}
+	
+	/**
+	 * Prints the grid, a character per cell: '@' for a mold, otherwise the phermone level
+	 */
+	void printGrid(Model model){
+		
+		StringBuilder line = new StringBuilder(model.getCols());
+		for( int i = 0; i < model.getRows(); i++ ){
+			
+			line.setLength(0);
+			for( int j = 0; j < model.getCols(); j++ ){
+				
+				int k = model.index(i, j);
+				if( model.getPositions()[k] == true )
+					line.append('@');
+				else if( model.getPhermones()[k] == 0 )
+					line.append('.');
+				else
+					line.append((char)('0' + Math.min(model.getPhermones()[k], 9)));
+			}
+			System.out.println(line);
+		}
+	}
+	
+}
@@ -0,0 +1,280 @@
+/**
+ * JournalPlayer.java
+ * Replays a run recorded by StepJournal without re-running the model
+ * Seeking to a frame decodes the last keyframe at or before it (found in the index) and applies the deltas after it,
+ * so it reads at most one keyframe interval of records
+ * The replayed state is kept in a Model, which can be handed to View.updateGrid; deltas are written through Model.setCell,
+ * so the model can also be stepped on from a replayed frame once it is given the recorded run's settings (signal lifetime,
+ * phermone levels and modes), which the journal does not hold
+ *
+ * Usage: java JournalPlayer FILE [--from=FRAME] [--fps=N]
+ *
+ * @author Philip Lin
+ */
+import javax.swing.*;
+import java.awt.event.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class JournalPlayer implements Closeable{
+	
+	// Defaults:
+	final static int DEFAULT_FPS = 30;
+	
+	private final FileChannel journal;
+	private final int keyframeInterval;
+	
+	// Index: frame number and record offset of each keyframe, in frame order
+	private long[] keyframes;
+	private long[] keyframeOffsets;
+	private int keyframeCount;
+	private long frameCount;
+	
+	// Replayed state, the frame it is at, and the offset of the record of the next frame
+	private final Model model;
+	private long frame;
+	private long nextOffset;
+	
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(StepJournal.RECORD_HEADER_BYTES);
+	private ByteBuffer payload = ByteBuffer.allocate(1 << 16);
+	
+	/**
+	 * Constructor
+	 * Reads the index and positions the player at the first frame
+	 * @param file journal file written by StepJournal
+	 */
+	public JournalPlayer(File file) throws IOException{
+		
+		journal = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		
+		try{
+			ByteBuffer header = ByteBuffer.allocate(StepJournal.HEADER_BYTES);
+			readFully(header, 0);
+			if( header.getInt() != StepJournal.MAGIC )
+				throw new IOException("Not a step journal");
+			short version = header.getShort();
+			if( version > StepJournal.VERSION )
+				throw new IOException("Unsupported journal version " + version);
+			keyframeInterval = header.getInt();
+			
+			readIndex(StepJournal.indexFile(file));
+			if( keyframeCount == 0 )
+				throw new IOException("Journal has no keyframes");
+			
+			model = new Model(1, 1);
+			seek(0);
+		}
+		catch(IOException ioe){
+			journal.close();
+			throw ioe;
+		}
+	}
+	
+	public static void main(String[] args){
+		
+		File file = null;
+		long from = 0;
+		int fps = DEFAULT_FPS;
+		
+		try{
+			for( String arg : args ){
+				if( arg.startsWith("--from=") )
+					from = Long.parseLong(arg.substring(7));
+				else if( arg.startsWith("--fps=") )
+					fps = Integer.parseInt(arg.substring(6));
+				else if( !arg.startsWith("--") && file == null )
+					file = new File(arg);
+				else
+					throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			}
+			if( file == null )
+				throw new IllegalArgumentException("No journal file given");
+			if( fps < 1 )
+				throw new IllegalArgumentException("Frames per second must be at least 1");
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.err.println("Usage: java JournalPlayer FILE [--from=FRAME] [--fps=N]");
+			System.exit(1);
+		}
+		
+		try{
+			final JournalPlayer player = new JournalPlayer(file);
+			player.seek(Math.min(from, player.getFrameCount() - 1));
+			
+			final View view = new View(player.getModel());
+			view.initialize();
+			view.updateGrid(player.getModel());
+			
+			new Timer(1000 / fps, new ActionListener(){
+				public void actionPerformed(ActionEvent e){
+					try{
+						if( player.next() )
+							view.updateGrid(player.getModel());
+						else
+							((Timer)e.getSource()).stop();
+					}
+					catch(IOException ioe){
+						ioe.printStackTrace();
+						((Timer)e.getSource()).stop();
+					}
+				}
+			}).start();
+		}
+		catch(IOException ioe){
+			System.err.println("Cannot play " + file + ": " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Reads the keyframe index, then counts the frames after the last keyframe
+	 */
+	private void readIndex(File indexFile) throws IOException{
+		
+		try( FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ) ){
+			
+			ByteBuffer entries = ByteBuffer.allocate((int)index.size());
+			while( entries.hasRemaining() && index.read(entries) >= 0 );
+			entries.flip();
+			
+			keyframeCount = entries.remaining() / StepJournal.INDEX_ENTRY_BYTES;
+			keyframes = new long[keyframeCount];
+			keyframeOffsets = new long[keyframeCount];
+			for( int i = 0; i < keyframeCount; i++ ){
+				keyframes[i] = entries.getLong();
+				keyframeOffsets[i] = entries.getLong();
+			}
+		}
+		
+		if( keyframeCount == 0 )
+			return;
+		
+		// Frames after the last keyframe, up to the last complete record
+		long offset = keyframeOffsets[keyframeCount - 1];
+		frameCount = keyframes[keyframeCount - 1];
+		while( offset + StepJournal.RECORD_HEADER_BYTES <= journal.size() ){
+			
+			recordHeader.clear();
+			readFully(recordHeader, offset);
+			long end = offset + StepJournal.RECORD_HEADER_BYTES + recordHeader.getInt(17);
+			if( end > journal.size() )
+				break;
+			
+			frameCount = recordHeader.getLong(1) + 1;
+			offset = end;
+		}
+	}
+	
+	/**
+	 * Moves the replayed state to a frame
+	 * @param target frame number, from 0 to getFrameCount() - 1
+	 */
+	public void seek(long target) throws IOException{
+		
+		if( target < 0 || target >= frameCount )
+			throw new IllegalArgumentException("No frame " + target + " in a journal of " + frameCount + " frames");
+		
+		// Carry on from the current frame when no keyframe is passed on the way, otherwise start from the last keyframe
+		int i = Arrays.binarySearch(keyframes, 0, keyframeCount, target);
+		if( i < 0 )
+			i = -i - 2;
+		
+		if( target < frame || keyframes[i] > frame || nextOffset == 0 ){
+			nextOffset = keyframeOffsets[i];
+			next();
+		}
+		while( frame < target && next() );
+	}
+	
+	/**
+	 * Applies the next frame to the replayed state
+	 * @return false if there are no more frames
+	 */
+	public boolean next() throws IOException{
+		
+		if( nextOffset + StepJournal.RECORD_HEADER_BYTES > journal.size() )
+			return false;
+		
+		recordHeader.clear();
+		readFully(recordHeader, nextOffset);
+		byte type = recordHeader.get();
+		long recordFrame = recordHeader.getLong();
+		long step = recordHeader.getLong();
+		int length = recordHeader.getInt();
+		
+		if( nextOffset + StepJournal.RECORD_HEADER_BYTES + length > journal.size() )
+			return false;
+		if( payload.capacity() < length )
+			payload = ByteBuffer.allocate(length);
+		payload.clear();
+		payload.limit(length);
+		readFully(payload, nextOffset + StepJournal.RECORD_HEADER_BYTES);
+		
+		if( type == StepJournal.KEYFRAME ){
+			
+			Model keyframe = SnapshotCodec.decode(payload);
+			model.setDimensions(keyframe.getRows(), keyframe.getCols());
+			model.setPopulation(keyframe.getPopulation());
+			model.setSeed(keyframe.getSeed());
+			model.setPositions(keyframe.getPositions());
+			model.setDirections(keyframe.getDirections());
+			model.setSignals(keyframe.getSignals());
+			model.setPhermones(keyframe.getPhermones());
+		}
+		else if( type == StepJournal.DELTA ){
+			
+			int changed = payload.getInt();
+			for( int c = 0, k = 0; c < changed; c++ ){
+				
+				int gap = 0;
+				for( int shift = 0; ; shift += 7 ){
+					byte b = payload.get();
+					gap |= (b & 0x7F) << shift;
+					if( b >= 0 )
+						break;
+				}
+				k += gap;
+				StepJournal.applyCellState(model, k, payload.getShort());
+			}
+		}
+		else
+			throw new IOException("Corrupt journal record at offset " + nextOffset);
+		
+		model.setStepCount(step);
+		frame = recordFrame;
+		nextOffset += StepJournal.RECORD_HEADER_BYTES + length;
+		return true;
+	}
+	
+	/**
+	 * Reads from the journal at an offset until the buffer is full from its position to its limit, and flips it for reading
+	 */
+	private void readFully(ByteBuffer buffer, long offset) throws IOException{
+		
+		long start = offset - buffer.position();
+		while( buffer.hasRemaining() ){
+			if( journal.read(buffer, start + buffer.position()) < 0 )
+				throw new EOFException("Journal is truncated");
+		}
+		buffer.flip();
+	}
+	
+	/**
+	 * Replayed state, as of getFrame()
+	 */
+	public Model getModel(){ return model; }
+	public long getFrame(){ return frame; }
+	public long getFrameCount(){ return frameCount; }
+	public int getKeyframeInterval(){ return keyframeInterval; }
+	
+	@Override
+	public void close() throws IOException{
+		
+		journal.close();
+	}
+	
+}
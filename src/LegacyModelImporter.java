@@ -0,0 +1,112 @@
+/**
+ * LegacyModelImporter.java
+ * One-way importer for model files saved with Java serialization by earlier versions (e.g. save_state.ser)
+ * Those files hold a Model with serialVersionUID 1 and nested [row][col] arrays, which no longer matches the
+ * current Model class, so the stream is read into LegacyModel instead and converted to a current model
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+
+public class LegacyModelImporter extends ObjectInputStream{
+	
+	/**
+	 * Constructor
+	 * @param in stream holding a serialized legacy model
+	 */
+	public LegacyModelImporter(InputStream in) throws IOException{
+		
+		super(in);
+	}
+	
+	/**
+	 * Reads a legacy model file into a current model
+	 * The seed of the imported model is new, since legacy files did not save one
+	 * @param file file to be read
+	 * @return model holding the state in the file
+	 */
+	public static Model read(File file) throws IOException{
+		
+		try( LegacyModelImporter in = new LegacyModelImporter(new BufferedInputStream(new FileInputStream(file))) ){
+			
+			Object read = in.readObject();
+			if( !(read instanceof LegacyModel) )
+				throw new InvalidObjectException("Not a legacy model file");
+			
+			return ((LegacyModel)read).toModel();
+		}
+		catch(ClassNotFoundException cnfe){
+			throw new InvalidClassException(cnfe.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads the legacy Model class descriptor as that of LegacyModel, which has the same serialized fields
+	 */
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException{
+		
+		ObjectStreamClass descriptor = super.readClassDescriptor();
+		
+		if( descriptor.getName().equals("Model") && descriptor.getSerialVersionUID() == LegacyModel.serialVersionUID )
+			return ObjectStreamClass.lookup(LegacyModel.class);
+		return descriptor;
+	}
+	
+	/**
+	 * Serialized form of the legacy Model
+	 */
+	static class LegacyModel implements Serializable{
+		
+		private static final long serialVersionUID = 1L;
+		
+		private boolean[][] positions;
+		private int[][] signals;
+		private int[][] phermones;
+		private int[][] directions;
+		private int population;
+		private int speed;
+		
+		/**
+		 * Converts to a current model with flat row-major arrays
+		 */
+		Model toModel() throws InvalidObjectException{
+			
+			if( positions == null || positions.length == 0 || positions[0].length == 0 )
+				throw new InvalidObjectException("Legacy model has no grid");
+			
+			int rows = positions.length;
+			int cols = positions[0].length;
+			Model model = new Model(rows, cols);
+			
+			boolean[] flatPositions = new boolean[rows * cols];
+			byte[] flatDirections = new byte[rows * cols];
+			byte[] flatSignals = new byte[rows * cols];
+			byte[] flatPhermones = new byte[rows * cols];
+			
+			for( int i = 0; i < rows; i++ ){
+				
+				if( positions[i].length != cols || signals[i].length != cols || phermones[i].length != cols || directions[i].length != cols )
+					throw new InvalidObjectException("Legacy model grid is not rectangular");
+				
+				for( int j = 0; j < cols; j++ ){
+					
+					int k = model.index(i, j);
+					flatPositions[k] = positions[i][j];
+					flatDirections[k] = (byte)(directions[i][j] / 45);
+					flatSignals[k] = (byte)signals[i][j];
+					flatPhermones[k] = (byte)phermones[i][j];
+				}
+			}
+			
+			model.setPopulation(population);
+			model.setSpeed(speed);
+			model.setPositions(flatPositions);
+			model.setDirections(flatDirections);
+			model.setSignals(flatSignals);
+			model.setPhermones(flatPhermones);
+			return model;
+		}
+	}
+	
+}
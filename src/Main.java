@@ -2,9 +2,12 @@
  * Main.java
  * Main class
  * Sets up the simulation using the View and Model
+ * With --record=FILE every step taken in the view is recorded to a StepJournal, which JournalPlayer replays
+ * With --field the molds steer on the continuous phermone field, and with --claims they move by claiming cells
  * 
  * @author Philip Lin
  */
+import java.io.*;
 
 public class Main{
 	
@@ -14,6 +17,27 @@ public class Main{
 		View view = new View(model);
 		
 		view.initialize();
+		
+		for( String arg : args ){
+			if( arg.equals("--field") )
+				model.setFieldMode(true);
+			if( arg.equals("--claims") )
+				model.setClaimMoves(true);
+			if( arg.startsWith("--record=") ){
+				try{
+					final StepJournal journal = new StepJournal(new File(arg.substring(9)), StepJournal.DEFAULT_KEYFRAME_INTERVAL);
+					view.setJournal(journal);
+					
+					Runtime.getRuntime().addShutdownHook(new Thread(){
+						public void run(){
+							try{ journal.close(); }
+							catch(IOException ioe){ ioe.printStackTrace(); }
+						}
+					});
+				}
+				catch(IOException ioe){ ioe.printStackTrace(); }
+			}
+		}
 	}
 	
 }
\ No newline at end of file
@@ -25,7 +25,7 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 	private ImageIcon setupIcon, stepIcon, saveIcon, loadIcon, goIcon, stopIcon;
 	private JFileChooser fileChooser;
 	private JSlider populationSlider, speedSlider;
-	private JLabel populationLabel, speedLabel, actionLabel;
+	private JLabel populationLabel, speedLabel, actionLabel, metricsLabel;
 	
 	/**
 	 * Constructor
@@ -60,7 +60,8 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 		stepButton.setEnabled(false);
 		goButton.setEnabled(false);
 		populationSlider = new JSlider(1, 50, model.getPopulation());
-		speedSlider = new JSlider(50, 1000, model.getSpeed());
+		speedSlider = new JSlider(0, 1000, model.getSpeed());
+		speedSlider.setToolTipText("Milliseconds per step (0 runs as fast as possible)");
 		populationLabel = new JLabel("<html><b><font color=#696969>Slime Population</font></html>", JLabel.CENTER);
 		speedLabel = new JLabel("<html><b><font color=#696969>Simulation Speed</font></html>", JLabel.CENTER);
 		actionLabel = new JLabel("", JLabel.CENTER);
@@ -85,7 +86,19 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 		add(populationSlider);
 		add(speedLabel);
 		add(speedSlider);
-		add(actionLabel);
+		
+		// With metrics on, the latest timings are shown under the action label
+		if( StepMetrics.ENABLED ){
+			metricsLabel = new JLabel("", JLabel.CENTER);
+			metricsLabel.setFont(metricsLabel.getFont().deriveFont(10f));
+			JPanel actionPanel = new JPanel(new GridLayout(2, 1));
+			actionPanel.setBackground(Color.WHITE);
+			actionPanel.add(actionLabel);
+			actionPanel.add(metricsLabel);
+			add(actionPanel);
+		}
+		else
+			add(actionLabel);
 	}
 	
 	/**
@@ -110,8 +123,8 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 			if( fileChooser.showSaveDialog(MenuJPanel.this) == JFileChooser.APPROVE_OPTION ){
 				
 				File file = fileChooser.getSelectedFile();
+				actionLabel.setText("Saving...");
 				view.save(file, model);
-				actionLabel.setText("State Saved.");
 			}
 		}
 		if( e.getSource() == loadButton ){
@@ -119,10 +132,8 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 			if( fileChooser.showOpenDialog(MenuJPanel.this) == JFileChooser.APPROVE_OPTION ){
 				
                 File file = fileChooser.getSelectedFile();
+                actionLabel.setText("Loading...");
                 view.load(file);
-    				actionLabel.setText("State Loaded.");
-    				goButton.setEnabled(true);
-    				stepButton.setEnabled(true);
 			}
 		}
 	}
@@ -138,30 +149,110 @@ public class MenuJPanel extends JPanel implements ActionListener, ItemListener,
 			goButton.setIcon(stopIcon);
 			goButton.setToolTipText("Stop Simulation");
 			actionLabel.setText("Running...");
+			setStateButtonsEnabled(false);
 			try{
-				stepManager = new StepManager(view, model);
+				stepManager = new StepManager(view, model){
+					
+					// Runs on the EDT once the steps in flight have finished
+					@Override
+					protected void done(){
+						
+						stepsDone(this);
+					}
+				};
 				stepManager.execute();
 			}catch(Exception e1){ e1.printStackTrace(); }
 		}
 		else{	
 			goButton.setIcon(goIcon);
 			goButton.setToolTipText("Run Simulation");
-			actionLabel.setText("Stopped.");
-			stepManager.cancel(true);
 			goButton.setSelected(false);
+			if( !stepManager.isDone() ){
+				// The buttons stay disabled until the steps in flight have finished
+				actionLabel.setText("Stopping...");
+				goButton.setEnabled(false);
+				stepManager.stop();
+			}
 		}		
 	}
 	
+	/**
+	 * Re-enables the buttons once a step manager has stopped, and reports a step that failed
+	 */
+	private void stepsDone(StepManager finished){
+		
+		try{
+			finished.get();
+			actionLabel.setText("Stopped.");
+		}
+		catch(Exception e1){
+			e1.printStackTrace();
+			goButton.setSelected(false);
+			actionLabel.setText("Step Failed.");
+		}
+		goButton.setEnabled(true);
+		setStateButtonsEnabled(true);
+	}
+	
+	/**
+	 * Shows the outcome of an action that finished in the background
+	 */
+	void showAction(String text){
+		
+		actionLabel.setText(text);
+	}
+	
+	/**
+	 * Enables stepping and running once a loaded state has been copied into the model
+	 */
+	void stateLoaded(){
+		
+		actionLabel.setText("State Loaded.");
+		goButton.setEnabled(true);
+		stepButton.setEnabled(true);
+	}
+	
+	/**
+	 * Shows the step and render p99 latencies and dropped frames in the overlay, with the full summary as its tooltip
+	 */
+	void showMetrics(StepMetrics metrics){
+		
+		double[] p99 = metrics.getP99Micros();
+		metricsLabel.setText(String.format("p99 step %.1f ms, render %.1f ms, %d dropped",
+				p99[StepMetrics.STEP] / 1e3, p99[StepMetrics.RENDER] / 1e3, metrics.getDroppedFrames()));
+		metricsLabel.setToolTipText("<html><pre>" + metrics.getSummary() + "</pre></html>");
+	}
+	
+	/**
+	 * Enables or disables the buttons that read or change the model state, which must not be used while it runs
+	 */
+	void setStateButtonsEnabled(boolean enabled){
+		
+		setupButton.setEnabled(enabled);
+		stepButton.setEnabled(enabled);
+		saveButton.setEnabled(enabled);
+		loadButton.setEnabled(enabled);
+	}
+	
+	/**
+	 * Shows the simulated steps per second and rendered frames per second while the simulation runs
+	 */
+	void showRates(double stepsPerSecond, double framesPerSecond){
+		
+		if( goButton.isSelected() )
+			actionLabel.setText(String.format("Running: %.0f steps/s, %.0f fps", stepsPerSecond, framesPerSecond));
+	}
+	
 	/**
 	 * Handles the events that occur when a slider is changed
 	 * @param e event from changed slider
 	 */
 	public void stateChanged(ChangeEvent e){
-		
+
         if( !populationSlider.getValueIsAdjusting() )
             model.setPopulation( (int)populationSlider.getValue() );
         if( !speedSlider.getValueIsAdjusting() )
         		model.setSpeed( (int)speedSlider.getValue() );
 	}
-
+	
 }
\ No newline at end of file
@@ -7,82 +7,227 @@
  * @author Philip Lin
  */
 import java.io.*;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class Model implements Serializable{
 	
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 3L;
 	
 	// Threads: 
-	final transient Runnable directionUpdater;
-	final transient Runnable phermoneUpdater;
-	final transient Runnable positionUpdater;
-	final transient Runnable signalUpdater;
+	final transient Runnable stepUpdater;
 	
-	// Model arrays: 
-	private boolean[][] positions;
-	private int[][] signals;
-	private int[][] phermones;
-	private int[][] directions;
+	// Engine that runs the update phases of a step (sequential when null):
+	private transient StepEngine engine;
+	
+	// Model arrays (flat, row-major, cell (i, j) at index i * cols + j), directions as codes 0 to 7 (code * 45 degrees): 
+	private boolean[] positions;
+	private byte[] signals;
+	private byte[] phermones;
+	private byte[] directions;
+	
+	// Back buffers for updatePositions, swapped with the model arrays after each step (always cleared):
+	private transient boolean[] nextPositions;
+	private transient byte[] nextDirections;
+	
+	// Agent list for the sparse mode (molds in row-major order, as parallel arrays of column, row and direction);
+	// the position array doubles as the occupancy index, and is kept up to date along with the direction array
+	// Only steering and moving follow the list: signals and phermones still decay over every active tile, so a step costs
+	// time in proportion to the tiles the molds' trails cover, which is most of the grid once there is a mold to every tile or two:
+	private boolean sparse;
+	private transient boolean agentsValid;
+	private transient int agentCount;
+	private transient int[] agentX;
+	private transient int[] agentY;
+	private transient byte[] agentDirections;
+	private transient int[] agentScratch;
+	private transient long[] agentKeys;
+	private transient long[] agentSortScratch;
+	private transient int[] agentSortCounts;
+	
+	// Tile activity: the grid is split into TILE_SIZE x TILE_SIZE tiles, and only active tiles are updated
+	// A tile that is not active holds no molds, signals or phermones; tiles are all active again whenever the arrays are replaced
+	private transient int tileRows;
+	private transient int tileCols;
+	private transient boolean[] tileActive;
+	private transient boolean[] tileWoken;
+	private transient boolean[] tileBusy;
+	
+	// Field mode: the molds steer on a continuous phermone field of float levels, which diffuses by a separable blur
+	// (through one scratch buffer) and evaporates each step; the phermone array then holds the levels rounded down to at most
+	// the phermone max, for display and saving
+	private boolean fieldMode;
+	private transient float[] field;
+	private transient float[] fieldScratch;
+	private float diffusion;
+	private float evaporation;
+	
+	// Claim moves: instead of moving in row-major order, every mold first claims the cell it moves to (if it was empty at the start
+	// of the step) by compare-and-set on the claim array, which holds the claiming cell + 1, with claims of higher priority for the
+	// step replacing lower ones; then the molds left holding their claims move and clear them, and the rest stay put
+	// On the grid, the molds and the cells they move to are listed as they claim, so the moves do not scan the grid again
+	private boolean claimMoves;
+	private transient AtomicIntegerArray claims;
+	private transient long claimSeed;
+	private transient MoveList claimList;
+	
+	// Cluster statistics, kept up to date from the moves of each step (not tracked when null):
+	private transient ClusterTracker clusters;
+	
+	// Wrap-around tables, with a ghost entry before and after each row and column: wrapRows[i + 1] is the index of the
+	// first cell of row i and wrapCols[j + 1] is column j, for i from -1 to rows and j from -1 to cols
+	private transient int[] wrapRows;
+	private transient int[] wrapCols;
+	
+	// Stripe of a larger grid held by a StripeWorker: local row 0 is row stripeRow of a grid of gridRows rows, and local cell k
+	// of the stripe's own rows is cell k + cellOffset of that grid; random draws and the deposit order follow the larger grid
+	private transient boolean stripe;
+	private transient int stripeRow;
+	private transient int gridRows;
+	private transient long cellOffset;
+	
+	// Row and column offsets of the cell a mold moves to, for each direction code (0 is along the row, codes turn towards the next row):
+	final static int[] DIRECTION_ROWS = { 0, 1, 1, 1, 0, -1, -1, -1 };
+	final static int[] DIRECTION_COLS = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	
+	// Direction codes of the cells sensed to the left, ahead and to the right, for each direction code
+	// (code 2 has always sensed the cells of codes 1, 3 and 4):
+	final static int[] SENSORS = { 7, 0, 1,  0, 1, 2,  1, 3, 4,  2, 3, 4,  3, 4, 5,  4, 5, 6,  5, 6, 7,  6, 7, 0 };
+	
+	// Random streams split from the seed:
+	final static long DIRECTION_STREAM = 1;
+	final static long CLAIM_STREAM = 2;
+	
+	// Kernel of the decay passes, SIMD when available:
+	final static DecayKernel DECAY = DecayKernel.select();
 	
 	// Variables:
-	final static Random generator = new Random();
-	final static int ROWS = 50;
-	final static int COLS = 50;
-	final static int phermoneMax = 4;
-	final static int phermone1Step = 3;
+	final static int DEFAULT_ROWS = 50;
+	final static int DEFAULT_COLS = 50;
+	final static int DEFAULT_PHERMONE_MAX = 4;
+	final static int DEFAULT_PHERMONE_1_STEP = 3;
+	final static int DEFAULT_SIGNAL_LIFETIME = 2;
+	// A new mold's signal starts at the lifetime + 1, which must fit the 4 signal bits of StepJournal.cellState:
+	final static int MAX_SIGNAL_LIFETIME = 14;
+	final static int TILE_SIZE = 32;
+	final static int AGENT_SORT_BITS = 11;
+	final static float DEFAULT_DIFFUSION = 0.5f;
+	final static float DEFAULT_EVAPORATION = 0.1f;
+	final static int FIELD_BLOCK_COLS = 2048;
+	private int rows;
+	private int cols;
 	private int population;
+	private int phermoneMax;
+	private int phermone1Step;
+	private int signalLifetime;
 	private int speed;
+	private long seed;
+	private long stepCount;
 	
 	/**
 	 * Constructor
-	 * Defines the threads as runnables
+	 * Creates a model with the default grid dimensions
 	 */
 	public Model(){
 		
-		directionUpdater = new Runnable(){
+		this(DEFAULT_ROWS, DEFAULT_COLS);
+	}
+	
+	/**
+	 * Constructor
+	 * Defines the step thread as a runnable
+	 * @param rows number of rows (grid height)
+	 * @param cols number of columns (grid width)
+	 */
+	public Model(int rows, int cols){
+		
+		setDimensions(rows, cols);
+		
+		stepUpdater = new Runnable(){
             public void run(){
-                Model.this.updateDirections();
+                Model.this.step();
             }
         };
-        
-        phermoneUpdater = new Runnable(){
-        		public void run(){
-        			Model.this.updatePhermones();
-        		}
-        };
-        
-        positionUpdater = new Runnable(){
-    			public void run(){
-    				Model.this.updatePositions();
-    			}
-        };
-        
-        signalUpdater = new Runnable(){
-        		public void run(){
-        			Model.this.updateSignals();
-        		}
-        };
 		
 		population = 10;
 		speed = 500;
+		phermoneMax = DEFAULT_PHERMONE_MAX;
+		phermone1Step = DEFAULT_PHERMONE_1_STEP;
+		signalLifetime = DEFAULT_SIGNAL_LIFETIME;
+		diffusion = DEFAULT_DIFFUSION;
+		evaporation = DEFAULT_EVAPORATION;
+		seed = new SplittableRandom().nextLong();
 	}
 	
 	/**
-	 * Randomizes the positions of the slime molds at the start
+	 * Performs one step of the simulation
+	 * Updates directions, phermones, positions and signals in that order, using the engine if one is set
+	 * Each phase is timed in StepMetrics when metrics are on
+	 */
+	public void step(){
+		
+		long start = StepMetrics.start(), lap = start;
+		
+		if( engine != null )
+			engine.step(this);
+		else{
+			updateDirections();
+			lap = StepMetrics.lap(StepMetrics.DIRECTIONS, lap);
+			updatePhermones();
+			lap = StepMetrics.lap(StepMetrics.PHERMONES, lap);
+			updatePositions();
+			lap = StepMetrics.lap(StepMetrics.POSITIONS, lap);
+			updateSignals();
+			StepMetrics.lap(StepMetrics.SIGNALS, lap);
+		}
+		stepCount++;
+		
+		StepMetrics.lap(StepMetrics.STEP, start);
+	}
+	
+	/**
+	 * Randomizes the positions of the slime molds at the start, from a generator seeded with the model seed
+	 * Restarts the step count, so the same seed always gives the same run
+	 * A stripe draws the positions of the whole larger grid, and keeps those in its own rows
 	 * Used when simulation is initialized in the view
 	 */
 	public void initializePositions(){
 		
-		positions = new boolean[ROWS][COLS];
+		SplittableRandom generator = new SplittableRandom(seed);
+		
+		positions = new boolean[rows * cols];
+		agentsValid = false;
+		tileActive = null;
+		stepCount = 0;
+		
+		if( stripe ){
+			
+			java.util.BitSet drawn = new java.util.BitSet(gridRows * cols);
+			
+			for( int i = 0; i < population; i++){
+				
+				int xpos = generator.nextInt(gridRows);
+				int ypos = generator.nextInt(cols);
+				int row = (xpos - stripeRow + gridRows) % gridRows;
+				
+				if( drawn.get(xpos * cols + ypos) == false ){
+					drawn.set(xpos * cols + ypos);
+					if( row >= 1 && row <= rows - 2 )
+						positions[index(row, ypos)] = true;
+				}
+				else
+					--i;
+			}
+			return;
+		}
 		
 		for( int i = 0; i < population; i++){
 			
-			int xpos = generator.nextInt(ROWS);
-			int ypos = generator.nextInt(COLS);
+			int xpos = generator.nextInt(rows);
+			int ypos = generator.nextInt(cols);
 			
-			if( positions[xpos][ypos] == false )
-				positions[xpos][ypos] = true;
+			if( positions[index(xpos, ypos)] == false )
+				positions[index(xpos, ypos)] = true;
 			else
 				--i;
 		}
@@ -90,88 +235,326 @@ public class Model implements Serializable{
 	
 	/**
 	 * Initializes the model arrays directions, signals, and phermones to initial values
-	 * Signals start where molds are initially positioned, and are set to level of 2 (level reduces each step)
-	 * Directions randonly initialized for each mold
+	 * Signals start where molds are initially positioned, and are set to one more than the signal lifetime (level reduces each step)
+	 * Directions randonly initialized for each mold, from a stream of the model seed keyed by cell
 	 * Phermones initialized to the defined max phermone level
 	 * Used when simulation is initialized in the view
 	 */
 	public void initializeDirectionsSignalsPhermones(){
 		
-		directions = new int[ROWS][COLS];
-		signals = new int[ROWS][COLS];
-		phermones = new int[ROWS][COLS];
+		long directionSeed = CellRandom.split(seed, DIRECTION_STREAM);
+		
+		directions = new byte[rows * cols];
+		agentsValid = false;
+		tileActive = null;
+		signals = new byte[rows * cols];
+		phermones = new byte[rows * cols];
+		field = null;
 		
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+		for( int k = 0; k < rows * cols; k++ ){
+			
+			if( positions[k] == true ){
 				
-				if( positions[i][j] == true ){
-					
-					directions[i][j] = generator.nextInt(8) * 45;
-					signals[i][j] = 3;
-					phermones[i][j] = phermoneMax;
-				}
+				directions[k] = (byte)CellRandom.next(directionSeed, cellOffset + k, 8);
+				signals[k] = (byte)(signalLifetime + 1);
+				phermones[k] = (byte)phermoneMax;
 			}
 		}
 	}
-		
+	
 	/**
 	 * Moves every cell 1 position in the position array
 	 * Movement based on direction of the cell from the direction array
 	 * Also transfers pre-determined direction from old position to new position
+	 * New positions and directions are written to the back buffers, and each old cell is cleared as it is read,
+	 * so after the swap the back buffers are clear again and a step allocates nothing
+	 * With claim moves every mold claims its cell before any mold moves, so the outcome does not depend on the order of the molds
 	 */
 	public void updatePositions(){
 		
-		int newXPosition = 0, newYPosition = 0;
-		boolean[][] newPositions = new boolean[ROWS][COLS];
-		int[][] newDirections = new int[ROWS][COLS];
+		if( sparse )
+			ensureAgents();
+		
+		if( claimMoves ){
+			beginPositions();
+			if( sparse ){
+				claimAgentMoves(0, agentCount);
+				moveAgentsByClaims(0, agentCount);
+			}
+			else{
+				listMoves(0, rows, claimList);
+				for( int m = 0; m < claimList.count; m++ )
+					moveByClaim(claimList.cells[m], claimList.targets[m]);
+			}
+			endPositions();
+			if( sparse )
+				sortAgents();
+			return;
+		}
+		
+		if( sparse ){
+			updateAgentPositions();
+			return;
+		}
+		
+		beginPositions();
+		moveMolds(0, rows);
+		endPositions();
+	}
+	
+	/**
+	 * Moves the molds of rows [fromRow, toRow) in row-major order, between beginPositions and endPositions
+	 */
+	void moveMolds(int fromRow, int toRow){
+		
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int firstTile = (i / TILE_SIZE) * tileCols;
+			
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
 				
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+				if( tileActive[t] == false )
+					continue;
 				
-				if( positions[i][j] == true ){
+				int fromCol = (t - firstTile) * TILE_SIZE, toCol = Math.min(cols, fromCol + TILE_SIZE);
+				for( int j = fromCol, k = index(i, fromCol); j < toCol; j++, k++ ){
 					
-					// Determine new position based on the direction
-					switch( directions[i][j] ){
-						case 0:		newXPosition = i;
-									newYPosition = j + 1;
-									break;
-						case 45:	newXPosition = i + 1;
-									newYPosition = j + 1;
-									break;
-						case 90:	newXPosition = i + 1;
-									newYPosition = j;
-									break;
-						case 135:	newXPosition = i + 1;
-									newYPosition = j - 1;
-									break;
-						case 180:	newXPosition = i;
-									newYPosition = j - 1;
-									break;
-						case 225:	newXPosition = i - 1;
-									newYPosition = j - 1;
-									break;
-						case 270:	newXPosition = i - 1;
-									newYPosition = j;
-									break;
-						case 315:	newXPosition = i - 1;
-									newYPosition = j + 1;
-									break;
-					}
+					if( positions[k] == true )
+						moveMold(k, moveTarget(i, j, directions[k]));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copies row i of the back buffers into a row of cell codes: Snapshot.MOLD + direction code for an occupied cell,
+	 * otherwise the direction code last written to it
+	 */
+	void getNextRow(int i, byte[] cells){
+		
+		for( int j = 0, k = index(i, 0); j < cols; j++, k++ )
+			cells[j] = (byte)((nextPositions[k] ? Snapshot.MOLD : 0) | nextDirections[k]);
+	}
+	
+	/**
+	 * Replaces row i of the back buffers with a row of cell codes from getNextRow, activating the tiles molds move into
+	 */
+	void setNextRow(int i, byte[] cells){
+		
+		for( int j = 0, k = index(i, 0); j < cols; j++, k++ ){
+			
+			nextPositions[k] = (cells[j] & Snapshot.MOLD) != 0;
+			nextDirections[k] = (byte)(cells[j] & 7);
+			if( nextPositions[k] )
+				tileActive[tileOf(i, j)] = true;
+		}
+	}
+	
+	/**
+	 * Makes sure the back buffers, and the claim array for claim moves, exist before molds are moved
+	 */
+	void beginPositions(){
+		
+		ensureTiles();
+		if( nextPositions == null || nextPositions.length != positions.length ){
+			nextPositions = new boolean[positions.length];
+			nextDirections = new byte[positions.length];
+		}
+		if( claimMoves && (claims == null || claims.length() != positions.length) ){
+			claims = new AtomicIntegerArray(positions.length);
+			claimList = new MoveList();
+		}
+		claimSeed = CellRandom.split(seed, CLAIM_STREAM);
+	}
+	
+	/**
+	 * Determines the new position of the mold at (i, j) based on its direction
+	 * @return index of the cell the mold moves to
+	 */
+	int moveTarget(int i, int j, int direction){
+		
+		return neighbour(i, j, direction);
+	}
+	
+	/**
+	 * Index of the cell next to (i, j) in the direction of a direction code, wrapping around the grid edges
+	 */
+	int neighbour(int i, int j, int direction){
+		
+		return wrapRows[i + 1 + DIRECTION_ROWS[direction]] + wrapCols[j + 1 + DIRECTION_COLS[direction]];
+	}
+	
+	/**
+	 * Moves the mold in cell k to the target cell of the back buffers
+	 * Molds must be moved in row-major order: a mold only moves if no earlier mold has taken the target cell
+	 * @return cell the mold ends up in, or -1 if it stayed put on a cell another mold had already moved into
+	 */
+	int moveMold(int k, int target){
+		
+		int cell;
+		
+		// Cells only move if the location to move to is unoccupied
+		if( nextPositions[target] != true ){
+			nextPositions[target] = true;
+			cell = target;
+		}
+		else{
+			cell = nextPositions[k] ? -1 : k;
+			nextPositions[k]  = true;
+		}
+		nextDirections[target] = directions[k];
+		
+		// Molds can move into inactive tiles
+		if( cell == target )
+			tileActive[tileOf(target / cols, target % cols)] = true;
+		
+		// Directions are only ever set on occupied cells, so this leaves the old arrays clear
+		positions[k] = false;
+		directions[k] = 0;
+		
+		if( clusters != null )
+			clusters.moved(k, cell);
+		
+		return cell;
+	}
+	
+	/**
+	 * Lists the molds of rows [fromRow, toRow) in row-major order, with the cells they will try to move to
+	 * With claim moves, each mold also claims its cell
+	 * Only writes the list given, so disjoint row ranges can be listed concurrently into lists of their own
+	 */
+	void listMoves(int fromRow, int toRow, MoveList moves){
+		
+		moves.count = 0;
+		
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int firstTile = (i / TILE_SIZE) * tileCols;
+			
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
+				
+				if( tileActive[t] == false )
+					continue;
+				
+				int fromCol = (t - firstTile) * TILE_SIZE, toCol = Math.min(cols, fromCol + TILE_SIZE);
+				for( int j = fromCol, k = index(i, fromCol); j < toCol; j++, k++ ){
 					
-					// Create new position and direction arrays
-					// Cells only move if the location to move to is unoccupied
-					if( newPositions[checkBounds(newXPosition)][checkBounds(newYPosition)] != true )
-						newPositions[checkBounds(newXPosition)][checkBounds(newYPosition)] = true;
-					else
-						newPositions[i][j]  = true;
-					newDirections[checkBounds(newXPosition)][checkBounds(newYPosition)] = directions[i][j];
+					if( positions[k] == true ){
+						
+						int target = moveTarget(i, j, directions[k]);
+						moves.add(k, target);
+						if( claimMoves )
+							claim(k, target);
+					}
 				}
 			}
 		}
+	}
+	
+	/**
+	 * Has the molds [fromAgent, toAgent) of the agent list claim the cells they move to
+	 */
+	void claimAgentMoves(int fromAgent, int toAgent){
+		
+		for( int a = fromAgent; a < toAgent; a++ ){
+			
+			int k = index(agentY[a], agentX[a]);
+			claim(k, moveTarget(agentY[a], agentX[a], directions[k]));
+		}
+	}
+	
+	/**
+	 * Moves the molds [fromAgent, toAgent) of the agent list once every mold has claimed, keeping the cells they end up in
+	 * for sortAgents
+	 */
+	void moveAgentsByClaims(int fromAgent, int toAgent){
+		
+		for( int a = fromAgent; a < toAgent; a++ ){
+			
+			int k = index(agentY[a], agentX[a]);
+			agentScratch[a] = moveByClaim(k, moveTarget(agentY[a], agentX[a], directions[k]));
+		}
+	}
+	
+	/**
+	 * Moves the mold in cell k to the target cell of the back buffers if it holds the claim on it, and leaves it put otherwise
+	 * Must only be called once every mold has claimed: a mold only reads its own old cell and the claim on its target, and only
+	 * needs to know whether it holds that claim, so the winner can clear it straight away and molds can move in any order
+	 * @return cell the mold ends up in
+	 */
+	int moveByClaim(int k, int target){
+		
+		int cell = k;
+		if( claims.get(target) == k + 1 ){
+			claims.set(target, 0);
+			cell = target;
+			
+			// Molds can move into inactive tiles, which are woken in endPositions
+			tileWoken[tileOf(target / cols, target % cols)] = true;
+		}
+		
+		nextPositions[cell] = true;
+		nextDirections[cell] = directions[k];
+		positions[k] = false;
+		directions[k] = 0;
+		
+		if( clusters != null )
+			clusters.moved(k, cell);
 		
-		// Set the position and direction arrays to the references of the new arrays
+		return cell;
+	}
+	
+	/**
+	 * Claims the target cell for the mold in cell k, if the cell was empty at the start of the step and no mold of higher priority
+	 * has claimed it; priorities are hashed from the step and the cell each mold is in, ties going to the lower cell,
+	 * so the same mold wins a cell whichever order the claims are made in
+	 */
+	void claim(int k, int target){
+		
+		if( positions[target] == true )
+			return;
+		
+		long priority = claimPriority(k);
+		
+		while( true ){
+			
+			int holder = claims.get(target);
+			if( holder != 0 ){
+				long held = claimPriority(holder - 1);
+				if( held > priority || (held == priority && holder - 1 < k) )
+					return;
+			}
+			if( claims.compareAndSet(target, holder, k + 1) )
+				return;
+		}
+	}
+	
+	/**
+	 * Priority of the claim of the mold in cell k in the current step
+	 */
+	long claimPriority(int k){
+		
+		return CellRandom.hash(claimSeed, stepCount * positions.length + k);
+	}
+	
+	/**
+	 * Swaps the position and direction arrays with the back buffers once every mold has moved
+	 * and brings the cluster statistics up to date with the moves, if they are tracked
+	 * Tiles woken by claim moves are activated
+	 */
+	void endPositions(){
+		
+		boolean[] newPositions = nextPositions;
+		byte[] newDirections = nextDirections;
+		
+		nextPositions = positions;
+		nextDirections = directions;
 		positions = newPositions;
 		directions = newDirections;
+		
+		applyTileWakes();
+		if( clusters != null )
+			clusters.stepped(nextPositions);
 	}
 	
 	/**
@@ -180,62 +563,307 @@ public class Model implements Serializable{
 	 */
 	public void updateDirections(){
 		
-		int choice = -1;
+		ensureTiles();
+		ensureField();
+		
+		if( sparse ){
+			ensureAgents();
+			updateAgentDirections(0, agentCount);
+		}
+		else
+			updateDirections(0, rows);
+	}
+	
+	/**
+	 * Sets new directions for the molds in rows [fromRow, toRow)
+	 * Only writes the directions of those rows, so disjoint row ranges can be updated concurrently
+	 */
+	void updateDirections(int fromRow, int toRow){
 		
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int firstTile = (i / TILE_SIZE) * tileCols;
+			
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
 				
-				if( positions[i][j] == true ){
-					
-					// Determine which direction has the highest level of phermone
-					switch( directions[i][j] ){
+				if( tileActive[t] == false )
+					continue;
+				
+				int fromCol = (t - firstTile) * TILE_SIZE, toCol = Math.min(cols, fromCol + TILE_SIZE);
+				for( int j = fromCol, k = index(i, fromCol); j < toCol; j++, k++ ){
 					
-						case 0:		choice = findDirection(phermones[checkBounds(i-1)][checkBounds(j+1)], phermones[checkBounds(i)][checkBounds(j+1)], phermones[checkBounds(i+1)][checkBounds(j+1)]);
-									break;
-						case 45:	choice = findDirection(phermones[checkBounds(i)][checkBounds(j+1)], phermones[checkBounds(i+1)][checkBounds(j+1)], phermones[checkBounds(i+1)][checkBounds(j)]);
-									break;
-						case 90:	choice = findDirection(phermones[checkBounds(i+1)][checkBounds(j+1)], phermones[checkBounds(i+1)][checkBounds(j-1)], phermones[checkBounds(i)][checkBounds(j-1)]);
-									break;
-						case 135:	choice = findDirection(phermones[checkBounds(i+1)][checkBounds(j)], phermones[checkBounds(i+1)][checkBounds(j-1)], phermones[checkBounds(i)][checkBounds(j-1)]);
-									break;
-						case 180:	choice = findDirection(phermones[checkBounds(i+1)][checkBounds(j-1)], phermones[checkBounds(i)][checkBounds(j-1)], phermones[checkBounds(i-1)][checkBounds(j-1)]);
-									break;
-						case 225:	choice = findDirection(phermones[checkBounds(i)][checkBounds(j-1)], phermones[checkBounds(i-1)][checkBounds(j-1)], phermones[checkBounds(i-1)][checkBounds(j)]);
-									break;
-						case 270:	choice = findDirection(phermones[checkBounds(i-1)][checkBounds(j-1)], phermones[checkBounds(i-1)][checkBounds(j)], phermones[checkBounds(i-1)][checkBounds(j+1)]);
-									break;
-						case 315:	choice = findDirection(phermones[checkBounds(i-1)][checkBounds(j)], phermones[checkBounds(i-1)][checkBounds(j+1)], phermones[checkBounds(i)][checkBounds(j+1)]);
-									break;
-					}
-					// Set the new direction
-					switch( choice ){
-						case 0:		directions[i][j] = checkDegrees(directions[i][j] - 45);
-									break;
-						case 1: 	directions[i][j] = checkDegrees(directions[i][j]);
-									break;
-						case 2: 	directions[i][j] = checkDegrees(directions[i][j] + 45);
-									break;
-					}
+					if( positions[k] == true )
+						directions[k] = steer(i, j, k);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Determines the new direction of the mold in cell k at (i, j)
+	 * @return new direction code
+	 */
+	byte steer(int i, int j, int k){
+		
+		int direction = directions[k], sensors = 3 * direction;
+		int left = neighbour(i, j, SENSORS[sensors]), ahead = neighbour(i, j, SENSORS[sensors + 1]), right = neighbour(i, j, SENSORS[sensors + 2]);
+		
+		// Determine which direction has the highest level of phermone
+		int choice = fieldMode ? findDirection(field[left], field[ahead], field[right], k)
+				: findDirection(phermones[left], phermones[ahead], phermones[right], k);
+		
+		// Set the new direction: turn left (0), keep on (1) or turn right (2)
+		return (byte)((direction + choice - 1) & 7);
+	}
+	
+	/**
+	 * Sets new directions for the molds [fromAgent, toAgent) of the agent list
+	 * Only touches those molds and their cells, so disjoint agent ranges can be updated concurrently
+	 */
+	void updateAgentDirections(int fromAgent, int toAgent){
+		
+		for( int a = fromAgent; a < toAgent; a++ ){
+			
+			int k = index(agentY[a], agentX[a]);
+			agentDirections[a] = directions[k] = steer(agentY[a], agentX[a], k);
+		}
+	}
+	
+	/**
+	 * Moves the molds of the agent list, in the same row-major order and with the same outcome as updatePositions
+	 * Molds that stay put on a cell another mold has already moved into are merged, as on the grid,
+	 * and each mold takes the direction left on its new cell; the list is then sorted back into row-major order
+	 */
+	void updateAgentPositions(){
+		
+		beginPositions();
+		
+		int[] newCells = agentScratch;
+		for( int a = 0; a < agentCount; a++ ){
+			
+			int k = index(agentY[a], agentX[a]);
+			newCells[a] = moveMold(k, moveTarget(agentY[a], agentX[a], directions[k]));
+		}
+		
+		endPositions();
+		sortAgents();
+	}
+	
+	/**
+	 * Puts the agent list back into row-major order after a move, from the cells the molds ended up in (in the agent scratch array)
+	 * Molds that merged (cell -1) are dropped, and each mold takes the direction left on its new cell
+	 * The keys (cell, then agent) are radix sorted on the cell AGENT_SORT_BITS at a time, through arrays kept from step to step,
+	 * so the sort allocates nothing
+	 */
+	void sortAgents(){
+		
+		int[] newCells = agentScratch;
+		long[] keys = agentKeys, scratch = agentSortScratch;
+		int[] counts = agentSortCounts;
+		int count = 0;
+		for( int a = 0; a < agentCount; a++ ){
+			if( newCells[a] >= 0 )
+				keys[count++] = (long)newCells[a] << 32 | a;
+		}
+		
+		int cellBits = 64 - Long.numberOfLeadingZeros(Math.max(1, (long)rows * cols - 1)), mask = counts.length - 1;
+		for( int shift = 32; shift < 32 + cellBits; shift += AGENT_SORT_BITS ){
+			
+			java.util.Arrays.fill(counts, 0);
+			for( int a = 0; a < count; a++ )
+				counts[(int)(keys[a] >>> shift) & mask]++;
+			for( int d = 0, sum = 0; d < counts.length; d++ ){
+				int digits = counts[d];
+				counts[d] = sum;
+				sum += digits;
+			}
+			for( int a = 0; a < count; a++ )
+				scratch[counts[(int)(keys[a] >>> shift) & mask]++] = keys[a];
+			
+			long[] sorted = scratch;
+			scratch = keys;
+			keys = sorted;
+		}
+		agentKeys = keys;
+		agentSortScratch = scratch;
+		
+		for( int a = 0; a < count; a++ ){
+			
+			int cell = (int)(keys[a] >>> 32);
+			agentY[a] = cell / cols;
+			agentX[a] = cell - agentY[a] * cols;
+			agentDirections[a] = directions[cell];
+		}
+		agentCount = count;
+	}
+	
+	/**
+	 * Rebuilds the agent list from the position and direction arrays, if they were replaced since it was built
+	 */
+	void ensureAgents(){
+		
+		if( agentsValid )
+			return;
+		
+		int count = 0;
+		for( int k = 0; k < positions.length; k++ ){
+			if( positions[k] == true )
+				count++;
+		}
+		
+		if( agentX == null || agentX.length < count ){
+			int capacity = Math.max(16, count);
+			agentX = new int[capacity];
+			agentY = new int[capacity];
+			agentDirections = new byte[capacity];
+			agentScratch = new int[capacity];
+			agentKeys = new long[capacity];
+			agentSortScratch = new long[capacity];
+		}
+		if( agentSortCounts == null )
+			agentSortCounts = new int[1 << AGENT_SORT_BITS];
+		
+		int a = 0;
+		for( int i = 0; i < rows; i++ ){
+			for( int j = 0, k = index(i, 0); j < cols; j++, k++ ){
+				
+				if( positions[k] == true ){
+					agentX[a] = j;
+					agentY[a] = i;
+					agentDirections[a] = directions[k];
+					a++;
+				}
+			}
+		}
+		agentCount = count;
+		agentsValid = true;
+	}
+	
 	/**
 	 * Reduces current signal intensities of all phermone signals in signals array
 	 * Adds new signals according to positions
 	 */
 	public void updateSignals(){
 		
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+		ensureTiles();
+		updateSignals(0, rows);
+		applyTileWakes();
+	}
+	
+	/**
+	 * Updates the signals of rows [fromRow, toRow), which must start and end on tile boundaries (or the last row), unless the
+	 * rows of a tile row are updated one call after another on one thread
+	 * Active tiles left with no signals or phermones are deactivated, and a signal of 1 on the edge of a tile
+	 * wakes the neighbouring tiles it will deposit phermone on; wakes take effect in applyTileWakes
+	 */
+	void updateSignals(int fromRow, int toRow){
+		
+		updateSignals(fromRow, toRow, positions);
+	}
+	
+	/**
+	 * Updates the signals of rows [fromRow, toRow) from the given positions, as updateSignals(fromRow, toRow) does from the
+	 * position array: a fused step sets the signals of a row from the back buffer once every mold that can reach the row has moved,
+	 * before the back buffers are swapped in
+	 */
+	void updateSignals(int fromRow, int toRow, boolean[] positions){
+		
+		byte lifetime = (byte)signalLifetime;
+		
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int firstTile = (i / TILE_SIZE) * tileCols;
+			int tileTop = i - i % TILE_SIZE, tileBottom = Math.min(rows, tileTop + TILE_SIZE) - 1;
+			
+			// Reduce current signals, a run of active tiles at a time
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
+				
+				if( tileActive[t] == false )
+					continue;
 				
-				// Reduce current signals
-				if( signals[i][j] > 0 )
-					signals[i][j] -= 1;
-				// Set new signals
-				if(positions[i][j] == true)
-					signals[i][j] = 2;
+				int last = lastActiveTile(t, firstTile + tileCols);
+				DECAY.decaySignals(signals, index(i, (t - firstTile) * TILE_SIZE), index(i, Math.min(cols, (last + 1 - firstTile) * TILE_SIZE)));
+				t = last;
+			}
+			
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
+				
+				if( tileActive[t] == false )
+					continue;
+				
+				int fromCol = (t - firstTile) * TILE_SIZE, toCol = Math.min(cols, fromCol + TILE_SIZE);
+				boolean busy = false;
+				
+				for( int j = fromCol, k = index(i, fromCol); j < toCol; j++, k++ ){
+					
+					// Set new signals
+					if(positions[k] == true)
+						signals[k] = lifetime;
+					
+					if( signals[k] != 0 || phermones[k] != 0 )
+						busy = true;
+					if( signals[k] == 1 && (i == tileTop || i == tileBottom || j == fromCol || j == toCol - 1) )
+						wakeNeighbourTiles(i, j);
+				}
+				if( busy )
+					tileBusy[t] = true;
+			}
+			
+			// Deactivate the tiles of this tile row that are left empty
+			if( i == tileBottom ){
+				for( int t = firstTile; t < firstTile + tileCols; t++ ){
+					
+					if( tileBusy[t] == false )
+						tileActive[t] = false;
+					tileBusy[t] = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Wakes the tiles of the neighbours of cell (i, j), other than its own
+	 */
+	void wakeNeighbourTiles(int i, int j){
+		
+		int own = tileOf(i, j);
+		
+		for( int di = -1; di <= 1; di++ ){
+			for( int dj = -1; dj <= 1; dj++ ){
+				
+				int t = tileOf(wrapRows[i + 1 + di] / cols, wrapCols[j + 1 + dj]);
+				if( t != own )
+					tileWoken[t] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Activates the tiles of every cell of row i with a signal and of its neighbours, for signals copied into the row
+	 */
+	void wakeRow(int i){
+		
+		for( int j = 0, k = index(i, 0); j < cols; j++, k++ ){
+			
+			if( signals[k] == 0 )
+				continue;
+			
+			for( int di = -1; di <= 1; di++ )
+				for( int dj = -1; dj <= 1; dj++ )
+					tileActive[tileOf(wrapRows[i + 1 + di] / cols, wrapCols[j + 1 + dj])] = true;
+		}
+	}
+	
+	/**
+	 * Activates the tiles woken since the last call
+	 * Kept separate from deactivation, so a tile woken from a neighbouring band is never put back to sleep by its own
+	 */
+	void applyTileWakes(){
+		
+		for( int t = 0; t < tileWoken.length; t++ ){
+			if( tileWoken[t] == true ){
+				tileActive[t] = true;
+				tileWoken[t] = false;
 			}
 		}
 	}
@@ -243,67 +871,483 @@ public class Model implements Serializable{
 	/**
 	 * Add phermones to the phermone array
 	 * Using the signals array to add based on position of signals and intensity level
+	 * In field mode, the phermone field is deposited on, blurred and evaporated instead
 	 */
 	public void updatePhermones(){
 		
-		// Diffuse current phermone levels
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+		ensureTiles();
+		
+		if( fieldMode ){
+			ensureField();
+			blurFieldRows(0, rows);
+			blurFieldCols(0, rows);
+		}
+		else
+			updatePhermones(0, rows);
+	}
+	
+	/**
+	 * First pass of the field update, for rows [fromRow, toRow): every mold deposits the phermone max on its cell,
+	 * and each row is blurred along its length into the scratch buffer
+	 * The blur keeps 1 - 2/3 of the diffusion in the cell and spreads 1/3 of it to each side, so a full diffusion of 1
+	 * averages the cell with both neighbours; the two passes together spread it over all 8 neighbours
+	 */
+	void blurFieldRows(int fromRow, int toRow){
+		
+		float side = diffusion / 3, centre = 1 - 2 * side, deposit = phermoneMax;
+		
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int row = i * cols, last = row + cols - 1;
+			float first = positions[row] ? field[row] + deposit : field[row];
+			float previous = positions[last] ? field[last] + deposit : field[last];
+			float current = first;
+			
+			for( int k = row; k < last; k++ ){
 				
-				if( phermones[i][j] > phermoneMax )
-					phermones[i][j] = phermoneMax;
-				if( phermones[i][j] > 0 )
-					phermones[i][j] -= 1;	
+				float next = positions[k + 1] ? field[k + 1] + deposit : field[k + 1];
+				fieldScratch[k] = centre * current + side * (previous + next);
+				previous = current;
+				current = next;
 			}
+			fieldScratch[last] = centre * current + side * (previous + first);
 		}
+	}
+	
+	/**
+	 * Second pass of the field update, for rows [fromRow, toRow): the scratch buffer is blurred across the rows back into
+	 * the field and evaporated, and the rounded levels are written to the phermone array
+	 * The rows are done in blocks of FIELD_BLOCK_COLS columns, so the three rows read stay in cache
+	 * Reads the scratch rows either side of the range, so the first pass must have finished on every row
+	 */
+	void blurFieldCols(int fromRow, int toRow){
+		
+		float side = diffusion / 3, centre = 1 - 2 * side, keep = 1 - evaporation;
+		byte max = (byte)phermoneMax;
 		
-		// Add new phermones to patches based on signal locations and levels
-		for( int i = 0; i < ROWS; i++ ){
-			for( int j = 0; j < COLS; j++ ){
+		for( int fromCol = 0; fromCol < cols; fromCol += FIELD_BLOCK_COLS ){
+			
+			int toCol = Math.min(cols, fromCol + FIELD_BLOCK_COLS);
+			for( int i = fromRow; i < toRow; i++ ){
 				
-				if( signals[i][j] == 1 ){
-					phermones[checkBounds(i-1)][checkBounds(j-1)] += phermone1Step;
-					phermones[checkBounds(i-1)][checkBounds(j)] += phermone1Step;
-					phermones[checkBounds(i-1)][checkBounds(j+1)] += phermone1Step;
-					phermones[checkBounds(i)][checkBounds(j-1)] += phermone1Step;
-					phermones[checkBounds(i)][checkBounds(j+1)] += phermone1Step;
-					phermones[checkBounds(i+1)][checkBounds(j-1)] += phermone1Step;
-					phermones[checkBounds(i+1)][checkBounds(j)] += phermone1Step;
-					phermones[checkBounds(i+1)][checkBounds(j+1)] += phermone1Step;
-				}
-				if( signals[i][j] == 2 ){
-					phermones[checkBounds(i)][checkBounds(j)] = phermoneMax;
+				int up = wrapRows[i], row = wrapRows[i + 1], down = wrapRows[i + 2];
+				for( int k = row + fromCol; k < row + toCol; k++ )
+					field[k] = keep * (centre * fieldScratch[k] + side * (fieldScratch[k - row + up] + fieldScratch[k - row + down]));
+				for( int k = row + fromCol; k < row + toCol; k++ )
+					phermones[k] = (byte)Math.min(max, (int)field[k]);
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure the phermone field exists in field mode, starting from the phermone levels
+	 */
+	void ensureField(){
+		
+		if( fieldMode == false || (field != null && field.length == phermones.length) )
+			return;
+		
+		field = new float[phermones.length];
+		fieldScratch = new float[phermones.length];
+		for( int k = 0; k < field.length; k++ )
+			field[k] = phermones[k];
+	}
+	
+	/**
+	 * Updates the phermones of rows [fromRow, toRow)
+	 * Each cell gathers the phermone its signalled neighbours deposit on it, rather than signalled cells scattering
+	 * onto their neighbours, so only the cells of those rows are written and disjoint row ranges can be updated concurrently
+	 * The signals of 1 in each column of 3 cells (above, at and below the row) are counted once and slid along the row, so a
+	 * cell's deposits are the counts of the columns either side of it and its own, less its own signal
+	 * A signal of 2 resets the cell to the max level, so only deposits from neighbours later in row-major order remain on it
+	 * Only active tiles are updated: a signal that deposits across a tile edge has already woken the tile on the other side
+	 */
+	void updatePhermones(int fromRow, int toRow){
+		
+		int max = phermoneMax, step = phermone1Step, lifetime = signalLifetime;
+		
+		for( int i = fromRow; i < toRow; i++ ){
+			
+			int up = wrapRows[i], row = wrapRows[i + 1], down = wrapRows[i + 2];
+			int firstTile = (i / TILE_SIZE) * tileCols;
+			
+			// Whether the rows above and below come after this one in row-major order (0 when the grid wraps onto the same row)
+			int upOrder = Integer.compare(gridRow(up / cols), gridRow(i)), downOrder = Integer.compare(gridRow(down / cols), gridRow(i));
+			
+			// A run of active tiles at a time: diffuse current phermone levels, then add the deposits (which only read signals)
+			for( int t = firstTile; t < firstTile + tileCols; t++ ){
+				
+				if( tileActive[t] == false )
+					continue;
+				
+				int last = lastActiveTile(t, firstTile + tileCols);
+				int fromCol = (t - firstTile) * TILE_SIZE, toCol = Math.min(cols, (last + 1 - firstTile) * TILE_SIZE);
+				DECAY.decayPhermones(phermones, row + fromCol, row + toCol, (byte)max);
+				
+				int left = signalColumn(up, row, down, wrapCols[fromCol]), center = signalColumn(up, row, down, fromCol);
+				for( int j = fromCol, k = row + fromCol; j < toCol; j++, k++ ){
+					
+					int right = signalColumn(up, row, down, wrapCols[j + 2]);
+					
+					if( signals[k] == lifetime )
+						phermones[k] = (byte)(max + laterDeposits(j, up, row, down, upOrder, downOrder) * step);
+					else
+						phermones[k] += (left + center + right - (signals[k] == 1 ? 1 : 0)) * step;
+					
+					left = center;
+					center = right;
 				}
+				t = last;
 			}
 		}
 	}
-
+	
+	/**
+	 * Number of signals of 1 in column j of the rows starting at indices up, row and down
+	 */
+	private int signalColumn(int up, int row, int down, int j){
+		
+		return (signals[up + j] == 1 ? 1 : 0) + (signals[row + j] == 1 ? 1 : 0) + (signals[down + j] == 1 ? 1 : 0);
+	}
+	
+	/**
+	 * Number of signals of 1 next to cell (row + j) that come after it in row-major order, which deposit on it after a signal
+	 * of 2 has reset it to the max level
+	 * @param up index of the first cell of the row above
+	 * @param row index of the first cell of the row
+	 * @param down index of the first cell of the row below
+	 * @param upOrder whether the row above comes after the row (0 when the grid wraps onto the same row)
+	 * @param downOrder whether the row below comes after the row
+	 */
+	private int laterDeposits(int j, int up, int row, int down, int upOrder, int downOrder){
+		
+		int left = wrapCols[j], right = wrapCols[j + 2];
+		int deposits = 0;
+		if( signals[up + left] == 1 && (upOrder > 0 || upOrder == 0 && left > j) ) deposits++;
+		if( signals[up + j] == 1 && upOrder > 0 ) deposits++;
+		if( signals[up + right] == 1 && (upOrder > 0 || upOrder == 0 && right > j) ) deposits++;
+		if( signals[row + left] == 1 && left > j ) deposits++;
+		if( signals[row + right] == 1 && right > j ) deposits++;
+		if( signals[down + left] == 1 && (downOrder > 0 || downOrder == 0 && left > j) ) deposits++;
+		if( signals[down + j] == 1 && downOrder > 0 ) deposits++;
+		if( signals[down + right] == 1 && (downOrder > 0 || downOrder == 0 && right > j) ) deposits++;
+		return deposits;
+	}
+	
 	/*
 	 * Getters, Setters, Utility Methods
 	 */
-	public boolean[][] getPositions(){ return positions; }
-	public int[][] getSignals(){ return signals; }
-	public int[][] getPhermones(){ return phermones; }
-	public int[][] getDirections(){ return directions; }
+	public boolean[] getPositions(){ return positions; }
+	public byte[] getSignals(){ return signals; }
+	public byte[] getPhermones(){ return phermones; }
+	public byte[] getDirections(){ return directions; }
+	public int getRows(){ return rows; }
+	public int getCols(){ return cols; }
 	public int getPopulation(){ return population; }
 	public int getSpeed(){ return speed; }
-	public void setPositions(boolean[][] positions){ this.positions = positions; }
-	public void setSignals(int[][] signals){ this.signals = signals; }
-	public void setPhermones(int[][] phermones ){ this.phermones = phermones; }
-	public void setDirections(int[][] directions){ this.directions = directions; }
+	public long getSeed(){ return seed; }
+	public long getStepCount(){ return stepCount; }
+	public StepEngine getEngine(){ return engine; }
+	public boolean isSparse(){ return sparse; }
+	public void setPositions(boolean[] positions){ this.positions = positions; agentsValid = false; tileActive = null; }
+	public void setSignals(byte[] signals){ this.signals = signals; tileActive = null; }
+	public void setPhermones(byte[] phermones ){ this.phermones = phermones; tileActive = null; field = null; }
+	public void setDirections(byte[] directions){ this.directions = directions; agentsValid = false; }
 	public void setPopulation(int population){ this.population = population; }
 	public void setSpeed(int speed){ this.speed = speed; }
-	 
-	static int findDirection(int a, int b, int c){
-				
+	public void setSeed(long seed){ this.seed = seed; }
+	public void setStepCount(long stepCount){ this.stepCount = stepCount; }
+	public void setEngine(StepEngine engine){ this.engine = engine; }
+	public int getPhermoneMax(){ return phermoneMax; }
+	public int getPhermone1Step(){ return phermone1Step; }
+	public int getSignalLifetime(){ return signalLifetime; }
+	public boolean isFieldMode(){ return fieldMode; }
+	public boolean isClaimMoves(){ return claimMoves; }
+	boolean isClusterTracking(){ return clusters != null; }
+	boolean[] getNextPositions(){ return nextPositions; }
+	public float getDiffusion(){ return diffusion; }
+	public float getEvaporation(){ return evaporation; }
+	float[] getField(){ ensureField(); return field; }
+	
+	/**
+	 * Sets the phermone level of a cell holding a mold
+	 * Levels must fit in a byte with 8 neighbouring deposits added
+	 */
+	public void setPhermoneMax(int phermoneMax){
+		
+		if( phermoneMax < 1 || phermoneMax + 8 * phermone1Step > Byte.MAX_VALUE )
+			throw new IllegalArgumentException("Unsupported phermone max " + phermoneMax + " with 1-step " + phermone1Step);
+		this.phermoneMax = phermoneMax;
+	}
+	
+	/**
+	 * Sets the phermone added for each neighbouring signal of level 1
+	 */
+	public void setPhermone1Step(int phermone1Step){
+		
+		if( phermone1Step < 0 || phermoneMax + 8 * phermone1Step > Byte.MAX_VALUE )
+			throw new IllegalArgumentException("Unsupported phermone 1-step " + phermone1Step + " with max " + phermoneMax);
+		this.phermone1Step = phermone1Step;
+	}
+	
+	/**
+	 * Sets the signal level of a cell holding a mold, the number of steps its signal lasts once the mold is gone plus 1
+	 */
+	public void setSignalLifetime(int signalLifetime){
+		
+		if( signalLifetime < 2 || signalLifetime > MAX_SIGNAL_LIFETIME )
+			throw new IllegalArgumentException("Signal lifetime must be between 2 and " + MAX_SIGNAL_LIFETIME);
+		this.signalLifetime = signalLifetime;
+	}
+	
+	/**
+	 * Switches between the phermone levels deposited from signals and the continuous phermone field
+	 * The field starts from the current phermone levels; every tile is active again, since the field reaches all of them
+	 */
+	public void setFieldMode(boolean fieldMode){
+		
+		this.fieldMode = fieldMode;
+		field = null;
+		fieldScratch = null;
+		tileActive = null;
+	}
+	
+	/**
+	 * Sets the fraction of its phermone level a cell of the field spreads to its neighbours each step, from 0 to 1
+	 */
+	public void setDiffusion(float diffusion){
+		
+		if( !(diffusion >= 0 && diffusion <= 1) )
+			throw new IllegalArgumentException("Diffusion must be between 0 and 1");
+		this.diffusion = diffusion;
+	}
+	
+	/**
+	 * Sets the fraction of its phermone level a cell of the field loses each step, from 0 to 1
+	 */
+	public void setEvaporation(float evaporation){
+		
+		if( !(evaporation >= 0 && evaporation <= 1) )
+			throw new IllegalArgumentException("Evaporation must be between 0 and 1");
+		this.evaporation = evaporation;
+	}
+	
+	/**
+	 * Switches between moving the molds in row-major order and moving them by claims
+	 * In row-major order the first mold to reach a cell wins it, and a mold that stays put on a cell another mold has already
+	 * moved into merges with it; by claims, molds only move into cells that were empty at the start of the step, a contested cell
+	 * goes to the mold with the highest priority for the step, and the others stay put, so no mold is lost and the moves can run
+	 * on all cores
+	 */
+	public void setClaimMoves(boolean claimMoves){
+		
+		this.claimMoves = claimMoves;
+	}
+	
+	/**
+	 * Switches between scanning the whole grid for molds and keeping them in an agent list
+	 * With the agent list, steering and movement cost time proportional to the number of molds rather than the grid size
+	 * Both modes produce the same state
+	 */
+	public void setSparse(boolean sparse){
+		
+		this.sparse = sparse;
+		agentsValid = false;
+	}
+	
+	/**
+	 * Turns the cluster statistics on or off
+	 * While on, every step updates them from its moves, which costs time proportional to the molds that moved
+	 */
+	public void setClusterTracking(boolean tracking){
+		
+		if( tracking == false )
+			clusters = null;
+		else if( clusters == null )
+			clusters = new ClusterTracker(this);
+	}
+	
+	/**
+	 * Cluster statistics of the current positions, or null if they are not tracked
+	 * They are found from the whole grid only if the position array was replaced since the last step
+	 */
+	public ClusterTracker getClusters(){
+		
+		if( clusters != null )
+			clusters.track();
+		return clusters;
+	}
+	
+	/**
+	 * Writes the whole state of cell k, as replayed from a journal, keeping what is derived from the arrays valid:
+	 * the agent list is rebuilt and the clusters found again before they are next used, and the tiles the cell can reach
+	 * are woken, so the model can be stepped on from the state written
+	 * In field mode the field starts again from the phermone levels, so the fraction of a level it held is lost
+	 */
+	public void setCell(int k, boolean position, byte direction, byte signal, byte phermone){
+		
+		positions[k] = position;
+		directions[k] = direction;
+		signals[k] = signal;
+		phermones[k] = phermone;
+		
+		agentsValid = false;
+		field = null;
+		if( clusters != null )
+			clusters.forget();
+		
+		if( tileActive != null && (position || signal != 0 || phermone != 0) ){
+			
+			int i = k / cols, j = k - i * cols;
+			tileActive[tileOf(i, j)] = true;
+			
+			// A signal deposits phermone on the neighbours, whichever tile they are in
+			if( signal != 0 ){
+				for( int di = -1; di <= 1; di++ )
+					for( int dj = -1; dj <= 1; dj++ )
+						tileActive[tileOf(wrapRows[i + 1 + di] / cols, wrapCols[j + 1 + dj])] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure the tile activity arrays exist, starting with every tile active
+	 */
+	void ensureTiles(){
+		
+		if( tileActive != null )
+			return;
+		
+		tileRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+		tileCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+		tileActive = new boolean[tileRows * tileCols];
+		tileWoken = new boolean[tileRows * tileCols];
+		tileBusy = new boolean[tileRows * tileCols];
+		java.util.Arrays.fill(tileActive, true);
+	}
+	
+	/**
+	 * Index of the tile holding cell (i, j)
+	 */
+	int tileOf(int i, int j){ return (i / TILE_SIZE) * tileCols + j / TILE_SIZE; }
+	
+	int getTileRows(){ ensureTiles(); return tileRows; }
+	boolean isTileActive(int i, int j){ return tileActive[tileOf(i, j)]; }
+	
+	/**
+	 * Last tile of the run of active tiles starting at tile t, along a row of tiles ending before tile end
+	 */
+	int lastActiveTile(int t, int end){
+		
+		while( t + 1 < end && tileActive[t + 1] )
+			t++;
+		return t;
+	}
+	
+	/**
+	 * Number of active tiles, out of getTileRows() * the number of tile columns
+	 */
+	int getActiveTiles(){
+		
+		ensureTiles();
+		
+		int active = 0;
+		for( boolean tile : tileActive ){
+			if( tile )
+				active++;
+		}
+		return active;
+	}
+	
+	/**
+	 * Number of molds in the agent list (sparse mode)
+	 */
+	int getAgentCount(){
+		
+		ensureAgents();
+		return agentCount;
+	}
+	
+	/**
+	 * Sets the grid dimensions, discarding the current model arrays
+	 * The arrays are reallocated by initializePositions and initializeDirectionsSignalsPhermones, or replaced by the setters
+	 * @param rows number of rows (grid height)
+	 * @param cols number of columns (grid width)
+	 */
+	public void setDimensions(int rows, int cols){
+		
+		if( rows < 1 || cols < 1 || (long)rows * cols > Integer.MAX_VALUE - 8 )
+			throw new IllegalArgumentException("Unsupported grid size " + rows + "x" + cols);
+		
+		this.rows = rows;
+		this.cols = cols;
+		wrapRows = new int[rows + 2];
+		wrapCols = new int[cols + 2];
+		for( int i = -1; i <= rows; i++ )
+			wrapRows[i + 1] = (i + rows) % rows * cols;
+		for( int j = -1; j <= cols; j++ )
+			wrapCols[j + 1] = (j + cols) % cols;
+		nextPositions = null;
+		nextDirections = null;
+		agentsValid = false;
+		tileActive = null;
+		positions = null;
+		signals = null;
+		phermones = null;
+		directions = null;
+		field = null;
+		fieldScratch = null;
+		claims = null;
+		claimList = null;
+		stripe = false;
+		stripeRow = 0;
+		gridRows = rows;
+		cellOffset = 0;
+	}
+	
+	/**
+	 * Makes the model a stripe of a larger grid, with a halo row either side of its own rows: local row 0 is the row above
+	 * the stripe and the last local row the row below it
+	 * Random draws are keyed by, and phermones deposited in the order of, the cells of the larger grid, so the stripe's own rows
+	 * step as those rows of the larger grid would; the halo rows must be copied in from the stripes either side
+	 * @param firstRow row of the larger grid held by local row 1
+	 * @param gridRows number of rows of the larger grid
+	 */
+	void setStripe(int firstRow, int gridRows){
+		
+		if( gridRows < rows - 2 || firstRow < 0 || firstRow >= gridRows )
+			throw new IllegalArgumentException("Unsupported stripe at row " + firstRow + " of " + gridRows);
+		
+		stripe = true;
+		stripeRow = (firstRow - 1 + gridRows) % gridRows;
+		this.gridRows = gridRows;
+		cellOffset = (long)(firstRow - 1) * cols;
+	}
+	
+	/**
+	 * Row of the larger grid held by local row i (the row itself, unless the model is a stripe)
+	 */
+	int gridRow(int i){ return (stripeRow + i) % gridRows; }
+	
+	/**
+	 * Index of cell (row, col) in the flat model arrays
+	 */
+	int index(int row, int col){ return row * cols + col; }
+	
+	/**
+	 * Chooses between turning left (0), going straight (1) and turning right (2) towards the highest phermone level
+	 * Ties are broken by a random draw keyed by the step and cell, so the choice does not depend on update order
+	 */
+	int findDirection(float a, float b, float c, int cell){
+		
 		if( a == b && a == c )
-			return generator.nextInt(3);
+			return random(cell, 3);
 		else if( a == b && a > c )
-			return generator.nextInt(2);
+			return random(cell, 2);
 		else if( a == c && a > b )
-			return 2 * generator.nextInt(2);
+			return 2 * random(cell, 2);
 		else if( b == c && b > a )
-			return 1 + generator.nextInt(2);
+			return 1 + random(cell, 2);
 		else{
 			if( Math.max(a, Math.max(b, c)) == a )
 				return 0;
@@ -314,20 +1358,34 @@ public class Model implements Serializable{
 		}
 	}
 	
-	static int checkBounds(int coordinate){
-		if( coordinate >= ROWS )
-			coordinate -= ROWS;
-		else if( coordinate < 0 )
-			coordinate += ROWS;
-		return coordinate;
+	/**
+	 * Random number in [0, bound) for a cell in the current step
+	 * Keyed by a counter unique to the (step, cell) pair, so it is the same whichever thread or engine asks
+	 */
+	int random(int cell, int bound){
+		
+		return CellRandom.next(seed, stepCount * gridRows * cols + cellOffset + cell, bound);
 	}
 	
-	static int checkDegrees(int degrees){
-		if( degrees > 315 )
-			degrees = 0;
-		else if( degrees < 0 )
-			degrees = 315;
-		return degrees;
+	/**
+	 * Molds listed in row-major order with the cells they will try to move to, kept from step to step
+	 */
+	static class MoveList{
+		
+		int[] cells = new int[16];
+		int[] targets = new int[16];
+		int count;
+		
+		void add(int cell, int target){
+			
+			if( count == cells.length ){
+				cells = java.util.Arrays.copyOf(cells, count * 2);
+				targets = java.util.Arrays.copyOf(targets, count * 2);
+			}
+			cells[count] = cell;
+			targets[count] = target;
+			count++;
+		}
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,376 @@
+/**
+ * ModelChecks.java
+ * Self-checks of the step, run from the command line; prints a line per check and exits with status 1 if any fails
+ * Engines: the fused and parallel engines, the sparse agent list and claim moves are stepped alongside a sequential,
+ * grid-scanning reference from the same seed, over fixed and random grid shapes (1 x N and N x 1 included), and must hold
+ * the same state after every step
+ * Allocation: once warmed up, a step must allocate nothing on the heap, on any thread, with each engine
+ * Cell states: at the maximum signal lifetime, every cell must survive the 16-bit cell state of journal deltas and streamed
+ * frames, and a journal must replay every step it recorded
+ * Metrics: threads recording into one StepMetrics histogram at once, as the models of a sweep do, must lose no recording
+ *
+ * Usage: java ModelChecks [--seed=N]
+ * The seed picks the random grid shapes and model seeds, and is printed so a failing run can be repeated
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+public class ModelChecks{
+	
+	// Steps per differential run, and shapes drawn at random (at most RANDOM_SIDE a side):
+	final static int DIFFERENTIAL_STEPS = 60;
+	final static int RANDOM_SHAPES = 24;
+	final static int RANDOM_SIDE = 80;
+	
+	// Grid shapes always checked, as { rows, cols }:
+	final static int[][] SHAPES = { { 1, 1 }, { 1, 40 }, { 40, 1 }, { 2, 2 }, { 2, 37 }, { 37, 2 }, { 3, 3 }, { 3, 70 },
+			{ 33, 70 }, { 65, 33 }, { 64, 64 }, { 100, 97 } };
+	
+	// Variants stepped against the sequential reference:
+	final static String[] VARIANTS = { "fused", "parallel", "sparse", "sparse parallel", "claims parallel", "claims sparse parallel",
+			"field fused", "field parallel" };
+	
+	// Allocation check: grid side, warm-up steps (until the JIT has compiled the step), and windows of measured steps
+	final static int ALLOCATION_SIDE = 256;
+	final static int ALLOCATION_WARMUP = 400;
+	final static int ALLOCATION_WINDOWS = 5;
+	final static int ALLOCATION_STEPS = 200;
+	final static int LARGE_ALLOCATION_SIDE = 1000;
+	final static int LARGE_ALLOCATION_WARMUP = 100;
+	final static int LARGE_ALLOCATION_STEPS = 20;
+	
+	// Cell state check: grid side and steps recorded
+	final static int STATE_SIDE = 40;
+	final static int STATE_STEPS = 40;
+	
+	// Metrics check: threads recording at once, and recordings each
+	final static int METRICS_THREADS = 4;
+	final static int METRICS_RECORDS = 200000;
+	
+	private int failures;
+	
+	public static void main(String[] args){
+		
+		long seed = new SplittableRandom().nextLong();
+		
+		for( String arg : args ){
+			if( arg.startsWith("--seed=") )
+				seed = Long.parseLong(arg.substring(7));
+			else{
+				System.err.println("Usage: java ModelChecks [--seed=N]");
+				System.exit(2);
+			}
+		}
+		
+		ModelChecks checks = new ModelChecks();
+		System.out.println("Checks seed " + seed);
+		checks.checkEngines(seed);
+		checks.checkAllocation();
+		checks.checkCellStates(seed);
+		checks.checkMetrics();
+		
+		if( checks.failures > 0 ){
+			System.out.println(checks.failures + " check(s) FAILED");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+		System.exit(0);
+	}
+	
+	/**
+	 * Steps every variant against the sequential reference over the fixed shapes and RANDOM_SHAPES random ones
+	 */
+	void checkEngines(long seed){
+		
+		SplittableRandom random = new SplittableRandom(seed);
+		int runs = 0, failed = failures;
+		
+		for( int s = 0; s < SHAPES.length + RANDOM_SHAPES; s++ ){
+			
+			int rows = s < SHAPES.length ? SHAPES[s][0] : 1 + random.nextInt(RANDOM_SIDE);
+			int cols = s < SHAPES.length ? SHAPES[s][1] : 1 + random.nextInt(RANDOM_SIDE);
+			int population = 1 + random.nextInt(Math.max(1, rows * cols / 4));
+			long modelSeed = random.nextLong();
+			
+			for( String variant : VARIANTS ){
+				checkVariant(variant, rows, cols, population, modelSeed);
+				runs++;
+			}
+		}
+		
+		if( failures == failed )
+			System.out.printf("PASS engines: %d runs of %d steps identical to the sequential reference%n", runs, DIFFERENTIAL_STEPS);
+	}
+	
+	/**
+	 * Steps one variant and its sequential reference from the same seed, and compares their state after every step
+	 */
+	void checkVariant(String variant, int rows, int cols, int population, long seed){
+		
+		boolean claims = variant.contains("claims"), field = variant.contains("field");
+		Model model = createModel(rows, cols, population, seed, claims, field);
+		Model reference = createModel(rows, cols, population, seed, claims, field);
+		
+		ParallelStepEngine parallel = null;
+		if( variant.contains("parallel") )
+			model.setEngine(parallel = new ParallelStepEngine(2));
+		else if( variant.contains("fused") )
+			model.setEngine(new FusedStepEngine());
+		model.setSparse(variant.contains("sparse"));
+		
+		try{
+			for( int step = 1; step <= DIFFERENTIAL_STEPS; step++ ){
+				
+				model.step();
+				reference.step();
+				
+				if( !HeadlessRunner.sameState(model, reference) ){
+					fail(String.format("%s differs from the sequential reference on a %dx%d grid (population %d, model seed %d) after step %d",
+							variant, rows, cols, population, seed, step));
+					return;
+				}
+			}
+		}
+		catch(RuntimeException re){
+			fail(String.format("%s threw %s on a %dx%d grid (population %d, model seed %d)", variant, re, rows, cols, population, seed));
+		}
+		finally{
+			if( parallel != null )
+				parallel.shutdown();
+		}
+	}
+	
+	/**
+	 * Checks that the steps of each engine allocate nothing once warmed up, and that sparse steps allocate nothing on a
+	 * large grid with a high mold count either
+	 */
+	void checkAllocation(){
+		
+		String[] engines = { "sequential", "parallel", "fused", "sparse" };
+		
+		for( String engine : engines )
+			checkAllocation(engine, ALLOCATION_SIDE, ALLOCATION_WARMUP, ALLOCATION_STEPS);
+		checkAllocation("sparse", LARGE_ALLOCATION_SIDE, LARGE_ALLOCATION_WARMUP, LARGE_ALLOCATION_STEPS);
+	}
+	
+	/**
+	 * Checks that the steps of an engine on a side x side grid, one cell in 10 a mold, allocate nothing once warmed up
+	 */
+	void checkAllocation(String engine, int side, int warmup, int steps){
+		
+		Model model = createModel(side, side, side * side / 10, 1, false, false);
+		ParallelStepEngine parallel = null;
+		if( engine.equals("parallel") )
+			model.setEngine(parallel = new ParallelStepEngine(2));
+		else if( engine.equals("fused") )
+			model.setEngine(new FusedStepEngine());
+		model.setSparse(engine.equals("sparse"));
+		
+		for( int step = 0; step < warmup; step++ )
+			model.step();
+		
+		// Reading the counters allocates too, a little more or less from one read to the next, so the count of an empty
+		// interval is taken off and the least of several windows is kept: a step that allocates shows in every window
+		allocatedBytes();
+		long allocated = Long.MAX_VALUE, before = 0;
+		for( int window = 0; window < ALLOCATION_WINDOWS; window++ ){
+			
+			before = allocatedBytes();
+			for( int step = 0; step < steps; step++ )
+				model.step();
+			long after = allocatedBytes();
+			allocated = Math.min(allocated, (after - before) - (allocatedBytes() - after));
+		}
+		
+		if( parallel != null )
+			parallel.shutdown();
+		
+		if( before < 0 )
+			fail("allocation cannot be measured on this JVM");
+		else if( allocated > 0 )
+			fail(String.format("%s engine allocated at least %d bytes in every window of %d steps at %dx%d",
+					engine, allocated, steps, side, side));
+		else
+			System.out.printf("PASS allocation: %s engine allocated nothing in a window of %d steps at %dx%d%n", engine, steps, side, side);
+	}
+	
+	/**
+	 * Checks that every cell of a model at the maximum signal lifetime round-trips through StepJournal.cellState, from the
+	 * initial state (signals of one more than the lifetime) on, and that a journal of the run replays every step and the
+	 * replayed model steps on as the run does
+	 */
+	void checkCellStates(long seed){
+		
+		Model model = createModel(STATE_SIDE, STATE_SIDE, STATE_SIDE * STATE_SIDE / 8, seed, false, false);
+		model.setSignalLifetime(Model.MAX_SIGNAL_LIFETIME);
+		model.initializeDirectionsSignalsPhermones();
+		Model replayed = new Model(STATE_SIDE, STATE_SIDE);
+		replayed.initializePositions();
+		replayed.initializeDirectionsSignalsPhermones();
+		
+		File file = null;
+		try{
+			file = File.createTempFile("checks", ".journal");
+			
+			try( StepJournal journal = new StepJournal(file, STATE_STEPS + 1) ){
+				for( int step = 0; step <= STATE_STEPS; step++ ){
+					
+					if( step > 0 )
+						model.step();
+					journal.record(model);
+					
+					for( int k = 0; k < STATE_SIDE * STATE_SIDE; k++ )
+						StepJournal.applyCellState(replayed, k, StepJournal.cellState(model.getPositions()[k], model.getDirections()[k],
+								model.getSignals()[k], model.getPhermones()[k]));
+					if( !HeadlessRunner.sameState(replayed, model) ){
+						fail(String.format("cell states lose state at signal lifetime %d after step %d", Model.MAX_SIGNAL_LIFETIME, step));
+						return;
+					}
+				}
+			}
+			
+			Model reference = createModel(STATE_SIDE, STATE_SIDE, STATE_SIDE * STATE_SIDE / 8, seed, false, false);
+			reference.setSignalLifetime(Model.MAX_SIGNAL_LIFETIME);
+			reference.initializeDirectionsSignalsPhermones();
+			
+			try( JournalPlayer player = new JournalPlayer(file) ){
+				
+				// The replayed model, in sparse mode, is stepped itself halfway (to the state of the next frame, which is then
+				// replayed over it), so the later deltas are written over its agent list and tiles
+				Model continued = player.getModel();
+				continued.setSignalLifetime(Model.MAX_SIGNAL_LIFETIME);
+				continued.setSparse(true);
+				
+				for( int step = 0; step <= STATE_STEPS; step++ ){
+					
+					if( step > 0 ){
+						reference.step();
+						if( step == STATE_STEPS / 2 )
+							continued.step();
+						player.next();
+					}
+					if( !HeadlessRunner.sameState(player.getModel(), reference) ){
+						fail(String.format("journal replay differs at signal lifetime %d at frame %d", Model.MAX_SIGNAL_LIFETIME, step));
+						return;
+					}
+				}
+				
+				// From the last frame it steps on as the run does
+				for( int step = 1; step <= STATE_STEPS; step++ ){
+					
+					reference.step();
+					continued.step();
+					if( !HeadlessRunner.sameState(continued, reference) ){
+						fail(String.format("replayed model differs %d steps after the last frame", step));
+						return;
+					}
+				}
+			}
+			System.out.printf("PASS cell states: %d steps at signal lifetime %d round-trip, replay from a journal and step on%n",
+					STATE_STEPS, Model.MAX_SIGNAL_LIFETIME);
+		}
+		catch(IOException ioe){
+			fail("journal check failed: " + ioe);
+		}
+		finally{
+			if( file != null ){
+				file.delete();
+				StepJournal.indexFile(file).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Checks that a StepMetrics histogram recorded into from several threads at once counts every recording, in its total
+	 * and in its buckets, and keeps the largest value
+	 */
+	void checkMetrics(){
+		
+		final StepMetrics.Histogram histogram = new StepMetrics.Histogram();
+		Thread[] threads = new Thread[METRICS_THREADS];
+		
+		for( int t = 0; t < threads.length; t++ ){
+			final long offset = t;
+			threads[t] = new Thread(new Runnable(){
+				public void run(){
+					for( int r = 0; r < METRICS_RECORDS; r++ )
+						histogram.record(1 + (r * 7919L + offset) % 1000000);
+				}
+			});
+			threads[t].start();
+		}
+		try{
+			for( Thread thread : threads )
+				thread.join();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			fail("metrics check interrupted");
+			return;
+		}
+		
+		long expected = (long)METRICS_THREADS * METRICS_RECORDS, bucketed = 0;
+		for( int b = 0; b < histogram.buckets.length(); b++ )
+			bucketed += histogram.buckets.get(b);
+		
+		long largest = 0;
+		for( int t = 0; t < METRICS_THREADS; t++ )
+			for( int r = 0; r < METRICS_RECORDS; r++ )
+				largest = Math.max(largest, 1 + (r * 7919L + t) % 1000000);
+		
+		if( histogram.count.get() != expected || bucketed != expected || histogram.max.get() != largest )
+			fail(String.format("metrics histogram counted %d (%d in buckets, max %d) of %d recordings from %d threads (max %d)",
+					histogram.count.get(), bucketed, histogram.max.get(), expected, METRICS_THREADS, largest));
+		else
+			System.out.printf("PASS metrics: %d threads recorded %d values into one histogram, none lost%n", METRICS_THREADS, expected);
+	}
+	
+	/**
+	 * Creates and initializes a model
+	 */
+	static Model createModel(int rows, int cols, int population, long seed, boolean claims, boolean field){
+		
+		Model model = new Model(rows, cols);
+		model.setPopulation(population);
+		model.setSeed(seed);
+		model.setClaimMoves(claims);
+		model.setFieldMode(field);
+		
+		model.initializePositions();
+		model.initializeDirectionsSignalsPhermones();
+		
+		return model;
+	}
+	
+	/**
+	 * Bytes allocated on the heap by every live thread so far, or -1 if the JVM cannot report it
+	 * The arrays the measuring thread allocates to read the others are left out
+	 */
+	static long allocatedBytes(){
+		
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		if( !(threads instanceof com.sun.management.ThreadMXBean) )
+			return -1;
+		
+		// The measuring thread is read first, before it allocates the arrays below
+		long total = HeadlessRunner.allocatedBytes();
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(ids);
+		for( int t = 0; t < ids.length; t++ ){
+			if( ids[t] != Thread.currentThread().getId() )
+				total += Math.max(0, bytes[t]);
+		}
+		return total;
+	}
+	
+	void fail(String message){
+		
+		System.out.println("FAIL " + message);
+		failures++;
+	}
+	
+}
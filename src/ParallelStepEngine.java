@@ -0,0 +1,279 @@
+/**
+ * ParallelStepEngine.java
+ * Step engine that runs each update phase across all cores
+ * The grid is split into bands of whole tile rows, and the bands of a phase are updated concurrently on a fork/join pool
+ * 
+ * Directions, phermones and signals only write cells of their own band, so their bands are independent
+ * In field mode the phermone field is blurred in two phases, along the rows and then across them, since the second reads
+ * the rows either side of its band
+ * Moves are resolved in row-major order (the first mold to reach a cell wins it), which is inherently sequential:
+ * the bands find their molds and target cells in parallel, and the claims are then applied in order on the stepping thread
+ * In sparse mode the molds are steered in parallel ranges of the agent list, and moved in list order on the stepping thread
+ * With claim moves the order does not matter: the bands find their molds and claim their target cells in parallel, and once
+ * every claim is made they move the molds they found in parallel (in sparse mode, both run over ranges of the agent list);
+ * the moves run band by band on the stepping thread when cluster statistics log them
+ * The result is identical to the sequential phases for the same seed
+ * 
+ * @author Philip Lin
+ */
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class ParallelStepEngine implements StepEngine{
+	
+	// Phases:
+	final static int DIRECTIONS = 0;
+	final static int PHERMONES = 1;
+	final static int FIND_MOVES = 2;
+	final static int SIGNALS = 3;
+	final static int FIELD_ROWS = 4;
+	final static int FIELD_COLS = 5;
+	final static int CLAIM_MOVES = 6;
+	final static int CLAIMED_MOVES = 7;
+	
+	// Bands per worker thread, so uneven bands balance out:
+	final static int BANDS_PER_THREAD = 4;
+	
+	// Executor runs the bands of a phase
+	private final ForkJoinPool pool;
+	
+	// Tasks splitting the bands, built once per band count and reused by every phase, with the model and phase they run,
+	// and the task running them for each phase:
+	private BandTask tasks;
+	private Model taskModel;
+	private int taskPhase;
+	private final PhaseTask phaseTask = new PhaseTask();
+	
+	// Thread waiting for the phase, whether its bands have all finished, and the failure of a band if one failed:
+	private Thread waiter;
+	private volatile boolean phaseDone;
+	private volatile Throwable phaseFailure;
+	
+	// Molds and the cells they move to, found per band:
+	private Model.MoveList[] moves = new Model.MoveList[0];
+	
+	/**
+	 * Constructor
+	 * Uses one worker thread per available processor
+	 */
+	public ParallelStepEngine(){
+		
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Constructor
+	 * @param threads number of worker threads
+	 */
+	public ParallelStepEngine(int threads){
+		
+		pool = new ForkJoinPool(threads);
+	}
+	
+	public void step(Model model){
+		
+		model.ensureTiles();
+		model.ensureField();
+		int bands = Math.min(model.getTileRows(), pool.getParallelism() * BANDS_PER_THREAD);
+		
+		if( moves.length != bands ){
+			moves = new Model.MoveList[bands];
+			for( int band = 0; band < bands; band++ )
+				moves[band] = new Model.MoveList();
+		}
+		
+		if( model.isSparse() )
+			model.ensureAgents();
+		
+		long lap = StepMetrics.start();
+		runPhase(model, DIRECTIONS, bands);
+		lap = StepMetrics.lap(StepMetrics.DIRECTIONS, lap);
+		if( model.isFieldMode() ){
+			runPhase(model, FIELD_ROWS, bands);
+			runPhase(model, FIELD_COLS, bands);
+		}
+		else
+			runPhase(model, PHERMONES, bands);
+		lap = StepMetrics.lap(StepMetrics.PHERMONES, lap);
+		
+		if( model.isClaimMoves() ){
+			model.beginPositions();
+			runPhase(model, CLAIM_MOVES, bands);
+			
+			// Cluster statistics log the moves one at a time
+			if( model.isClusterTracking() ){
+				for( int band = 0; band < bands; band++ )
+					runBand(model, CLAIMED_MOVES, band, bands);
+			}
+			else
+				runPhase(model, CLAIMED_MOVES, bands);
+			model.endPositions();
+			if( model.isSparse() )
+				model.sortAgents();
+		}
+		else if( model.isSparse() )
+			model.updatePositions();
+		else{
+			runPhase(model, FIND_MOVES, bands);
+			
+			// Claim target cells in row-major order
+			model.beginPositions();
+			for( int band = 0; band < bands; band++ ){
+				
+				Model.MoveList list = moves[band];
+				for( int m = 0; m < list.count; m++ )
+					model.moveMold(list.cells[m], list.targets[m]);
+			}
+			model.endPositions();
+		}
+		lap = StepMetrics.lap(StepMetrics.POSITIONS, lap);
+		
+		runPhase(model, SIGNALS, bands);
+		model.applyTileWakes();
+		StepMetrics.lap(StepMetrics.SIGNALS, lap);
+	}
+	
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown(){
+		
+		pool.shutdown();
+	}
+	
+	/**
+	 * Runs a phase over all bands and waits for it to finish
+	 * The task tree is reset and run again rather than built anew, and the stepping thread parks until the phase task signals
+	 * it (joining from outside the pool allocates a wait node every time), so a step allocates nothing
+	 * The tree is done by the time the phase task signals, and the phase task itself is never marked done, so the next phase
+	 * can start at once without waiting on the pool
+	 */
+	void runPhase(Model model, int phase, int bands){
+		
+		if( tasks == null || tasks.toBand != bands )
+			tasks = new BandTask(0, bands, bands);
+		
+		taskModel = model;
+		taskPhase = phase;
+		waiter = Thread.currentThread();
+		phaseDone = false;
+		phaseFailure = null;
+		pool.execute(phaseTask);
+		
+		while( !phaseDone )
+			LockSupport.park(this);
+		
+		Throwable failure = phaseFailure;
+		if( failure instanceof RuntimeException )
+			throw (RuntimeException)failure;
+		if( failure instanceof Error )
+			throw (Error)failure;
+	}
+	
+	/**
+	 * Runs one phase over the rows of a single band
+	 */
+	void runBand(Model model, int phase, int band, int bands){
+		
+		int tileRows = model.getTileRows();
+		int fromRow = Math.min(model.getRows(), (int)((long)tileRows * band / bands) * Model.TILE_SIZE);
+		int toRow = Math.min(model.getRows(), (int)((long)tileRows * (band + 1) / bands) * Model.TILE_SIZE);
+		int agents = model.isSparse() ? model.getAgentCount() : 0;
+		int fromAgent = (int)((long)agents * band / bands), toAgent = (int)((long)agents * (band + 1) / bands);
+		
+		switch( phase ){
+			case DIRECTIONS:	if( model.isSparse() )
+									model.updateAgentDirections(fromAgent, toAgent);
+								else
+									model.updateDirections(fromRow, toRow);
+								break;
+			case PHERMONES:		model.updatePhermones(fromRow, toRow);
+								break;
+			case FIND_MOVES:	model.listMoves(fromRow, toRow, moves[band]);
+								break;
+			case SIGNALS:		model.updateSignals(fromRow, toRow);
+								break;
+			case FIELD_ROWS:	model.blurFieldRows(fromRow, toRow);
+								break;
+			case FIELD_COLS:	model.blurFieldCols(fromRow, toRow);
+								break;
+			case CLAIM_MOVES:	if( model.isSparse() )
+									model.claimAgentMoves(fromAgent, toAgent);
+								else
+									model.listMoves(fromRow, toRow, moves[band]);
+								break;
+			case CLAIMED_MOVES:	if( model.isSparse() )
+									model.moveAgentsByClaims(fromAgent, toAgent);
+								else{
+									Model.MoveList list = moves[band];
+									for( int m = 0; m < list.count; m++ )
+										model.moveByClaim(list.cells[m], list.targets[m]);
+								}
+								break;
+		}
+	}
+	
+	/**
+	 * Runs the task tree of a phase in the pool and signals the stepping thread once it is done
+	 * exec reports the task as not completed, so the pool never marks it done, and it can be executed again for the next
+	 * phase as soon as it has signalled
+	 */
+	@SuppressWarnings("serial")
+	class PhaseTask extends ForkJoinTask<Void>{
+		
+		public Void getRawResult(){ return null; }
+		protected void setRawResult(Void value){}
+		
+		@Override
+		protected boolean exec(){
+			
+			try{
+				tasks.reinitialize();
+				tasks.invoke();
+			}
+			catch(Throwable t){
+				phaseFailure = t;
+			}
+			finally{
+				phaseDone = true;
+				LockSupport.unpark(waiter);
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Splits a range of bands in half until a single band is left, then runs the phase on it
+	 * The halves are built with the task, so the whole tree can be run again for every phase
+	 */
+	@SuppressWarnings("serial")
+	class BandTask extends RecursiveAction{
+		
+		private final int fromBand, toBand, bands;
+		private final BandTask lower, upper;
+		
+		BandTask(int fromBand, int toBand, int bands){
+			
+			this.fromBand = fromBand;
+			this.toBand = toBand;
+			this.bands = bands;
+			
+			int middle = (fromBand + toBand) >>> 1;
+			lower = toBand - fromBand == 1 ? null : new BandTask(fromBand, middle, bands);
+			upper = toBand - fromBand == 1 ? null : new BandTask(middle, toBand, bands);
+		}
+		
+		@Override
+		protected void compute(){
+			
+			if( lower == null )
+				runBand(taskModel, taskPhase, fromBand, bands);
+			else{
+				lower.reinitialize();
+				upper.reinitialize();
+				invokeAll(lower, upper);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,56 @@
+/**
+ * ScalarDecayKernel.java
+ * Decay passes one cell at a time, the fallback when the SIMD kernel is not available
+ *
+ * @author Philip Lin
+ */
+
+public class ScalarDecayKernel implements DecayKernel{
+	
+	public void decayPhermones(byte[] phermones, int from, int to, byte max){
+		
+		for( int k = from; k < to; k++ ){
+			
+			if( phermones[k] > max )
+				phermones[k] = max;
+			if( phermones[k] > 0 )
+				phermones[k] -= 1;
+		}
+	}
+	
+	public void decaySignals(byte[] signals, int from, int to){
+		
+		for( int k = from; k < to; k++ ){
+			
+			if( signals[k] > 0 )
+				signals[k] -= 1;
+		}
+	}
+	
+	/**
+	 * Checks that two kernels decay every byte value alike, over runs longer than any vector and at a few offsets
+	 */
+	static boolean sameResults(DecayKernel a, DecayKernel b){
+		
+		byte[] levels = new byte[1024], expected = new byte[1024];
+		
+		for( int max = 0; max <= Byte.MAX_VALUE; max += 7 ){
+			for( int from = 0; from < 3; from++ ){
+				
+				for( int k = 0; k < levels.length; k++ )
+					levels[k] = expected[k] = (byte)(k * 37 + from);
+				a.decayPhermones(levels, from, levels.length - from, (byte)max);
+				b.decayPhermones(expected, from, expected.length - from, (byte)max);
+				if( java.util.Arrays.equals(levels, expected) == false )
+					return false;
+				
+				a.decaySignals(levels, from, levels.length - from);
+				b.decaySignals(expected, from, expected.length - from);
+				if( java.util.Arrays.equals(levels, expected) == false )
+					return false;
+			}
+		}
+		return true;
+	}
+	
+}
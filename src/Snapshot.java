@@ -0,0 +1,68 @@
+/**
+ * Snapshot.java
+ * Compact copy of the displayed state of a model at one step
+ * Each cell is one byte: the phermone level for cells without a slime mold, MOLD + direction code for cells with one
+ * Snapshots are filled on the simulation thread and read on the EDT, so the view never reads the live model arrays
+ *
+ * @author Philip Lin
+ */
+
+public class Snapshot{
+	
+	// Cell code flag for a cell with a slime mold, the low 3 bits hold its direction code
+	final static int MOLD = 0x80;
+	
+	private int rows;
+	private int cols;
+	private long step;
+	private long time;
+	private int molds;
+	private byte[] cells;
+	
+	/**
+	 * Constructor
+	 * Snapshot is empty until it is captured
+	 */
+	public Snapshot(){
+		
+		cells = new byte[0];
+	}
+	
+	/**
+	 * Copies the displayed state of a model into the snapshot
+	 * Must be called while no step is running on the model
+	 * @param model model to be copied
+	 */
+	public void capture(Model model){
+		
+		boolean[] positions = model.getPositions();
+		byte[] directions = model.getDirections();
+		byte[] phermones = model.getPhermones();
+		
+		rows = model.getRows();
+		cols = model.getCols();
+		step = model.getStepCount();
+		time = System.nanoTime();
+		if( cells.length != positions.length )
+			cells = new byte[positions.length];
+		
+		int count = 0;
+		for( int k = 0; k < cells.length; k++ ){
+			if( positions[k] ){
+				cells[k] = (byte)(MOLD | directions[k]);
+				count++;
+			}
+			else
+				cells[k] = phermones[k];
+		}
+		molds = count;
+	}
+	
+	public int getRows(){ return rows; }
+	public int getCols(){ return cols; }
+	public long getStep(){ return step; }
+	public long getTime(){ return time; }
+	public int getMolds(){ return molds; }
+	public byte[] getCells(){ return cells; }
+	
+}
@@ -0,0 +1,295 @@
+/**
+ * SnapshotCodec.java
+ * Reads and writes the state of a model in a compact, versioned binary format
+ * A small header (magic, version, dimensions, population, seed, step number) is followed by one bit-packed plane per
+ * model array: positions, direction codes, signals and phermones, each with the fewest bits that hold its values
+ * Files are written through a FileChannel, and read through one too, memory mapped when they are large
+ * Files written by the old Java serialization format are recognized and imported with LegacyModelImporter
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class SnapshotCodec{
+	
+	// Format:
+	final static int MAGIC = 0x534C4D44;			// "SLMD"
+	final static short VERSION = 1;
+	final static int HEADER_BYTES = 4 + 2 + 4 + 4 + 4 + 8 + 8;
+	
+	// Files from this size on are memory mapped rather than read into the heap:
+	final static long MAP_THRESHOLD = 1 << 20;
+	
+	// First bytes of a Java serialization stream:
+	final static short SERIALIZATION_MAGIC = (short)0xACED;
+	
+	private SnapshotCodec(){}
+	
+	/**
+	 * Writes the state of a model to a file
+	 * Must be called while no step is running on the model
+	 * @param model model to be saved
+	 * @param file file to be written
+	 */
+	public static void write(Model model, File file) throws IOException{
+		
+		ByteBuffer buffer = encode(model);
+		
+		try( FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ){
+			write(buffer, channel);
+		}
+	}
+	
+	/**
+	 * Writes an encoded state to a channel
+	 */
+	static void write(ByteBuffer buffer, FileChannel channel) throws IOException{
+		
+		while( buffer.hasRemaining() )
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Encodes the state of a model
+	 * Must be called while no step is running on the model
+	 * @param model model to be encoded
+	 * @return buffer holding the encoded state, ready to be written
+	 * @throws IllegalArgumentException if the encoded state would not fit in one buffer
+	 */
+	public static ByteBuffer encode(Model model){
+		
+		boolean[] positions = model.getPositions();
+		byte[] directions = model.getDirections();
+		byte[] signals = model.getSignals();
+		byte[] phermones = model.getPhermones();
+		int cells = positions.length;
+		
+		int signalBits = bitsFor(maxOf(signals));
+		int phermoneBits = bitsFor(maxOf(phermones));
+		
+		long size = HEADER_BYTES + planeBytes(cells, 1) + planeBytes(cells, 3) + planeBytes(cells, signalBits) + planeBytes(cells, phermoneBits);
+		if( size > Integer.MAX_VALUE - 8 )
+			throw new IllegalArgumentException("State of a " + model.getRows() + "x" + model.getCols() + " grid takes " + size
+					+ " bytes encoded, more than a buffer holds (" + (Integer.MAX_VALUE - 8) + ")");
+		
+		ByteBuffer buffer = ByteBuffer.allocate((int)size);
+		
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putInt(model.getRows());
+		buffer.putInt(model.getCols());
+		buffer.putInt(model.getPopulation());
+		buffer.putLong(model.getSeed());
+		buffer.putLong(model.getStepCount());
+		
+		byte[] codes = new byte[cells];
+		
+		for( int k = 0; k < cells; k++ )
+			codes[k] = (byte)(positions[k] ? 1 : 0);
+		pack(codes, 1, buffer);
+		
+		pack(directions, 3, buffer);
+		
+		pack(signals, signalBits, buffer);
+		pack(phermones, phermoneBits, buffer);
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Reads a model from a file in the snapshot format, or from a legacy serialized model file
+	 * @param file file to be read
+	 * @return model holding the state in the file
+	 */
+	public static Model read(File file) throws IOException{
+		
+		try( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ){
+			
+			long size = channel.size();
+			ByteBuffer buffer;
+			
+			if( size >= MAP_THRESHOLD )
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			else{
+				buffer = ByteBuffer.allocate((int)size);
+				while( buffer.hasRemaining() && channel.read(buffer) >= 0 );
+				buffer.flip();
+			}
+			
+			if( buffer.remaining() >= 2 && buffer.getShort(0) == SERIALIZATION_MAGIC )
+				return LegacyModelImporter.read(file);
+			
+			return decode(buffer);
+		}
+	}
+	
+	/**
+	 * Decodes a model from a buffer holding an encoded state
+	 * @param buffer buffer positioned at the start of the encoded state
+	 * @return model holding the decoded state
+	 */
+	public static Model decode(ByteBuffer buffer) throws IOException{
+		
+		try{
+			if( buffer.getInt() != MAGIC )
+				throw new IOException("Not a slime mold snapshot");
+			
+			short version = buffer.getShort();
+			if( version > VERSION )
+				throw new IOException("Unsupported snapshot version " + version);
+			
+			int rows = buffer.getInt();
+			int cols = buffer.getInt();
+			int population = buffer.getInt();
+			long seed = buffer.getLong();
+			long step = buffer.getLong();
+			
+			if( rows < 1 || cols < 1 || (long)rows * cols > Integer.MAX_VALUE - 8 )
+				throw new IOException("Unsupported grid size " + rows + "x" + cols);
+			
+			int cells = rows * cols;
+			boolean[] positions = new boolean[cells];
+			byte[] directions = new byte[cells];
+			byte[] signals = new byte[cells];
+			byte[] phermones = new byte[cells];
+			byte[] codes = new byte[cells];
+			byte[] packed = new byte[(int)planeBytes(cells, 8)];
+			
+			unpack(buffer, packed, codes);
+			for( int k = 0; k < cells; k++ )
+				positions[k] = codes[k] != 0;
+			
+			unpack(buffer, packed, directions);
+			
+			unpack(buffer, packed, signals);
+			unpack(buffer, packed, phermones);
+			
+			Model model = new Model(rows, cols);
+			model.setPopulation(population);
+			model.setSeed(seed);
+			model.setPositions(positions);
+			model.setDirections(directions);
+			model.setSignals(signals);
+			model.setPhermones(phermones);
+			model.setStepCount(step);
+			return model;
+		}
+		catch(java.nio.BufferUnderflowException bue){
+			throw new EOFException("Snapshot is truncated");
+		}
+	}
+	
+	/**
+	 * Number of bytes in a plane of cells packed with the given number of bits each, including its bit count
+	 */
+	static long planeBytes(int cells, int bits){
+		
+		return 1 + ((long)cells * bits + 7) / 8;
+	}
+	
+	/**
+	 * Fewest bits that hold every value from 0 to max (at least 1)
+	 */
+	static int bitsFor(int max){
+		
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(max));
+	}
+	
+	/**
+	 * Largest value of a byte array, read as unsigned
+	 */
+	static int maxOf(byte[] values){
+		
+		int max = 0;
+		for( byte value : values )
+			max = Math.max(max, value & 0xFF);
+		return max;
+	}
+	
+	/**
+	 * Writes a plane: its bit count, then the values packed most significant bit first, ending on a byte boundary
+	 * Values are packed 8 at a time, since 8 values of any bit count fill a whole number of bytes
+	 * @param values values to be packed, each less than 2^bits
+	 * @param bits bits per value (1 to 8)
+	 * @param buffer heap buffer to write to
+	 */
+	static void pack(byte[] values, int bits, ByteBuffer buffer){
+		
+		byte[] bytes = buffer.array();
+		int position = buffer.arrayOffset() + buffer.position();
+		int mask = (1 << bits) - 1;
+		int whole = values.length & ~7;
+		
+		bytes[position++] = (byte)bits;
+		
+		for( int k = 0; k < whole; k += 8 ){
+			
+			long group = 0;
+			for( int t = 0; t < 8; t++ )
+				group = (group << bits) | (values[k + t] & mask);
+			for( int shift = 8 * (bits - 1); shift >= 0; shift -= 8 )
+				bytes[position++] = (byte)(group >>> shift);
+		}
+		
+		// Last values, padded with zero bits to a byte boundary
+		if( whole < values.length ){
+			
+			long group = 0;
+			for( int t = 0; t < 8; t++ )
+				group = (group << bits) | (whole + t < values.length ? values[whole + t] & mask : 0);
+			for( int shift = 8 * (bits - 1), left = ((values.length - whole) * bits + 7) / 8; left > 0; shift -= 8, left-- )
+				bytes[position++] = (byte)(group >>> shift);
+		}
+		
+		buffer.position(position - buffer.arrayOffset());
+	}
+	
+	/**
+	 * Reads a plane written by pack
+	 * The packed bytes are copied out of the buffer in bulk, so a mapped file is read sequentially
+	 * @param buffer buffer positioned at the start of the plane
+	 * @param packed scratch array large enough for a plane of 8 bits per value
+	 * @param values array the values are unpacked into
+	 */
+	static void unpack(ByteBuffer buffer, byte[] packed, byte[] values) throws IOException{
+		
+		int bits = buffer.get();
+		if( bits < 1 || bits > 8 )
+			throw new IOException("Corrupt snapshot plane");
+		
+		int mask = (1 << bits) - 1;
+		int whole = values.length & ~7;
+		int length = (int)(planeBytes(values.length, bits) - 1);
+		buffer.get(packed, 0, length);
+		
+		int position = 0;
+		for( int k = 0; k < whole; k += 8 ){
+			
+			long group = 0;
+			for( int b = 0; b < bits; b++ )
+				group = (group << 8) | (packed[position++] & 0xFF);
+			for( int t = 7; t >= 0; t-- ){
+				values[k + t] = (byte)(group & mask);
+				group >>>= bits;
+			}
+		}
+		
+		if( whole < values.length ){
+			
+			long group = 0;
+			for( int b = 0; b < bits; b++ )
+				group = (group << 8) | (position < length ? packed[position++] & 0xFF : 0);
+			for( int t = 7; t >= 0; t-- ){
+				if( whole + t < values.length )
+					values[whole + t] = (byte)(group & mask);
+				group >>>= bits;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,71 @@
+/**
+ * SnapshotExchange.java
+ * Hands snapshots of the model from the simulation thread to the EDT without either side waiting for the other
+ * Triple buffered: the writer fills its back buffer and swaps it with the middle one, the reader swaps its front
+ * buffer with the middle one when a newer snapshot is there
+ * The writer only copies the model when the reader has taken the last snapshot, so copying never
+ * costs more than one snapshot per rendered frame
+ *
+ * @author Philip Lin
+ */
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SnapshotExchange{
+	
+	// State of the middle buffer: its index, plus FRESH while the reader has not taken it
+	final static int FRESH = 4;
+	final static int INDEX = 3;
+	
+	private final Snapshot[] buffers = { new Snapshot(), new Snapshot(), new Snapshot() };
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0;
+	private int front = 2;
+	
+	/**
+	 * Whether the reader has taken the last published snapshot and is waiting for a newer one
+	 */
+	public boolean isWanted(){
+		
+		return (middle.get() & FRESH) == 0;
+	}
+	
+	/**
+	 * Copies the model into the back buffer and makes it the newest snapshot
+	 * Must be called while no step is running on the model
+	 * Writers are serialized with each other, but never with the reader
+	 * @param model model to be copied
+	 */
+	public synchronized void publish(Model model){
+		
+		buffers[back].capture(model);
+		back = middle.getAndSet(back | FRESH) & INDEX;
+	}
+	
+	/**
+	 * Publishes a snapshot of the model only if the reader has taken the last one
+	 * @param model model to be copied
+	 * @return whether a snapshot was published
+	 */
+	public boolean offer(Model model){
+		
+		if( !isWanted() )
+			return false;
+		
+		publish(model);
+		return true;
+	}
+	
+	/**
+	 * Takes the newest snapshot, to be read on the reader thread until the next call
+	 * @return the newest snapshot, or null if none was published since the last call
+	 */
+	public Snapshot take(){
+		
+		if( (middle.get() & FRESH) == 0 )
+			return null;
+		
+		front = middle.getAndSet(front) & INDEX;
+		return buffers[front];
+	}
+	
+}
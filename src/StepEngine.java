@@ -0,0 +1,18 @@
+/**
+ * StepEngine.java
+ * Strategy for running the update phases of one model step
+ * The model runs the phases itself, sequentially, when no engine is set
+ * 
+ * @author Philip Lin
+ */
+
+public interface StepEngine{
+	
+	/**
+	 * Updates directions, phermones, positions and signals of the model, in that order
+	 * Must leave the model in exactly the state the sequential phases would
+	 * @param model model to be stepped
+	 */
+	void step(Model model);
+	
+}
@@ -0,0 +1,341 @@
+/**
+ * StepJournal.java
+ * Append-only recording of a run, one entry per recorded step (frame)
+ * Most frames hold only the cells that changed since the frame before: molds that moved or turned, and cells whose
+ * signal or phermone level changed; every keyframeInterval frames a full keyframe (a SnapshotCodec snapshot) is written
+ * The offset of every keyframe is appended to an index file next to the journal, so a JournalPlayer can seek to any
+ * frame by decoding one keyframe and at most keyframeInterval - 1 deltas
+ *
+ * Frames are encoded on the stepping thread into pooled buffers and written in batches by a background writer thread
+ * The writer only holds up the stepping thread if MAX_PENDING frames are waiting, rather than dropping frames
+ *
+ * Journal file: MAGIC, VERSION, keyframe interval, then records of
+ *   type (KEYFRAME or DELTA), frame number, model step, payload length, payload
+ *   keyframe payload: SnapshotCodec encoding of the model
+ *   delta payload: number of changed cells, then for each its index (as a varint gap from the one before) and state
+ * Index file: (frame number, record offset) for each keyframe
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class StepJournal implements Closeable{
+	
+	// Format:
+	final static int MAGIC = 0x534C4D4A;			// "SLMJ"
+	final static short VERSION = 1;
+	final static int HEADER_BYTES = 4 + 2 + 4;
+	final static int RECORD_HEADER_BYTES = 1 + 8 + 8 + 4;
+	final static int INDEX_ENTRY_BYTES = 8 + 8;
+	final static byte KEYFRAME = 1;
+	final static byte DELTA = 2;
+	final static String INDEX_SUFFIX = ".idx";
+	
+	// Defaults and limits:
+	final static int DEFAULT_KEYFRAME_INTERVAL = 100;
+	final static int MAX_PENDING = 64;
+	final static int MAX_BATCH = 16;
+	
+	// Marks the end of the frames for the writer thread:
+	private final static ByteBuffer END = ByteBuffer.allocate(0);
+	
+	private final FileChannel journal;
+	private final FileChannel index;
+	private final int keyframeInterval;
+	
+	// Frames waiting for the writer, and buffers it has finished with:
+	private final BlockingQueue<ByteBuffer> pending;
+	private final BlockingQueue<ByteBuffer> free;
+	private final Thread writer;
+	private volatile IOException failure;
+	
+	// Stepping thread state: cell states as of the last frame, and the number of frames recorded
+	private short[] previous;
+	private long frames;
+	private boolean closed;
+	
+	/**
+	 * Constructor
+	 * Creates (or replaces) the journal file and its index file
+	 * @param file journal file
+	 * @param keyframeInterval number of frames from one keyframe to the next
+	 */
+	public StepJournal(File file, int keyframeInterval) throws IOException{
+		
+		if( keyframeInterval < 1 )
+			throw new IllegalArgumentException("Keyframe interval must be at least 1");
+		
+		this.keyframeInterval = keyframeInterval;
+		journal = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		index = FileChannel.open(indexFile(file).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC);
+		header.putShort(VERSION);
+		header.putInt(keyframeInterval);
+		header.flip();
+		SnapshotCodec.write(header, journal);
+		
+		pending = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING);
+		free = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING + MAX_BATCH + 1);
+		
+		writer = new Thread(new Runnable(){
+			public void run(){
+				StepJournal.this.writeFrames();
+			}
+		}, "StepJournal writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Index file of a journal file
+	 */
+	static File indexFile(File file){
+		
+		return new File(file.getPath() + INDEX_SUFFIX);
+	}
+	
+	/**
+	 * Records the current state of the model as the next frame
+	 * Must be called while no step is running on the model, from one thread at a time
+	 * @param model model to be recorded
+	 */
+	public void record(Model model){
+		
+		if( closed )
+			throw new IllegalStateException("Journal is closed");
+		if( failure != null )
+			throw new UncheckedIOException("Journal write failed", failure);
+		
+		int cells = model.getRows() * model.getCols();
+		boolean keyframe = previous == null || previous.length != cells || frames % keyframeInterval == 0;
+		ByteBuffer record = keyframe ? encodeKeyframe(model) : encodeDelta(model);
+		
+		frames++;
+		try{
+			pending.put(record);
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the journal writer", ie);
+		}
+	}
+	
+	/**
+	 * Encodes a keyframe, and takes the model state as the one later deltas are taken against
+	 */
+	private ByteBuffer encodeKeyframe(Model model){
+		
+		ByteBuffer snapshot = SnapshotCodec.encode(model);
+		ByteBuffer record = obtain(RECORD_HEADER_BYTES + snapshot.remaining());
+		
+		record.put(KEYFRAME);
+		record.putLong(frames);
+		record.putLong(model.getStepCount());
+		record.putInt(snapshot.remaining());
+		record.put(snapshot);
+		record.flip();
+		
+		boolean[] positions = model.getPositions();
+		byte[] directions = model.getDirections();
+		byte[] signals = model.getSignals();
+		byte[] phermones = model.getPhermones();
+		
+		if( previous == null || previous.length != positions.length )
+			previous = new short[positions.length];
+		for( int k = 0; k < previous.length; k++ )
+			previous[k] = cellState(positions[k], directions[k], signals[k], phermones[k]);
+		
+		return record;
+	}
+	
+	/**
+	 * Encodes the cells that changed since the last frame
+	 */
+	private ByteBuffer encodeDelta(Model model){
+		
+		boolean[] positions = model.getPositions();
+		byte[] directions = model.getDirections();
+		byte[] signals = model.getSignals();
+		byte[] phermones = model.getPhermones();
+		
+		ByteBuffer record = obtain(RECORD_HEADER_BYTES + 4 + 1024 * 7);
+		record.position(RECORD_HEADER_BYTES + 4);
+		int changed = 0, last = 0;
+		
+		for( int k = 0; k < previous.length; k++ ){
+			
+			short state = cellState(positions[k], directions[k], signals[k], phermones[k]);
+			if( state == previous[k] )
+				continue;
+			
+			previous[k] = state;
+			if( record.remaining() < 7 )
+				record = grow(record);
+			
+			// Gap from the last changed cell, as a varint of 7 bits per byte
+			int gap = k - last;
+			while( gap >= 0x80 ){
+				record.put((byte)(gap | 0x80));
+				gap >>>= 7;
+			}
+			record.put((byte)gap);
+			record.putShort(state);
+			last = k;
+			changed++;
+		}
+		
+		record.put(0, DELTA);
+		record.putLong(1, frames);
+		record.putLong(9, model.getStepCount());
+		record.putInt(17, record.position() - RECORD_HEADER_BYTES);
+		record.putInt(RECORD_HEADER_BYTES, changed);
+		record.flip();
+		
+		return record;
+	}
+	
+	/**
+	 * State of one cell in 16 bits: position (1 bit), direction code (3 bits), signal (4 bits), phermone (8 bits)
+	 * Signals go up to Model.MAX_SIGNAL_LIFETIME + 1, which the 4 bits hold
+	 */
+	static short cellState(boolean position, byte direction, byte signal, byte phermone){
+		
+		return (short)((position ? 0x8000 : 0) | direction << 12 | (signal & 0xF) << 8 | (phermone & 0xFF));
+	}
+	
+	/**
+	 * Writes one cell state back into a model, through Model.setCell so the model can be stepped on from it
+	 */
+	static void applyCellState(Model model, int k, short state){
+		
+		model.setCell(k, (state & 0x8000) != 0, (byte)(state >> 12 & 7), (byte)(state >> 8 & 0xF), (byte)state);
+	}
+	
+	/**
+	 * Takes a cleared buffer of at least the given capacity, reusing one the writer has finished with when possible
+	 */
+	private ByteBuffer obtain(int capacity){
+		
+		ByteBuffer buffer = free.poll();
+		if( buffer == null || buffer.capacity() < capacity )
+			return ByteBuffer.allocate(Math.max(capacity, buffer == null ? 0 : buffer.capacity()));
+		
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Copies a buffer into one twice its size
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer){
+		
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+	
+	/**
+	 * Writer thread: writes frames in batches with one gathering write, and appends keyframe offsets to the index
+	 */
+	private void writeFrames(){
+		
+		ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+		List<ByteBuffer> drained = new ArrayList<ByteBuffer>(MAX_BATCH);
+		ByteBuffer entries = ByteBuffer.allocate(MAX_BATCH * INDEX_ENTRY_BYTES);
+		boolean ended = false;
+		
+		try{
+			while( !ended ){
+				
+				drained.add(pending.take());
+				pending.drainTo(drained, MAX_BATCH - 1);
+				
+				int count = 0;
+				long offset = journal.position();
+				entries.clear();
+				
+				for( ByteBuffer record : drained ){
+					
+					if( record == END ){
+						ended = true;
+						break;
+					}
+					if( record.get(0) == KEYFRAME ){
+						entries.putLong(record.getLong(1));
+						entries.putLong(offset);
+					}
+					offset += record.remaining();
+					batch[count++] = record;
+				}
+				
+				long remaining = offset - journal.position();
+				while( remaining > 0 )
+					remaining -= journal.write(batch, 0, count);
+				
+				entries.flip();
+				SnapshotCodec.write(entries, index);
+				
+				for( int b = 0; b < count; b++ ){
+					free.offer(batch[b]);
+					batch[b] = null;
+				}
+				drained.clear();
+			}
+		}
+		catch(IOException ioe){
+			failure = ioe;
+			pending.clear();
+		}
+		catch(InterruptedException ie){
+			failure = new InterruptedIOException("Journal writer interrupted");
+		}
+	}
+	
+	/**
+	 * Number of frames recorded so far
+	 */
+	public long getFrames(){ return frames; }
+	
+	public int getKeyframeInterval(){ return keyframeInterval; }
+	
+	/**
+	 * Waits for the frames already recorded to be written, then closes the journal and index files
+	 */
+	@Override
+	public void close() throws IOException{
+		
+		if( closed )
+			return;
+		closed = true;
+		
+		try{
+			if( failure == null )
+				pending.put(END);
+			writer.join();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while closing the journal");
+		}
+		finally{
+			journal.close();
+			index.close();
+		}
+		
+		if( failure != null )
+			throw failure;
+	}
+	
+}
@@ -1,15 +1,25 @@
 /**
  * StepManager.java
  * Manages threads that update the model
- * Runnables update position, direction, signal, and phermone arrays
- * 
+ * Runnable steps the model, updating direction, phermone, position, and signal arrays
+ * Each step is one unit of work with its own completion future, and steps run one after the other in order
+ * At most a fixed number of steps are in flight at once; the scheduler waits for the oldest to finish before submitting more
+ * After each step a snapshot of the model is offered to the view, which renders at its own frame rate,
+ * and the step is recorded if the view has a journal
+ * A speed of 0 runs the steps back to back as fast as the model allows
+ * Stopping lets the steps in flight finish, so done() runs on the EDT only once the model is no longer being stepped
+ *
  * @author Philip Lin
  */
 import javax.swing.SwingWorker;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.*;
 
-public class StepManager extends SwingWorker<Void, Model> implements Runnable{
+public class StepManager extends SwingWorker<Void, Void> implements Runnable{
+	
+	// Default number of steps that may be submitted but not yet finished:
+	final static int MAX_STEPS_IN_FLIGHT = 2;
 	
 	// Communicates with:
 	Model model;
@@ -18,47 +28,143 @@ public class StepManager extends SwingWorker<Void, Model> implements Runnable{
 	// Executor manages thread execution
 	ExecutorService threadExecutor;
 	
+	// Steps the model, records it and hands the view a snapshot if it is waiting for one, on the executor thread:
+	private final Runnable stepAndOffer;
+	
+	// Steps submitted to the executor, oldest first:
+	private final Deque<CompletableFuture<Void>> inFlight;
+	private final int maxInFlight;
+	
+	// Set to stop the scheduler, whose thread is interrupted to end a wait (the lock keeps interrupts from reaching it once it has left):
+	private volatile boolean stopped;
+	private Thread scheduler;
+	private final Object schedulerLock = new Object();
+	
 	/**
 	 * Constructor
 	 */
 	public StepManager(View view, Model model){
 		
+		this(view, model, MAX_STEPS_IN_FLIGHT);
+	}
+	
+	/**
+	 * Constructor
+	 * @param maxInFlight number of steps that may be submitted before the scheduler waits for the oldest one
+	 */
+	public StepManager(View view, Model model, int maxInFlight){
+		
+		if( maxInFlight < 1 )
+			throw new IllegalArgumentException("At least one step must be allowed in flight");
+		
 		this.view = view;
-		this.model = model;		
+		this.model = model;
+		this.maxInFlight = maxInFlight;
 		threadExecutor = Executors.newSingleThreadExecutor();
+		inFlight = new ArrayDeque<CompletableFuture<Void>>(maxInFlight);
+		
+		stepAndOffer = new Runnable(){
+			public void run(){
+				StepManager.this.model.step();
+				if( StepManager.this.view.getJournal() != null )
+					StepManager.this.view.getJournal().record(StepManager.this.model);
+				
+				long start = StepMetrics.start();
+				if( StepManager.this.view.getSnapshots().offer(StepManager.this.model) )
+					StepMetrics.lap(StepMetrics.PUBLISH, start);
+			}
+		};
 	}
 	
 	/**
-	 * Pushes the threads that do the model updating to a background worker thread
+	 * Pushes the steps that do the model updating to a background worker thread
+	 * Steps start at a fixed rate of one per speed milliseconds, so the time a step takes is not added to the delay
+	 * If the steps fall behind the schedule is reset rather than catching up with a burst of steps
+	 * When stopped, the steps already submitted finish and the final state is handed to the view
+	 * A step that failed is rethrown, and reported by get() once done
 	 */
 	@Override
 	protected Void doInBackground() throws Exception{
 		
-		while( !isCancelled() ){
-
-			try{
-				Thread.sleep(model.getSpeed());
+		long nextStep = System.nanoTime();
+		Throwable failed = null;
+		synchronized( schedulerLock ){
+			scheduler = Thread.currentThread();
+		}
+		
+		try{
+			while( !stopped ){
 				
-				threadExecutor.execute(model.directionUpdater);
-				threadExecutor.execute(model.phermoneUpdater);
-				threadExecutor.execute(model.positionUpdater);
-				threadExecutor.execute(model.signalUpdater);
-
-				publish(model);
+				try{
+					long period = TimeUnit.MILLISECONDS.toNanos(model.getSpeed());
+					nextStep += period;
+					
+					long delay = nextStep - System.nanoTime();
+					if( delay > 0 )
+						TimeUnit.NANOSECONDS.sleep(delay);
+					else if( -delay > period )
+						nextStep = System.nanoTime();
+					
+					// Back-pressure: wait for the oldest step before going over the limit
+					while( inFlight.size() >= maxInFlight )
+						complete(inFlight.removeFirst());
+					
+					inFlight.addLast(CompletableFuture.runAsync(stepAndOffer, threadExecutor));
+					
+					while( !inFlight.isEmpty() && inFlight.peekFirst().isDone() )
+						complete(inFlight.removeFirst());
+				}
+				catch(InterruptedException ie){ break; }
+			}
+		}
+		finally{
+			// No interrupt can arrive once the scheduler is cleared, so the worker thread goes back to its pool uninterrupted
+			synchronized( schedulerLock ){
+				scheduler = null;
+			}
+			Thread.interrupted();
+			while( !inFlight.isEmpty() ){
+				try{
+					inFlight.removeFirst().join();
+				}
+				catch(CompletionException ce){
+					if( failed == null )
+						failed = ce.getCause();
+				}
 			}
-			catch(InterruptedException ie){ ie.printStackTrace(); }	
+			threadExecutor.shutdown();
+			view.getSnapshots().publish(model);
 		}
 		
+		if( failed != null )
+			throw new IllegalStateException("Step failed", failed);
 		return null;
 	}
 	
 	/**
-	 * Updates the GUI from the current thread (EDT)
+	 * Stops submitting steps, waking the scheduler if it is waiting
+	 * Unlike cancel, the worker is not done until the steps in flight have finished
 	 */
-	@Override
-	protected void process(List<Model> chunks){
+	public void stop(){
 		
-		view.updateGrid(model);
+		stopped = true;
+		synchronized( schedulerLock ){
+			if( scheduler != null )
+				scheduler.interrupt();
+		}
+	}
+	
+	/**
+	 * Waits for a step to finish
+	 */
+	private void complete(CompletableFuture<Void> step) throws InterruptedException{
+		
+		try{
+			step.get();
+		}
+		catch(ExecutionException ee){
+			throw new IllegalStateException("Step failed", ee.getCause());
+		}
 	}
 	
-}
\ No newline at end of file
+}
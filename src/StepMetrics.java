@@ -0,0 +1,281 @@
+/**
+ * StepMetrics.java
+ * Timing of the update phases of each step, the snapshot publish and the grid render, with latency histograms
+ * (p50/p99/max), steps/sec, frames/sec, dropped frames, live mold count and GC activity
+ * Published as a JMX MBean and shown in an overlay in the menu
+ *
+ * Off unless the program is started with -Dslimemold.metrics=true; ENABLED is a static final, so when it is off the
+ * JIT removes the timing calls altogether
+ *
+ * Phases can be timed on several threads at once: a parallel sweep steps many models together, all recording into the one
+ * MBean, so their timings are pooled. The histogram buckets, count and max are atomic, so no recording is lost; readers on
+ * other threads may see counts a moment out of date, and a percentile read while values are recorded may be off by those
+ *
+ * @author Philip Lin
+ */
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+public class StepMetrics implements StepMetricsMBean{
+	
+	final static boolean ENABLED = Boolean.getBoolean("slimemold.metrics");
+	final static String OBJECT_NAME = "BioInteractions:type=StepMetrics";
+	
+	// Timed phases:
+	final static int DIRECTIONS = 0;
+	final static int PHERMONES = 1;
+	final static int POSITIONS = 2;
+	final static int SIGNALS = 3;
+	final static int STEP = 4;
+	final static int PUBLISH = 5;
+	final static int RENDER = 6;
+	final static String[] PHASES = { "directions", "phermones", "positions", "signals", "step", "publish", "render" };
+	
+	final static StepMetrics INSTANCE = new StepMetrics();
+	
+	private final Histogram[] histograms;
+	private volatile double stepsPerSecond;
+	private volatile double framesPerSecond;
+	private volatile long droppedFrames;
+	private volatile int agentCount;
+	private long gcCountAtReset;
+	private long gcTimeAtReset;
+	
+	static{
+		if( ENABLED ){
+			try{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+			}
+			catch(Exception e){ e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * Constructor
+	 */
+	private StepMetrics(){
+		
+		histograms = new Histogram[PHASES.length];
+		for( int p = 0; p < PHASES.length; p++ )
+			histograms[p] = new Histogram();
+		if( ENABLED )
+			reset();
+	}
+	
+	/**
+	 * Start time of a phase
+	 * @return current time in nanoseconds, or 0 when metrics are off
+	 */
+	static long start(){
+		
+		return ENABLED ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Records a phase that began at start
+	 * @return current time, to be used as the start of the next phase
+	 */
+	static long lap(int phase, long start){
+		
+		if( !ENABLED )
+			return 0;
+		
+		long now = System.nanoTime();
+		INSTANCE.histograms[phase].record(now - start);
+		return now;
+	}
+	
+	/**
+	 * Records the time of a phase measured in several parts, as a fused step does
+	 */
+	static void record(int phase, long nanos){
+		
+		if( ENABLED )
+			INSTANCE.histograms[phase].record(nanos);
+	}
+	
+	/**
+	 * Records the rates measured by the view, once a second
+	 */
+	static void rates(double stepsPerSecond, double framesPerSecond){
+		
+		if( !ENABLED )
+			return;
+		
+		INSTANCE.stepsPerSecond = stepsPerSecond;
+		INSTANCE.framesPerSecond = framesPerSecond;
+	}
+	
+	/**
+	 * Records frames that were due but not rendered in time
+	 */
+	static void dropped(long frames){
+		
+		if( ENABLED && frames > 0 )
+			INSTANCE.droppedFrames += frames;
+	}
+	
+	/**
+	 * Records the number of molds in the last rendered frame
+	 */
+	static void agents(int count){
+		
+		if( ENABLED )
+			INSTANCE.agentCount = count;
+	}
+	
+	public String[] getPhases(){ return PHASES.clone(); }
+	
+	public long[] getCounts(){
+		
+		long[] counts = new long[PHASES.length];
+		for( int p = 0; p < PHASES.length; p++ )
+			counts[p] = histograms[p].count.get();
+		return counts;
+	}
+	
+	public double[] getP50Micros(){ return percentiles(0.50); }
+	public double[] getP99Micros(){ return percentiles(0.99); }
+	
+	public double[] getMaxMicros(){
+		
+		double[] max = new double[PHASES.length];
+		for( int p = 0; p < PHASES.length; p++ )
+			max[p] = histograms[p].max.get() / 1e3;
+		return max;
+	}
+	
+	private double[] percentiles(double fraction){
+		
+		double[] values = new double[PHASES.length];
+		for( int p = 0; p < PHASES.length; p++ )
+			values[p] = histograms[p].percentile(fraction) / 1e3;
+		return values;
+	}
+	
+	public double getStepsPerSecond(){ return stepsPerSecond; }
+	public double getFramesPerSecond(){ return framesPerSecond; }
+	public long getDroppedFrames(){ return droppedFrames; }
+	public int getAgentCount(){ return agentCount; }
+	public long getGcCount(){ return gcCount() - gcCountAtReset; }
+	public long getGcTimeMillis(){ return gcTime() - gcTimeAtReset; }
+	
+	/**
+	 * One line per phase with its p50/p99/max in milliseconds, then the rates and GC activity
+	 */
+	public String getSummary(){
+		
+		StringBuilder summary = new StringBuilder();
+		double[] p50 = getP50Micros(), p99 = getP99Micros(), max = getMaxMicros();
+		
+		for( int p = 0; p < PHASES.length; p++ )
+			summary.append(String.format("%-10s p50 %7.2f  p99 %7.2f  max %7.2f ms%n", PHASES[p], p50[p] / 1e3, p99[p] / 1e3, max[p] / 1e3));
+		summary.append(String.format("%.0f steps/s, %.0f fps, %d dropped frames, %d molds, %d GCs (%d ms)",
+				stepsPerSecond, framesPerSecond, droppedFrames, agentCount, getGcCount(), getGcTimeMillis()));
+		return summary.toString();
+	}
+	
+	/**
+	 * Clears the histograms, dropped frames and GC counts
+	 */
+	public void reset(){
+		
+		for( Histogram histogram : histograms )
+			histogram.clear();
+		droppedFrames = 0;
+		gcCountAtReset = gcCount();
+		gcTimeAtReset = gcTime();
+	}
+	
+	static long gcCount(){
+		
+		long count = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+	
+	static long gcTime(){
+		
+		long time = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+	
+	/**
+	 * Latency histogram with logarithmic buckets: 4 per power of two of nanoseconds, so values are within 19% of their bucket
+	 * Safe to record into from several threads at once
+	 */
+	static class Histogram{
+		
+		final static int SUB_BUCKETS = 4;
+		
+		final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+		
+		void record(long nanos){
+			
+			if( nanos < 1 )
+				nanos = 1;
+			buckets.incrementAndGet(bucketOf(nanos));
+			count.incrementAndGet();
+			
+			long held = max.get();
+			while( nanos > held && !max.compareAndSet(held, nanos) )
+				held = max.get();
+		}
+		
+		/**
+		 * Bucket of a value: its power of two, then the next two bits below the leading one
+		 */
+		static int bucketOf(long nanos){
+			
+			int octave = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = octave >= 2 ? (int)(nanos >>> (octave - 2)) & (SUB_BUCKETS - 1) : 0;
+			return octave * SUB_BUCKETS + sub;
+		}
+		
+		/**
+		 * Upper bound of a bucket in nanoseconds
+		 */
+		static long upperBound(int bucket){
+			
+			int octave = bucket / SUB_BUCKETS, sub = bucket % SUB_BUCKETS;
+			if( octave < 2 )
+				return 1L << (octave + 1);
+			return (1L << octave) + ((long)(sub + 1) << (octave - 2));
+		}
+		
+		/**
+		 * Value at or below which the given fraction of the recorded values fall (bucket upper bound, capped at max)
+		 */
+		long percentile(double fraction){
+			
+			long total = count.get();
+			if( total == 0 )
+				return 0;
+			
+			long rank = (long)Math.ceil(fraction * total), seen = 0;
+			for( int b = 0; b < buckets.length(); b++ ){
+				seen += buckets.get(b);
+				if( seen >= rank )
+					return Math.min(upperBound(b), max.get());
+			}
+			return max.get();
+		}
+		
+		void clear(){
+			
+			for( int b = 0; b < buckets.length(); b++ )
+				buckets.set(b, 0);
+			count.set(0);
+			max.set(0);
+		}
+	}
+	
+}
@@ -0,0 +1,28 @@
+/**
+ * StepMetricsMBean.java
+ * JMX management interface of StepMetrics, registered as BioInteractions:type=StepMetrics
+ * Latencies are in microseconds, per phase in the order of getPhases(), since start or the last reset
+ *
+ * @author Philip Lin
+ */
+
+public interface StepMetricsMBean{
+	
+	String[] getPhases();
+	long[] getCounts();
+	double[] getP50Micros();
+	double[] getP99Micros();
+	double[] getMaxMicros();
+	
+	double getStepsPerSecond();
+	double getFramesPerSecond();
+	long getDroppedFrames();
+	int getAgentCount();
+	long getGcCount();
+	long getGcTimeMillis();
+	
+	String getSummary();
+	
+	void reset();
+	
+}
@@ -0,0 +1,320 @@
+/**
+ * StripeCoordinator.java
+ * Coordinator of a distributed run: splits the grid into stripes of whole rows, one per StripeWorker process, steps the
+ * workers together and gathers their stripes back into a model
+ * Each step is a barrier: the coordinator tells every worker to step, and waits until all of them have reported the step done
+ * The workers link to each other in a ring in stripe order, so the grid wraps around from the last stripe to the first
+ * The gathered state is identical to a model stepped by the sequential rules from the same seed
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StripeCoordinator implements Closeable{
+	
+	// Fewest rows of a stripe, so no mold moves across a whole stripe:
+	final static int MIN_STRIPE_ROWS = 2;
+	
+	// Time allowed for all the workers to connect, when started as local processes and when started separately, and how often
+	// the local processes are checked while waiting:
+	final static long START_TIMEOUT_MS = 60000;
+	final static long LISTEN_TIMEOUT_MS = 600000;
+	final static long ACCEPT_POLL_MS = 100;
+	
+	private final int rows;
+	private final int cols;
+	private final SocketChannel[] workers;
+	private final int[] firstRows;
+	private final List<Process> processes = new ArrayList<Process>();
+	private final ByteBuffer message = ByteBuffer.allocate(StripeWorker.CONFIG_BYTES);
+	private long stepCount;
+	
+	/**
+	 * Constructor
+	 * Listens for the workers, assigns them their stripes in the order they connect, and waits until they are all linked
+	 * Gives up if the workers have not all connected in time, or a worker process exits first; on failure the processes
+	 * started are destroyed
+	 * @param workers number of worker processes, at least 2
+	 * @param rows number of rows (grid height), at least MIN_STRIPE_ROWS per worker
+	 * @param cols number of columns (grid width)
+	 * @param settings model whose population, seed and phermone and signal settings the grid starts from (its own grid size is ignored)
+	 * @param port port to listen on for workers started separately, or 0 to start the workers as local processes on loopback
+	 * @throws IOException if the workers cannot be started or linked, or do not connect in time
+	 */
+	public StripeCoordinator(int workers, int rows, int cols, Model settings, int port) throws IOException{
+		
+		if( workers < 2 || rows < MIN_STRIPE_ROWS * workers )
+			throw new IllegalArgumentException("Distributed runs need 2 or more workers and " + MIN_STRIPE_ROWS + " rows per worker");
+		
+		this.rows = rows;
+		this.cols = cols;
+		this.workers = new SocketChannel[workers];
+		firstRows = new int[workers + 1];
+		for( int s = 0; s <= workers; s++ )
+			firstRows[s] = (int)((long)rows * s / workers);
+		
+		try{
+			connect(workers, port, settings);
+			
+			for( int s = 0; s < workers; s++ )
+				expect(s, StripeWorker.READY, 4);
+		}
+		catch(IOException | RuntimeException e){
+			abort();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Accepts the workers, starting them first as local processes if no port is given, and sends each its stripe
+	 */
+	private void connect(int workers, int port, Model settings) throws IOException{
+		
+		int[] ports = new int[workers];
+		InetAddress[] hosts = new InetAddress[workers];
+		
+		try( ServerSocketChannel server = ServerSocketChannel.open(); Selector selector = Selector.open() ){
+			
+			long deadline = System.currentTimeMillis() + (port == 0 ? START_TIMEOUT_MS : LISTEN_TIMEOUT_MS);
+			
+			if( port == 0 ){
+				server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				startWorkers(workers, ((InetSocketAddress)server.getLocalAddress()).getPort());
+			}
+			else
+				server.bind(new InetSocketAddress(port));
+			
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			
+			for( int s = 0; s < workers; s++ ){
+				
+				this.workers[s] = accept(server, selector, deadline, s);
+				this.workers[s].socket().setTcpNoDelay(true);
+				hosts[s] = ((InetSocketAddress)this.workers[s].getRemoteAddress()).getAddress();
+				
+				message.clear().limit(8);
+				StripeWorker.read(this.workers[s], message);
+				message.flip();
+				if( message.getInt() != StripeWorker.HELLO )
+					throw new IOException("Expected a worker");
+				ports[s] = message.getInt();
+			}
+		}
+		
+		for( int s = 0; s < workers; s++ ){
+			
+			int next = (s + 1) % workers;
+			byte[] nextHost = hosts[next].getAddress();
+			
+			message.clear();
+			message.putInt(StripeWorker.CONFIG).putInt(s).putInt(workers).putInt(rows).putInt(cols)
+					.putInt(firstRows[s]).putInt(firstRows[s + 1] - firstRows[s])
+					.putInt(settings.getPopulation()).putInt(settings.getPhermoneMax()).putInt(settings.getPhermone1Step())
+					.putInt(settings.getSignalLifetime()).putLong(settings.getSeed())
+					.putInt(ports[next]).put((byte)nextHost.length).put(nextHost);
+			message.position(StripeWorker.CONFIG_BYTES).flip();
+			StripeWorker.write(this.workers[s], message);
+		}
+	}
+	
+	/**
+	 * Waits for the next worker to connect, checking the worker processes started while it waits
+	 * @return the worker's connection, in blocking mode
+	 * @throws IOException if the deadline passes or a worker process has exited
+	 */
+	private SocketChannel accept(ServerSocketChannel server, Selector selector, long deadline, int connected) throws IOException{
+		
+		while( true ){
+			
+			SocketChannel worker = server.accept();
+			if( worker != null ){
+				worker.configureBlocking(true);
+				return worker;
+			}
+			
+			for( Process process : processes ){
+				if( process.isAlive() == false )
+					throw new IOException("A worker process exited with status " + process.exitValue() + " before connecting");
+			}
+			
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 )
+				throw new IOException("Only " + connected + " of " + workers.length + " workers connected in time");
+			
+			selector.select(Math.min(remaining, ACCEPT_POLL_MS));
+			selector.selectedKeys().clear();
+		}
+	}
+	
+	/**
+	 * Closes the connections made so far and destroys the worker processes started, after a failure to link the workers
+	 */
+	private void abort(){
+		
+		for( SocketChannel worker : workers ){
+			try{
+				if( worker != null )
+					worker.close();
+			}
+			catch(IOException ioe){
+				// Already failing
+			}
+		}
+		for( Process process : processes )
+			process.destroyForcibly();
+	}
+	
+	/**
+	 * Starts the workers as processes of the same Java installation and class path
+	 * Their error output goes to the coordinator's
+	 */
+	void startWorkers(int workers, int port) throws IOException{
+		
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		
+		for( int s = 0; s < workers; s++ ){
+			
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					"StripeWorker", InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+			builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			processes.add(builder.start());
+		}
+	}
+	
+	/**
+	 * Performs one step on every worker, returning once all of them have finished it
+	 */
+	public void step() throws IOException{
+		
+		for( SocketChannel worker : workers )
+			command(worker, StripeWorker.STEP);
+		
+		for( int s = 0; s < workers.length; s++ ){
+			
+			expect(s, StripeWorker.STEPPED, 12);
+			if( message.getLong() != stepCount + 1 )
+				throw new IOException("Worker " + s + " is out of step");
+		}
+		stepCount++;
+	}
+	
+	/**
+	 * Number of steps taken since the workers were started
+	 */
+	public long getStepCount(){ return stepCount; }
+	
+	/**
+	 * Copies the stripes of all workers into the arrays of a model of the same grid size, along with the step count
+	 * Arrays of the model that are missing or of the wrong size are replaced
+	 */
+	public void gather(Model model) throws IOException{
+		
+		if( model.getRows() != rows || model.getCols() != cols )
+			throw new IllegalArgumentException("Model grid size differs");
+		
+		int cells = rows * cols;
+		if( model.getPositions() == null || model.getPositions().length != cells )
+			model.setPositions(new boolean[cells]);
+		if( model.getDirections() == null || model.getDirections().length != cells )
+			model.setDirections(new byte[cells]);
+		if( model.getSignals() == null || model.getSignals().length != cells )
+			model.setSignals(new byte[cells]);
+		if( model.getPhermones() == null || model.getPhermones().length != cells )
+			model.setPhermones(new byte[cells]);
+		
+		boolean[] positions = model.getPositions();
+		byte[][] planes = { null, model.getDirections(), model.getSignals(), model.getPhermones() };
+		byte[] row = new byte[cols];
+		ByteBuffer buffer = ByteBuffer.wrap(row);
+		
+		for( SocketChannel worker : workers )
+			command(worker, StripeWorker.GATHER);
+		
+		for( int s = 0; s < workers.length; s++ ){
+			for( int plane = 0; plane < planes.length; plane++ ){
+				for( int i = firstRows[s]; i < firstRows[s + 1]; i++ ){
+					
+					buffer.clear();
+					StripeWorker.read(workers[s], buffer);
+					
+					int k = model.index(i, 0);
+					if( plane == 0 ){
+						for( int j = 0; j < cols; j++ )
+							positions[k + j] = row[j] != 0;
+					}
+					else
+						System.arraycopy(row, 0, planes[plane], k, cols);
+				}
+			}
+		}
+		
+		// The arrays were written in place, so the model must not skip any tile
+		model.setPositions(positions);
+		model.setStepCount(stepCount);
+	}
+	
+	/**
+	 * Stops the workers and waits for the processes started for them to exit
+	 */
+	public void close() throws IOException{
+		
+		IOException failure = null;
+		
+		for( SocketChannel worker : workers ){
+			try{
+				command(worker, StripeWorker.STOP);
+				worker.close();
+			}
+			catch(IOException ioe){
+				failure = ioe;
+			}
+		}
+		
+		for( Process process : processes ){
+			try{
+				process.waitFor();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				process.destroy();
+			}
+		}
+		
+		if( failure != null )
+			throw failure;
+	}
+	
+	/**
+	 * Sends a command to a worker
+	 */
+	void command(SocketChannel worker, int command) throws IOException{
+		
+		message.clear();
+		message.putInt(command).flip();
+		StripeWorker.write(worker, message);
+	}
+	
+	/**
+	 * Reads a reply of the given size from a worker, leaving the message positioned after its type
+	 */
+	void expect(int s, int type, int bytes) throws IOException{
+		
+		message.clear().limit(bytes);
+		StripeWorker.read(workers[s], message);
+		message.flip();
+		if( message.getInt() != type )
+			throw new IOException("Unexpected reply from worker " + s);
+	}
+	
+}
@@ -0,0 +1,452 @@
+/**
+ * StripeWorker.java
+ * Worker process of a distributed run: steps one stripe of rows of the grid, for a StripeCoordinator
+ * Each worker holds its stripe in a model with a halo row either side (see Model.setStripe), and is linked by socket channels
+ * to the workers of the stripes above (up) and below (down) it, the first and last stripes being linked around the torus
+ *
+ * Every step the workers swap their edge rows of signals and phermones, which the neighbour reads of the direction update
+ * and the deposits of the phermone update need, then update directions and phermones concurrently
+ * Moves are resolved in row-major order (the first mold to reach a cell wins it), so they pass down the stripes in turn:
+ * each worker takes the state of the back buffer rows either side of its stripe from the workers before it, moves its
+ * molds, and passes the rows it wrote on; molds that cross a stripe edge move into the neighbour's rows this way
+ * Signals are then updated concurrently again, and the worker reports the step done to the coordinator
+ *
+ * Usage: java StripeWorker HOST:PORT
+ * connects to the coordinator listening on HOST:PORT, which assigns the stripe and the grid settings
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StripeWorker{
+	
+	// Messages between the coordinator and the workers:
+	final static int HELLO = 1;			// worker: port it accepts its up link on
+	final static int CONFIG = 2;		// coordinator: stripe, grid settings and the address of the next worker
+	final static int READY = 3;			// worker: linked and initialized
+	final static int STEP = 4;			// coordinator: take a step
+	final static int STEPPED = 5;		// worker: step taken, with the step count
+	final static int GATHER = 6;		// coordinator: send the stripe's rows
+	final static int STOP = 7;			// coordinator: close the links and exit
+	final static int CONFIG_BYTES = 4 * 11 + 8 + 4 + 1 + 16;
+	
+	private final SocketChannel coordinator;
+	private final ByteBuffer message = ByteBuffer.allocate(CONFIG_BYTES);
+	
+	// Stripe: index out of the number of workers, rows of the grid it holds, and its model
+	private int index;
+	private int workers;
+	private int stripeRows;
+	private int cols;
+	private Model model;
+	
+	// Links to the workers of the stripes above and below, and a row of cell codes for the moves
+	private HaloLink up;
+	private HaloLink down;
+	private byte[] row;
+	
+	public static void main(String[] args){
+		
+		int split = args.length == 1 ? args[0].lastIndexOf(':') : -1;
+		if( split < 0 ){
+			System.err.println("Usage: java StripeWorker HOST:PORT");
+			System.exit(1);
+		}
+		
+		try{
+			StripeWorker worker = new StripeWorker(new InetSocketAddress(args[0].substring(0, split), Integer.parseInt(args[0].substring(split + 1))));
+			worker.run();
+		}
+		catch(IOException | UncheckedIOException | NumberFormatException e){
+			System.err.println("Stripe worker failed: " + e);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * Connects to the coordinator, takes the stripe it assigns, links to the neighbouring workers and initializes the stripe
+	 * @param address address the coordinator listens on
+	 */
+	public StripeWorker(InetSocketAddress address) throws IOException{
+		
+		coordinator = SocketChannel.open(address);
+		coordinator.socket().setTcpNoDelay(true);
+		
+		// The up link is accepted on the interface the coordinator is reached through
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(((InetSocketAddress)coordinator.getLocalAddress()).getAddress(), 0));
+		
+		message.clear();
+		message.putInt(HELLO).putInt(((InetSocketAddress)server.getLocalAddress()).getPort()).flip();
+		write(coordinator, message);
+		
+		message.clear().limit(CONFIG_BYTES);
+		read(coordinator, message);
+		message.flip();
+		if( message.getInt() != CONFIG )
+			throw new IOException("Expected the stripe configuration");
+		
+		index = message.getInt();
+		workers = message.getInt();
+		int gridRows = message.getInt();
+		cols = message.getInt();
+		int firstRow = message.getInt();
+		stripeRows = message.getInt();
+		
+		model = new Model(stripeRows + 2, cols);
+		model.setPopulation(message.getInt());
+		model.setPhermoneMax(message.getInt());
+		model.setPhermone1Step(message.getInt());
+		model.setSignalLifetime(message.getInt());
+		model.setSeed(message.getLong());
+		model.setStripe(firstRow, gridRows);
+		
+		int nextPort = message.getInt();
+		byte[] nextHost = new byte[message.get()];
+		message.get(nextHost);
+		
+		// Connect down first: the listening sockets already queue connections before they are accepted
+		down = new HaloLink(SocketChannel.open(new InetSocketAddress(InetAddress.getByAddress(nextHost), nextPort)), 2 * cols);
+		up = new HaloLink(server.accept(), 2 * cols);
+		server.close();
+		row = new byte[cols];
+		
+		model.initializePositions();
+		model.initializeDirectionsSignalsPhermones();
+		
+		message.clear();
+		message.putInt(READY).flip();
+		write(coordinator, message);
+	}
+	
+	/**
+	 * Carries out the coordinator's commands until it stops the run
+	 */
+	public void run() throws IOException{
+		
+		try{
+			while( true ){
+				
+				message.clear().limit(4);
+				read(coordinator, message);
+				message.flip();
+				
+				switch( message.getInt() ){
+					case STEP:		step();
+									message.clear();
+									message.putInt(STEPPED).putLong(model.getStepCount()).flip();
+									write(coordinator, message);
+									break;
+					case GATHER:	gather();
+									break;
+					case STOP:		return;
+					default:		throw new IOException("Unknown command");
+				}
+			}
+		}
+		finally{
+			up.close();
+			down.close();
+			coordinator.close();
+		}
+	}
+	
+	/**
+	 * Performs one step of the stripe: directions, phermones, positions and signals in that order, as Model.step
+	 */
+	void step() throws IOException{
+		
+		model.ensureTiles();
+		exchangeHalos();
+		model.updateDirections();
+		model.updatePhermones();
+		movePositions();
+		model.updateSignals();
+		model.setStepCount(model.getStepCount() + 1);
+	}
+	
+	/**
+	 * Sends the edge rows of signals and phermones to the neighbouring stripes, and takes theirs into the halo rows
+	 * The halo rows are stepped along with the stripe's own, but only ever read from before they are replaced
+	 */
+	void exchangeHalos() throws IOException{
+		
+		byte[] signals = model.getSignals(), phermones = model.getPhermones();
+		int first = model.index(1, 0), last = model.index(stripeRows, 0), below = model.index(stripeRows + 1, 0);
+		
+		ByteBuffer buffer = up.beginSend();
+		buffer.put(signals, first, cols).put(phermones, first, cols);
+		up.send(buffer);
+		buffer = down.beginSend();
+		buffer.put(signals, last, cols).put(phermones, last, cols);
+		down.send(buffer);
+		
+		up.receive().get(signals, 0, cols).get(phermones, 0, cols);
+		down.receive().get(signals, below, cols).get(phermones, below, cols);
+		
+		// Signals in the halos deposit phermone on the stripe's edge rows, which may be in sleeping tiles
+		model.wakeRow(0);
+		model.wakeRow(stripeRows + 1);
+	}
+	
+	/**
+	 * Moves the molds of the stripe in row-major order of the whole grid
+	 * The first stripe moves first, and tells the last stripe (its up neighbour) the rows either side of the grid's wrap;
+	 * every other stripe waits for the stripe above to pass down its last row and the row below it; once a stripe has moved
+	 * its molds, it returns the row above to its up neighbour and passes its last rows down, so the rows either side of each
+	 * stripe edge end up as the last stripe to write them left them
+	 */
+	void movePositions() throws IOException{
+		
+		model.beginPositions();
+		
+		if( index > 0 ){
+			receiveRow(up, 0);
+			receiveRow(up, 1);
+		}
+		if( index == workers - 1 ){
+			receiveRow(down, stripeRows);
+			receiveRow(down, stripeRows + 1);
+		}
+		
+		model.moveMolds(1, stripeRows + 1);
+		
+		sendRows(up, 0, index == 0 ? 1 : -1);
+		if( index < workers - 1 )
+			sendRows(down, stripeRows, stripeRows + 1);
+		else
+			sendRows(down, stripeRows + 1, -1);
+		
+		if( index < workers - 1 )
+			receiveRow(down, stripeRows);
+		if( index == 0 )
+			receiveRow(up, 1);
+		
+		// Molds moved into the halo rows now belong to the neighbouring stripes
+		java.util.Arrays.fill(row, (byte)0);
+		model.setNextRow(0, row);
+		model.setNextRow(stripeRows + 1, row);
+		
+		model.endPositions();
+	}
+	
+	/**
+	 * Sends one or two rows of the back buffers (second row -1 for one) over a link
+	 */
+	void sendRows(HaloLink link, int first, int second){
+		
+		ByteBuffer buffer = link.beginSend();
+		
+		model.getNextRow(first, row);
+		buffer.put(row);
+		if( second >= 0 ){
+			model.getNextRow(second, row);
+			buffer.put(row);
+		}
+		link.send(buffer);
+	}
+	
+	/**
+	 * Replaces a row of the back buffers with one received over a link
+	 */
+	void receiveRow(HaloLink link, int i) throws IOException{
+		
+		link.receive(cols).get(row);
+		model.setNextRow(i, row);
+	}
+	
+	/**
+	 * Sends the stripe's own rows to the coordinator: positions (0 or 1), directions, signals and phermones, a row at a time
+	 */
+	void gather() throws IOException{
+		
+		boolean[] positions = model.getPositions();
+		byte[] directions = model.getDirections(), signals = model.getSignals(), phermones = model.getPhermones();
+		ByteBuffer buffer = ByteBuffer.wrap(row);
+		
+		for( int plane = 0; plane < 4; plane++ ){
+			for( int i = 1; i <= stripeRows; i++ ){
+				
+				int k = model.index(i, 0);
+				if( plane == 0 ){
+					for( int j = 0; j < cols; j++ )
+						row[j] = (byte)(positions[k + j] ? 1 : 0);
+				}
+				else
+					System.arraycopy(plane == 1 ? directions : plane == 2 ? signals : phermones, k, row, 0, cols);
+				
+				buffer.clear();
+				write(coordinator, buffer);
+			}
+		}
+	}
+	
+	/**
+	 * Reads from a channel until the buffer is full
+	 * @throws EOFException if the other end closes first
+	 */
+	static void read(SocketChannel channel, ByteBuffer buffer) throws IOException{
+		
+		while( buffer.hasRemaining() ){
+			if( channel.read(buffer) < 0 )
+				throw new EOFException("Connection closed");
+		}
+	}
+	
+	/**
+	 * Writes the remaining bytes of the buffer to a channel
+	 */
+	static void write(SocketChannel channel, ByteBuffer buffer) throws IOException{
+		
+		while( buffer.hasRemaining() )
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Link to a neighbouring worker, carrying messages of up to a fixed size
+	 * Messages are sent by a writer thread, so two workers sending to each other at once never wait on each other's reads
+	 */
+	static class HaloLink implements Closeable{
+		
+		// Messages sent but not yet written:
+		final static int MAX_PENDING = 4;
+		
+		// Marks the end of the messages for the writer thread:
+		private final static ByteBuffer END = ByteBuffer.allocate(0);
+		
+		private final SocketChannel channel;
+		private final BlockingQueue<ByteBuffer> pending;
+		private final BlockingQueue<ByteBuffer> free;
+		private final ByteBuffer received;
+		private final Thread writer;
+		private volatile IOException failure;
+		
+		/**
+		 * Constructor
+		 * @param channel connected channel to the neighbouring worker
+		 * @param size largest message in bytes
+		 */
+		HaloLink(SocketChannel channel, int size) throws IOException{
+			
+			this.channel = channel;
+			channel.socket().setTcpNoDelay(true);
+			
+			pending = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING + 1);
+			free = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING);
+			for( int i = 0; i < MAX_PENDING; i++ )
+				free.add(ByteBuffer.allocate(size));
+			received = ByteBuffer.allocate(size);
+			
+			writer = new Thread(new Runnable(){
+				public void run(){
+					HaloLink.this.writeMessages();
+				}
+			}, "HaloLink writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+		
+		/**
+		 * Takes a cleared buffer to fill with the next message, waiting while MAX_PENDING messages are unwritten
+		 */
+		ByteBuffer beginSend(){
+			
+			try{
+				ByteBuffer buffer;
+				while( (buffer = free.poll(100, TimeUnit.MILLISECONDS)) == null ){
+					if( failure != null )
+						throw new UncheckedIOException("Link to a neighbouring worker failed", failure);
+				}
+				return buffer;
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while sending", ie);
+			}
+		}
+		
+		/**
+		 * Queues a buffer from beginSend, holding the message up to its position, for writing
+		 */
+		void send(ByteBuffer buffer){
+			
+			if( failure != null )
+				throw new UncheckedIOException("Link to a neighbouring worker failed", failure);
+			
+			buffer.flip();
+			pending.add(buffer);
+		}
+		
+		/**
+		 * Receives the next message, of the full size of the link
+		 */
+		ByteBuffer receive() throws IOException{
+			
+			return receive(received.capacity());
+		}
+		
+		/**
+		 * Receives the next message, of the given size
+		 * @return buffer holding the message, valid until the next receive
+		 */
+		ByteBuffer receive(int bytes) throws IOException{
+			
+			received.clear().limit(bytes);
+			read(channel, received);
+			received.flip();
+			return received;
+		}
+		
+		/**
+		 * Writes queued messages until the link is closed
+		 */
+		void writeMessages(){
+			
+			try{
+				while( true ){
+					
+					ByteBuffer buffer = pending.take();
+					if( buffer == END )
+						return;
+					
+					write(channel, buffer);
+					buffer.clear();
+					free.add(buffer);
+				}
+			}
+			catch(IOException ioe){
+				failure = ioe;
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Writes the messages still queued and closes the channel
+		 */
+		public void close() throws IOException{
+			
+			pending.add(END);
+			try{
+				writer.join();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+			channel.close();
+			if( failure != null )
+				throw failure;
+		}
+	}
+	
+}
@@ -0,0 +1,303 @@
+/**
+ * SweepRunner.java
+ * Headless parameter sweep
+ * Runs one model for every combination of the given parameter values, replicates times each with its own seed,
+ * concurrently on a work-stealing pool sized to the cores, and writes one CSV row per run as the runs finish
+ * Every run creates its own model, and models share no mutable state, so throughput scales with the cores
+ *
+ * Usage: java SweepRunner [--rows=N] [--cols=N] [--steps=N] [--replicates=N] [--seed=N] [--threads=N] [--out=FILE]
+ *                         [--population=VALUES] [--phermone-max=VALUES] [--phermone-step=VALUES] [--signal-lifetime=VALUES]
+ * VALUES is a single value, a comma separated list (10,20,50) or an inclusive range with a step (10:100:10)
+ * Rows are written to --out, or to standard output; progress and totals go to standard error
+ *
+ * @author Philip Lin
+ */
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class SweepRunner{
+	
+	// Defaults:
+	final static int DEFAULT_STEPS = 1000;
+	final static int DEFAULT_REPLICATES = 1;
+	final static String CSV_HEADER = "run,population,phermone_max,phermone_step,signal_lifetime,replicate,seed,"
+			+ "molds,signalled_cells,total_phermone,mean_phermone,active_tiles,clusters,largest_cluster,mean_cluster_size,milliseconds";
+	
+	// Sweep configuration:
+	private int rows;
+	private int cols;
+	private int steps;
+	private int replicates;
+	private long seed;
+	private int threads;
+	private File out;
+	private int[] populations;
+	private int[] phermoneMaxes;
+	private int[] phermoneSteps;
+	private int[] signalLifetimes;
+	
+	/**
+	 * Constructor
+	 * Starts from the defaults of a freshly constructed model
+	 */
+	public SweepRunner(){
+		
+		Model defaults = new Model();
+		
+		rows = defaults.getRows();
+		cols = defaults.getCols();
+		steps = DEFAULT_STEPS;
+		replicates = DEFAULT_REPLICATES;
+		seed = System.nanoTime();
+		threads = Runtime.getRuntime().availableProcessors();
+		populations = new int[]{ defaults.getPopulation() };
+		phermoneMaxes = new int[]{ defaults.getPhermoneMax() };
+		phermoneSteps = new int[]{ defaults.getPhermone1Step() };
+		signalLifetimes = new int[]{ defaults.getSignalLifetime() };
+	}
+	
+	public static void main(String[] args){
+		
+		SweepRunner runner = new SweepRunner();
+		
+		try{
+			runner.parseArguments(args);
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.err.println("Usage: java SweepRunner [--rows=N] [--cols=N] [--steps=N] [--replicates=N] [--seed=N] [--threads=N] [--out=FILE]"
+					+ " [--population=VALUES] [--phermone-max=VALUES] [--phermone-step=VALUES] [--signal-lifetime=VALUES]");
+			System.exit(1);
+		}
+		
+		try{
+			runner.run();
+		}
+		catch(IOException ioe){
+			System.err.println("Sweep failed: " + ioe.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Reads --name=value pairs from the command line into the sweep configuration
+	 * @param args command line arguments
+	 */
+	void parseArguments(String[] args){
+		
+		for( String arg : args ){
+			
+			int split = arg.indexOf('=');
+			if( !arg.startsWith("--") || split < 0 )
+				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+			
+			String name = arg.substring(2, split);
+			String value = arg.substring(split + 1);
+			
+			try{
+				switch( name ){
+					case "rows":			rows = Integer.parseInt(value);
+											break;
+					case "cols":			cols = Integer.parseInt(value);
+											break;
+					case "steps":			steps = Integer.parseInt(value);
+											break;
+					case "replicates":		replicates = Integer.parseInt(value);
+											break;
+					case "seed":			seed = Long.parseLong(value);
+											break;
+					case "threads":			threads = Integer.parseInt(value);
+											break;
+					case "out":				out = new File(value);
+											break;
+					case "population":		populations = parseValues(value);
+											break;
+					case "phermone-max":	phermoneMaxes = parseValues(value);
+											break;
+					case "phermone-step":	phermoneSteps = parseValues(value);
+											break;
+					case "signal-lifetime":	signalLifetimes = parseValues(value);
+											break;
+					default:				throw new IllegalArgumentException("Unrecognized argument: " + arg);
+				}
+			}
+			catch(NumberFormatException nfe){
+				throw new IllegalArgumentException("Not a number: " + arg);
+			}
+		}
+		
+		if( rows < 1 || cols < 1 || (long)rows * cols > Integer.MAX_VALUE - 8 )
+			throw new IllegalArgumentException("Unsupported grid size " + rows + "x" + cols);
+		if( steps < 0 )
+			throw new IllegalArgumentException("Steps must not be negative");
+		if( replicates < 1 )
+			throw new IllegalArgumentException("Replicates must be at least 1");
+		if( threads < 1 )
+			throw new IllegalArgumentException("Threads must be at least 1");
+		for( int population : populations )
+			if( population < 1 || population > rows * cols )
+				throw new IllegalArgumentException("Population must be between 1 and " + rows * cols);
+		
+		// Let the model check the phermone and signal constants
+		Model check = new Model(1, 1);
+		for( int max : phermoneMaxes )
+			for( int step : phermoneSteps ){
+				check.setPhermone1Step(0);
+				check.setPhermoneMax(max);
+				check.setPhermone1Step(step);
+			}
+		for( int lifetime : signalLifetimes )
+			check.setSignalLifetime(lifetime);
+	}
+	
+	/**
+	 * Parses a single value, a comma separated list, or an inclusive range from:to:step
+	 */
+	static int[] parseValues(String value){
+		
+		String[] range = value.split(":");
+		
+		if( range.length == 3 ){
+			
+			int from = Integer.parseInt(range[0]), to = Integer.parseInt(range[1]), step = Integer.parseInt(range[2]);
+			if( step < 1 || to < from )
+				throw new IllegalArgumentException("Bad range: " + value);
+			
+			int[] values = new int[(to - from) / step + 1];
+			for( int v = 0; v < values.length; v++ )
+				values[v] = from + v * step;
+			return values;
+		}
+		if( range.length != 1 )
+			throw new IllegalArgumentException("Bad range: " + value);
+		
+		String[] list = value.split(",");
+		int[] values = new int[list.length];
+		for( int v = 0; v < list.length; v++ )
+			values[v] = Integer.parseInt(list[v].trim());
+		return values;
+	}
+	
+	/**
+	 * Submits every run to the pool, and writes their rows in the order they finish
+	 */
+	void run() throws IOException{
+		
+		List<Run> runs = new ArrayList<Run>();
+		for( int population : populations )
+			for( int max : phermoneMaxes )
+				for( int step : phermoneSteps )
+					for( int lifetime : signalLifetimes )
+						for( int replicate = 0; replicate < replicates; replicate++ )
+							runs.add(new Run(runs.size(), population, max, step, lifetime, replicate));
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		CompletionService<String> completed = new ExecutorCompletionService<String>(pool);
+		long start = System.nanoTime();
+		
+		for( Run run : runs )
+			completed.submit(run);
+		
+		PrintWriter csv = out == null ? new PrintWriter(new OutputStreamWriter(System.out))
+				: new PrintWriter(new BufferedWriter(new FileWriter(out)));
+		
+		try{
+			csv.println(CSV_HEADER);
+			
+			for( int finished = 1; finished <= runs.size(); finished++ ){
+				
+				csv.println(completed.take().get());
+				csv.flush();
+				
+				if( out != null && finished % Math.max(1, runs.size() / 20) == 0 )
+					System.err.printf("%d/%d runs%n", finished, runs.size());
+			}
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Sweep interrupted");
+		}
+		catch(ExecutionException ee){
+			throw new IOException("Run failed", ee.getCause());
+		}
+		finally{
+			pool.shutdownNow();
+			csv.close();
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("%d runs of %d steps on a %dx%d grid in %.3f s with %d threads: %.1f runs/sec, %.3e cell-updates/sec%n",
+				runs.size(), steps, rows, cols, seconds, threads, runs.size() / seconds, (double)runs.size() * steps * rows * cols / seconds);
+		if( csv.checkError() )
+			throw new IOException("Writing the results failed");
+	}
+	
+	/**
+	 * One run of the sweep: a model of its own, stepped on one pool thread, summarized as a CSV row
+	 */
+	class Run implements Callable<String>{
+		
+		final int id;
+		final int population;
+		final int phermoneMax;
+		final int phermone1Step;
+		final int signalLifetime;
+		final int replicate;
+		final long runSeed;
+		
+		Run(int id, int population, int phermoneMax, int phermone1Step, int signalLifetime, int replicate){
+			
+			this.id = id;
+			this.population = population;
+			this.phermoneMax = phermoneMax;
+			this.phermone1Step = phermone1Step;
+			this.signalLifetime = signalLifetime;
+			this.replicate = replicate;
+			runSeed = CellRandom.split(seed, id);
+		}
+		
+		public String call(){
+			
+			long start = System.nanoTime();
+			
+			Model model = new Model(rows, cols);
+			model.setPopulation(population);
+			model.setSeed(runSeed);
+			model.setPhermone1Step(0);
+			model.setPhermoneMax(phermoneMax);
+			model.setPhermone1Step(phermone1Step);
+			model.setSignalLifetime(signalLifetime);
+			model.initializePositions();
+			model.initializeDirectionsSignalsPhermones();
+			
+			for( int s = 0; s < steps; s++ )
+				model.step();
+			
+			int molds = 0, signalled = 0;
+			long phermoneTotal = 0;
+			boolean[] positions = model.getPositions();
+			byte[] signals = model.getSignals();
+			byte[] phermones = model.getPhermones();
+			
+			for( int k = 0; k < positions.length; k++ ){
+				if( positions[k] )
+					molds++;
+				if( signals[k] > 0 )
+					signalled++;
+				phermoneTotal += phermones[k];
+			}
+			
+			// Only the final clusters are reported, so they are found once rather than tracked every step
+			model.setClusterTracking(true);
+			ClusterTracker clusters = model.getClusters();
+			
+			return String.format("%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.4f,%d,%d,%d,%.4f,%.1f", id, population, phermoneMax, phermone1Step,
+					signalLifetime, replicate, runSeed, molds, signalled, phermoneTotal, (double)phermoneTotal / positions.length,
+					model.getActiveTiles(), clusters.getClusterCount(), clusters.getLargestCluster(), clusters.getMeanClusterSize(),
+					(System.nanoTime() - start) / 1e6);
+		}
+	}
+	
+}
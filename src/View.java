@@ -3,12 +3,18 @@
  * View component
  * Sets up the user interface display
  * Includes methods to serialize model
+ * The grid is redrawn from snapshots of the model at up to FRAME_RATE frames per second, independently of the step rate
  * 
  * @author Philip Lin
  */
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
 
 @SuppressWarnings("serial")
 public class View extends JFrame{
@@ -16,10 +22,34 @@ public class View extends JFrame{
 	// Communicates with:
 	private Model model;
 	
+	// Rendered frames per second, and nanoseconds per frame:
+	final static int FRAME_RATE = 60;
+	final static long FRAME_PERIOD = 1000000000L / FRAME_RATE;
+	
+	// Nanoseconds a frame may spend taking in a snapshot, so panning and zooming stay smooth on grids too large for one frame:
+	final static long RENDER_BUDGET = FRAME_PERIOD / 2;
+	
 	// View components:
 	private MenuJPanel menu;
 	private GridJPanel grid;
 	
+	// Snapshots handed over from the simulation thread, and the timer that renders them:
+	private SnapshotExchange snapshots;
+	private Timer frameTimer;
+	
+	// Snapshot last rendered, and whether it has been taken in fully:
+	private Snapshot rendering;
+	private boolean rendered = true;
+	
+	// Journal the steps are recorded to (none when null):
+	private StepJournal journal;
+	
+	// Frames and steps counted since the rates were last shown:
+	private int frames;
+	private long shownStep;
+	private long lastStep;
+	private long rateTime;
+	
 	/**
 	 * Constructor
 	 */
@@ -39,109 +69,193 @@ public class View extends JFrame{
 	public void initialize(){
 		
 		menu = new MenuJPanel(this, model);
-		grid = new GridJPanel();
+		grid = new GridJPanel(model.getRows(), model.getCols());
 		
 		getContentPane().setPreferredSize(new Dimension(600, 700));
 		getContentPane().setLayout(new BorderLayout());
 		getContentPane().add(menu, BorderLayout.NORTH);
 		getContentPane().add(grid, BorderLayout.CENTER);
 		pack();
+		
+		snapshots = new SnapshotExchange();
+		rateTime = System.nanoTime();
+		frameTimer = new Timer(1000 / FRAME_RATE, new ActionListener(){
+			public void actionPerformed(ActionEvent e){
+				showFrame();
+			}
+		});
+		frameTimer.start();
 	}
 	
 	/**
-	 * Randomly sets up the Slime Molds when JButton is pressed
-	 * Adds individual SlimeMoldJPanels or normal JPanels to Environment JPanel Grid
+	 * Randomly sets up the Slime Molds when JButton is pressed, from a new seed
+	 * Draws the slime molds and phermones onto the Environment JPanel Grid
 	 */
 	public void setup(){
 		
+		model.setSeed(new SplittableRandom().nextLong());
 		model.initializePositions();
 		model.initializeDirectionsSignalsPhermones();
-				
+		if( journal != null )
+			journal.record(model);
+		
 		updateGrid(model);
 	}
 	
 	/**
 	 * Updates the environment and slime molds for 1 step of molds
-	 * Adds individual SlimeMoldJPanelsor NonSlimeMoldJPanels to Environment JPanel Grid
+	 * Redraws the changed cells of the Environment JPanel Grid
 	 */
 	public void step(){
-				
-		model.updateDirections();		
-		model.updatePhermones();
-		model.updatePositions();
-		model.updateSignals();
+		
+		model.step();
+		if( journal != null )
+			journal.record(model);
 		
 		updateGrid(model);
 	}
 	
 	/**
-	 * Updates the environment grid with new slime mold and non slime mold panels
+	 * Updates the environment grid, redrawing the cells that changed since it was last updated
+	 * Only called while the simulation is not running
 	 */
 	void updateGrid(Model model){
 		
-		grid.removeAll();
-
-		for( int i = 0; i < Model.ROWS; i++ ){
-			for( int j = 0; j < Model.COLS; j++ ){
-				
-				if( (model.getPositions())[i][j] == true )
-					grid.add(new SlimeMoldJPanel( model.getDirections()[i][j] ));
-				else
-					grid.add(new NoSlimeMoldJPanel( model.getPhermones()[i][j] ));
-				
-				grid.validate();
+		snapshots.publish(model);
+		showFrame();
+	}
+	
+	/**
+	 * Renders the newest snapshot if there is one, or goes on taking in the last one if it was not taken in fully,
+	 * and once a second shows the step and frame rates
+	 * With metrics on, the render is timed, and a snapshot that waited more than one frame period to be rendered
+	 * counts the periods it missed as dropped frames
+	 */
+	void showFrame(){
+		
+		Snapshot snapshot = snapshots.take();
+		if( snapshot != null ){
+			
+			long start = StepMetrics.start();
+			rendering = snapshot;
+			rendered = grid.render(snapshot, RENDER_BUDGET);
+			lastStep = snapshot.getStep();
+			frames++;
+			
+			if( StepMetrics.ENABLED ){
+				StepMetrics.lap(StepMetrics.RENDER, start);
+				StepMetrics.dropped((start - snapshot.getTime()) / FRAME_PERIOD - 1);
+				StepMetrics.agents(snapshot.getMolds());
 			}
 		}
+		else if( !rendered )
+			rendered = grid.render(rendering, RENDER_BUDGET);
+		
+		long now = System.nanoTime();
+		if( now - rateTime >= 1000000000L ){
+			
+			double seconds = (now - rateTime) / 1e9;
+			menu.showRates(Math.max(0, lastStep - shownStep) / seconds, frames / seconds);
+			
+			if( StepMetrics.ENABLED ){
+				StepMetrics.rates(Math.max(0, lastStep - shownStep) / seconds, frames / seconds);
+				menu.showMetrics(StepMetrics.INSTANCE);
+			}
+			
+			shownStep = lastStep;
+			frames = 0;
+			rateTime = now;
+		}
 	}
 	
+	SnapshotExchange getSnapshots(){ return snapshots; }
+	StepJournal getJournal(){ return journal; }
+	void setJournal(StepJournal journal){ this.journal = journal; }
+	
 	/**
-	 * Saves the current model as a serialized object file
-	 * FileOutputStream used to write file represented by file object
-	 * ObjectOutputStream used to write model object to the file in the output stream
+	 * Saves the current model to a snapshot file
+	 * The model is encoded on the EDT, where it cannot be stepping, and the file is written on a background thread
 	 * @param file file object where model object is to be saved 
 	 * @param model model object to be saved
 	 */
-	void save(File file, Model model){
+	void save(final File file, Model model){
 		
+		final ByteBuffer encoded;
 		try{
-			FileOutputStream fileOS = new FileOutputStream(file);
-	        ObjectOutputStream objectOS = new ObjectOutputStream(fileOS);
-	        
-	        objectOS.writeObject(model);
-	        
-	        objectOS.close();
-	        fileOS.close();	        
-	    }
-		catch(IOException ioe){ ioe.printStackTrace(); }
+			encoded = SnapshotCodec.encode(model);
+		}
+		catch(IllegalArgumentException iae){
+			iae.printStackTrace();
+			menu.showAction("Save Failed.");
+			return;
+		}
+		
+		new SwingWorker<Void, Void>(){
+			
+			@Override
+			protected Void doInBackground() throws IOException{
+				
+				try( FileChannel channel = FileChannel.open(file.toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ){
+					SnapshotCodec.write(encoded, channel);
+				}
+				return null;
+			}
+			
+			@Override
+			protected void done(){
+				
+				try{
+					get();
+					menu.showAction("State Saved.");
+				}
+				catch(Exception e){
+					e.printStackTrace();
+					menu.showAction("Save Failed.");
+				}
+			}
+		}.execute();
 	}
 	
 	/**
-	 * Loads a specific serialized object file containing a model previously saved 
-	 * FileInputStream used to obtain file represented by a file object
-	 * ObjectInputStream used to obtain model object from the representative file object
-	 * Model obtained from the input stream is a previously saved model object and is used to update the view upon load
+	 * Loads a snapshot file, or a legacy serialized model file, containing a model previously saved
+	 * The file is read and decoded on a background thread, and the state is copied into the model back on the EDT
 	 * @param file file object that represents model object
 	 */
-	void load(File file){
-				
-		try{
-			
-			FileInputStream fileIS = new FileInputStream(file);
-			ObjectInputStream objectIS = new ObjectInputStream(fileIS);
-			
-			Model saveState = (Model)objectIS.readObject();
+	void load(final File file){
+		
+		new SwingWorker<Model, Void>(){
 			
-			fileIS.close();
-			objectIS.close();
+			@Override
+			protected Model doInBackground() throws IOException{
+				
+				return SnapshotCodec.read(file);
+			}
 			
-			model.setPositions(saveState.getPositions());
-			model.setSignals(saveState.getSignals());
-			model.setPhermones(saveState.getPhermones());
-			model.setDirections(saveState.getDirections());
-			updateGrid(saveState);			
-		}
-		catch(IOException ioe){ ioe.printStackTrace(); }
-		catch(ClassNotFoundException cnfe){ cnfe.printStackTrace(); }
+			@Override
+			protected void done(){
+				
+				Model saveState;
+				try{
+					saveState = get();
+				}
+				catch(Exception e){
+					e.printStackTrace();
+					menu.showAction("Load Failed.");
+					return;
+				}
+				
+				model.setDimensions(saveState.getRows(), saveState.getCols());
+				model.setPositions(saveState.getPositions());
+				model.setSignals(saveState.getSignals());
+				model.setPhermones(saveState.getPhermones());
+				model.setDirections(saveState.getDirections());
+				model.setSeed(saveState.getSeed());
+				model.setStepCount(saveState.getStepCount());
+				updateGrid(saveState);
+				menu.stateLoaded();
+			}
+		}.execute();
 	}
 	
 }
\ No newline at end of file
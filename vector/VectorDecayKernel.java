@@ -0,0 +1,53 @@
+/**
+ * VectorDecayKernel.java
+ * Decay passes on the JDK Vector API, a whole vector of cells (32 on AVX2, 64 on AVX-512) at a time
+ * Kept apart from src since it needs JDK 17 and the incubator module:
+ *   javac --release 17 --add-modules jdk.incubator.vector -cp bin -d bin vector/VectorDecayKernel.java
+ *   java --add-modules jdk.incubator.vector -cp bin Main
+ * Cells left over after the last whole vector are decayed one at a time
+ *
+ * @author Philip Lin
+ */
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorDecayKernel implements DecayKernel{
+	
+	final static VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	
+	public void decayPhermones(byte[] phermones, int from, int to, byte max){
+		
+		int k = from;
+		for( int end = from + SPECIES.loopBound(to - from); k < end; k += SPECIES.length() ){
+			
+			ByteVector levels = ByteVector.fromArray(SPECIES, phermones, k).min(max);
+			levels.sub((byte)1, levels.compare(VectorOperators.GT, (byte)0)).intoArray(phermones, k);
+		}
+		
+		for( ; k < to; k++ ){
+			
+			if( phermones[k] > max )
+				phermones[k] = max;
+			if( phermones[k] > 0 )
+				phermones[k] -= 1;
+		}
+	}
+	
+	public void decaySignals(byte[] signals, int from, int to){
+		
+		int k = from;
+		for( int end = from + SPECIES.loopBound(to - from); k < end; k += SPECIES.length() ){
+			
+			ByteVector levels = ByteVector.fromArray(SPECIES, signals, k);
+			levels.sub((byte)1, levels.compare(VectorOperators.GT, (byte)0)).intoArray(signals, k);
+		}
+		
+		for( ; k < to; k++ ){
+			
+			if( signals[k] > 0 )
+				signals[k] -= 1;
+		}
+	}
+	
+}